@@ -0,0 +1,12 @@
+#!/bin/sh
+# Builds and runs the benchmarks, writing JMH's JSON results to benchmarks/results/<commit>.json so runs of
+# different commits can be compared. Extra arguments go to JMH, e.g. ./benchmarks/run.sh DatabaseBenchmark -f 1
+set -e
+cd "$(dirname "$0")/.."
+mvn -B -q -pl benchmarks -am package -DskipTests
+commit=$(git rev-parse --short HEAD)
+if [ -n "$(git status --porcelain --untracked-files=no)" ]; then
+    commit="$commit-dirty"
+fi
+mkdir -p benchmarks/results
+java -jar benchmarks/target/benchmarks.jar -rf json -rff "benchmarks/results/$commit.json" "$@"
@@ -0,0 +1,62 @@
+package scheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The console's own overhead: the password rules and turning a line into a command. It lives in the scheduler
+ * package to reach checkPWD. The commands are ones that are answered without a database (nobody is logged in),
+ * so what is measured is splitting, dispatching and printing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulerBenchmark {
+
+    private Session session;
+
+    @Setup
+    public void setUp() {
+        session = new Session(new PrintWriter(Writer.nullWriter()));
+    }
+
+    @Benchmark
+    public String[] checkPWDStrong() {
+        return Scheduler.checkPWD("Passw0rd!x", Scheduler.checks, Scheduler.patterns);
+    }
+
+    @Benchmark
+    public String[] checkPWDWeak() {
+        return Scheduler.checkPWD("password", Scheduler.checks, Scheduler.patterns);
+    }
+
+    @Benchmark
+    public boolean parseSearch() {
+        return Scheduler.execute(session, "search_caregiver_schedule 2024-05-01 2024-05-07");
+    }
+
+    @Benchmark
+    public boolean parseShowAppointments() {
+        return Scheduler.execute(session, "show_appointments --from 2024-05-01 --limit 20 --after 1000");
+    }
+
+    @Benchmark
+    public boolean parseUnknown() {
+        return Scheduler.execute(session, "no_such_command with some arguments");
+    }
+}
@@ -0,0 +1,197 @@
+package scheduler.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import scheduler.Scheduler;
+import scheduler.Session;
+import scheduler.db.ConnectionManager;
+import scheduler.db.Queries;
+import scheduler.db.ReservationEngine;
+import scheduler.db.StorageBackend;
+import scheduler.index.AvailabilityIndex;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The scheduler's database paths against an in-memory embedded database: reserving, searching the schedule and
+ * paging through appointments.
+ *
+ * The database holds CAREGIVERS caregivers available on each of the next DAYS days, and one patient with HISTORY
+ * appointments spread over the past and the future. Availability taken by reserve is put back, and the
+ * reservations removed, before every iteration, so every iteration sees the same data.
+ * reserveAppointmentContended has RESERVING_THREADS patients reserve at once, so its throughput includes the
+ * retries and lost races of reservations competing for the same slots and doses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    private static final int DAYS = 365;
+    private static final int CAREGIVERS = 100;
+    private static final int HISTORY = 5000;
+    private static final String VACCINE = "Pfizer";
+    private static final String PASSWORD = "Passw0rd!x";
+    private static final String HISTORY_PATIENT = "history";
+    private static final int RESERVING_THREADS = 8;
+
+    private LocalDate firstDay;
+    private Session session;
+
+    @Setup
+    public void setUp() throws SQLException {
+        System.setProperty(StorageBackend.SETTING, "embedded");
+        firstDay = LocalDate.now().plusDays(1);
+        session = new Session(new PrintWriter(Writer.nullWriter()));
+
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        try {
+            con.setAutoCommit(false);
+            try (PreparedStatement statement = con.prepareStatement("INSERT INTO Caregivers VALUES (?, ?, ?)")) {
+                for (int i = 0; i < CAREGIVERS; i++) {
+                    statement.setString(1, "caregiver" + i);
+                    statement.setBytes(2, new byte[16]);
+                    statement.setBytes(3, new byte[16]);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            try (PreparedStatement statement = con.prepareStatement("INSERT INTO Patients VALUES (?, ?, ?)")) {
+                statement.setString(1, HISTORY_PATIENT);
+                statement.setBytes(2, new byte[16]);
+                statement.setBytes(3, new byte[16]);
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = con.prepareStatement("INSERT INTO Vaccines VALUES (?, ?)")) {
+                statement.setString(1, VACCINE);
+                statement.setInt(2, Integer.MAX_VALUE);
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = con.prepareStatement(
+                    "INSERT INTO Appointments (ID, Time, Vaccine_Name, Caregiver_Name, Patient_Name) " +
+                    "VALUES (?, ?, ?, ?, ?)")) {
+                // two appointments a day, most of them in the past
+                LocalDate start = LocalDate.now().minusDays(HISTORY / 2 - 30);
+                for (int i = 0; i < HISTORY; i++) {
+                    statement.setInt(1, i + 1);
+                    statement.setDate(2, Date.valueOf(start.plusDays(i / 2)));
+                    statement.setString(3, VACCINE);
+                    statement.setString(4, "caregiver" + (i % CAREGIVERS));
+                    statement.setString(5, HISTORY_PATIENT);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            con.commit();
+        } finally {
+            cm.returnConnection(con);
+        }
+
+        Scheduler.execute(session, "create_patient bench " + PASSWORD);
+        Scheduler.execute(session, "login_patient bench " + PASSWORD);
+        if (session.getCurrentPatient() == null) {
+            throw new IllegalStateException("Could not log in the benchmark patient");
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetAvailability() throws SQLException {
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        try {
+            con.setAutoCommit(false);
+            try (Statement statement = con.createStatement()) {
+                statement.executeUpdate("DELETE FROM Appointments WHERE ID > " + HISTORY);
+                statement.executeUpdate("DELETE FROM Availabilities");
+            }
+            try (PreparedStatement statement = con.prepareStatement(Queries.ADD_AVAILABILITY)) {
+                for (int day = 0; day < DAYS; day++) {
+                    for (int i = 0; i < CAREGIVERS; i++) {
+                        statement.setDate(1, Date.valueOf(firstDay.plusDays(day)));
+                        statement.setString(2, "caregiver" + i);
+                        statement.addBatch();
+                    }
+                }
+                statement.executeBatch();
+            }
+            con.commit();
+        } finally {
+            cm.returnConnection(con);
+        }
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        for (int day = 0; day < DAYS; day++) {
+            index.invalidate(Date.valueOf(firstDay.plusDays(day)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        ConnectionManager.getInstance().shutdown();
+    }
+
+    @Benchmark
+    public void reserveAppointment() throws SQLException {
+        Scheduler.reserveAppointment(session, randomDay(), VACCINE);
+    }
+
+    // the engine directly, the session is not shared between threads
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(RESERVING_THREADS)
+    public ReservationEngine.Result reserveAppointmentContended() throws SQLException {
+        return ReservationEngine.getInstance().reserve(randomDay(), VACCINE, "bench");
+    }
+
+    @Benchmark
+    public void obtainScheduleOneDay() throws SQLException {
+        Scheduler.obtainSchedule(session, randomDay());
+    }
+
+    @Benchmark
+    public void obtainScheduleOneWeek() throws SQLException {
+        Date from = randomDay();
+        Scheduler.obtainSchedule(session, from, Date.valueOf(from.toLocalDate().plusDays(6)));
+    }
+
+    // the default show_appointments: the next page of upcoming appointments
+    @Benchmark
+    public void showAppointmentsUpcoming() throws SQLException {
+        Scheduler.showPatientAppointments(session, HISTORY_PATIENT);
+    }
+
+    // a page deep into the history, which should cost the same as the first one
+    @Benchmark
+    public void showAppointmentsDeepPage() throws SQLException {
+        Scheduler.showPatientAppointments(session, HISTORY_PATIENT, Date.valueOf(LocalDate.now().minusYears(10)),
+                HISTORY / 2, 50);
+    }
+
+    private Date randomDay() {
+        return Date.valueOf(firstDay.plusDays(ThreadLocalRandom.current().nextInt(DAYS)));
+    }
+}
@@ -0,0 +1,52 @@
+package scheduler.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scheduler.util.Util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The password helpers every create and login goes through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+
+    private byte[] salt;
+    private byte[] padded;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        salt = new byte[16];
+        random.nextBytes(salt);
+        // what a hash looks like when read back from a BINARY(16) column: two bytes and zero padding
+        padded = new byte[16];
+        padded[0] = 17;
+        padded[1] = 42;
+    }
+
+    @Benchmark
+    public byte[] generateHash() {
+        return Util.generateHash("Passw0rd!x", salt);
+    }
+
+    @Benchmark
+    public byte[] trim() {
+        return Util.trim(padded);
+    }
+}
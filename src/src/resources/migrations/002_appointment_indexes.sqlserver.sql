@@ -0,0 +1,6 @@
+-- show_appointments pages through one user's appointments with
+--     WHERE Caregiver_Name = ? AND Time >= ? ... ORDER BY Time, ID   (or Patient_Name)
+-- Without these indexes both lookups read the whole table. The remaining selected columns are included so the
+-- query is answered from the index alone.
+CREATE INDEX Appointments_Caregiver ON Appointments (Caregiver_Name, Time, ID) INCLUDE (Vaccine_Name, Patient_Name);
+CREATE INDEX Appointments_Patient ON Appointments (Patient_Name, Time, ID) INCLUDE (Vaccine_Name, Caregiver_Name);
@@ -0,0 +1,4 @@
+-- The primary key (Time, Username) already serves search_caregiver_schedule (Time BETWEEN ? AND ?) and
+-- reserve (Time = ? ORDER BY Username). Lookups of one caregiver's availability, and the foreign key check when
+-- a caregiver row changes, go by Username alone and need their own index.
+CREATE INDEX Availabilities_Caregiver ON Availabilities (Username, Time);
@@ -0,0 +1,17 @@
+-- Availabilities and Appointments are booked in slots of Slot_Minutes minutes starting Slot_Start minutes after
+-- midnight. Existing rows become a single slot covering the whole day, which is what they meant so far.
+ALTER TABLE Availabilities ADD COLUMN Slot_Start int DEFAULT 0 NOT NULL;
+ALTER TABLE Availabilities ADD COLUMN Slot_Minutes int DEFAULT 1440 NOT NULL;
+ALTER TABLE Appointments ADD COLUMN Slot_Start int DEFAULT 0 NOT NULL;
+ALTER TABLE Appointments ADD COLUMN Slot_Minutes int DEFAULT 1440 NOT NULL;
+-- a caregiver now has one row per slot; keyed by start time so reserve finds the first free slot of a day (and
+-- search_caregiver_schedule lists a range in order) straight from the key
+ALTER TABLE Availabilities DROP PRIMARY KEY;
+ALTER TABLE Availabilities ADD PRIMARY KEY (Time, Slot_Start, Username);
+-- show_appointments now orders by Time, Slot_Start, ID
+DROP INDEX Appointments_Caregiver;
+DROP INDEX Appointments_Patient;
+CREATE INDEX Appointments_Caregiver ON Appointments
+    (Caregiver_Name, Time, Slot_Start, ID, Slot_Minutes, Vaccine_Name, Patient_Name);
+CREATE INDEX Appointments_Patient ON Appointments
+    (Patient_Name, Time, Slot_Start, ID, Slot_Minutes, Vaccine_Name, Caregiver_Name);
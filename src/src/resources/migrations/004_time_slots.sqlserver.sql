@@ -0,0 +1,19 @@
+-- Availabilities and Appointments are booked in slots of Slot_Minutes minutes starting Slot_Start minutes after
+-- midnight. Existing rows become a single slot covering the whole day, which is what they meant so far.
+ALTER TABLE Availabilities ADD Slot_Start int NOT NULL CONSTRAINT Availabilities_Slot_Start DEFAULT 0;
+ALTER TABLE Availabilities ADD Slot_Minutes int NOT NULL CONSTRAINT Availabilities_Slot_Minutes DEFAULT 1440;
+ALTER TABLE Appointments ADD Slot_Start int NOT NULL CONSTRAINT Appointments_Slot_Start DEFAULT 0;
+ALTER TABLE Appointments ADD Slot_Minutes int NOT NULL CONSTRAINT Appointments_Slot_Minutes DEFAULT 1440;
+-- a caregiver now has one row per slot; keyed by start time so reserve finds the first free slot of a day (and
+-- search_caregiver_schedule lists a range in order) straight from the key. create.sql left the old key unnamed.
+DECLARE @pk sysname = (SELECT name FROM sys.key_constraints
+                       WHERE type = 'PK' AND parent_object_id = OBJECT_ID('Availabilities'))
+EXEC ('ALTER TABLE Availabilities DROP CONSTRAINT ' + @pk);
+ALTER TABLE Availabilities ADD CONSTRAINT Availabilities_Key PRIMARY KEY (Time, Slot_Start, Username);
+-- show_appointments now orders by Time, Slot_Start, ID
+DROP INDEX Appointments_Caregiver ON Appointments;
+DROP INDEX Appointments_Patient ON Appointments;
+CREATE INDEX Appointments_Caregiver ON Appointments (Caregiver_Name, Time, Slot_Start, ID)
+    INCLUDE (Slot_Minutes, Vaccine_Name, Patient_Name);
+CREATE INDEX Appointments_Patient ON Appointments (Patient_Name, Time, Slot_Start, ID)
+    INCLUDE (Slot_Minutes, Vaccine_Name, Caregiver_Name);
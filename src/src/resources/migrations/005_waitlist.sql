@@ -0,0 +1,15 @@
+-- Patients waiting for a caregiver and a dose between two dates, booked by the waitlist matcher as soon as
+-- both are free. Entries are served by Priority (highest first) and then in the order they were added (ID).
+CREATE TABLE Waitlist (
+    ID int,
+    Patient_Name varchar(255) REFERENCES Patients,
+    Vaccine_Name varchar(255),
+    From_Date date,
+    To_Date date,
+    Priority int DEFAULT 0 NOT NULL,
+    PRIMARY KEY (ID)
+);
+
+CREATE INDEX Waitlist_Order ON Waitlist (Priority DESC, ID);
+
+CREATE INDEX Waitlist_Patient ON Waitlist (Patient_Name);
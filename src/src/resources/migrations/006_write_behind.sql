@@ -0,0 +1,7 @@
+-- How far each write-behind log has been written to the database. It is moved forward in the same transaction as
+-- the writes themselves, so records replayed from the log after a crash skip whatever already made it here.
+CREATE TABLE WriteBehindProgress (
+    Log_Name varchar(255),
+    Applied_Sequence bigint NOT NULL,
+    PRIMARY KEY (Log_Name)
+);
@@ -0,0 +1,7 @@
+-- Counters handed out by the scheduler itself where MAX(ID) + 1 of one table is not enough, e.g. appointment IDs
+-- once appointments are spread over several date shards. Next_Value is the next value not handed out yet.
+CREATE TABLE Sequences (
+    Name varchar(255),
+    Next_Value bigint NOT NULL,
+    PRIMARY KEY (Name)
+);
@@ -0,0 +1,3 @@
+-- Appointment IDs come from blocks of the Appointments sequence (see IdAllocator), and whatever is left of a block
+-- when a process stops is skipped, so IDs run ahead of the number of appointments; bigint like the sequence.
+ALTER TABLE Appointments ALTER COLUMN ID bigint;
@@ -0,0 +1,15 @@
+-- Appointment IDs come from blocks of the Appointments sequence (see IdAllocator), and whatever is left of a block
+-- when a process stops is skipped, so IDs run ahead of the number of appointments; bigint like the sequence.
+-- The key and the indexes that have ID in their key have to go while the column changes. create.sql left the key
+-- unnamed.
+DROP INDEX Appointments_Caregiver ON Appointments;
+DROP INDEX Appointments_Patient ON Appointments;
+DECLARE @pk sysname = (SELECT name FROM sys.key_constraints
+                       WHERE type = 'PK' AND parent_object_id = OBJECT_ID('Appointments'))
+EXEC ('ALTER TABLE Appointments DROP CONSTRAINT ' + @pk);
+ALTER TABLE Appointments ALTER COLUMN ID bigint NOT NULL;
+ALTER TABLE Appointments ADD CONSTRAINT Appointments_Key PRIMARY KEY (ID);
+CREATE INDEX Appointments_Caregiver ON Appointments (Caregiver_Name, Time, Slot_Start, ID)
+    INCLUDE (Slot_Minutes, Vaccine_Name, Patient_Name);
+CREATE INDEX Appointments_Patient ON Appointments (Patient_Name, Time, Slot_Start, ID)
+    INCLUDE (Slot_Minutes, Vaccine_Name, Caregiver_Name);
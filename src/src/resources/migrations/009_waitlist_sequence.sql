@@ -0,0 +1,3 @@
+-- Waitlist entry IDs come from the Waitlist sequence (see IdAllocator) instead of MAX(ID) + 1, which two joins at
+-- the same time could both pick; it starts after the entries there are.
+INSERT INTO Sequences (Name, Next_Value) SELECT 'Waitlist', COALESCE(MAX(ID), 0) + 1 FROM Waitlist;
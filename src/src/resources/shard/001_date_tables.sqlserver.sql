@@ -0,0 +1,28 @@
+-- A date shard keeps the availabilities and appointments of the dates it owns, in the shape the global database
+-- has them after migration 8. Caregivers, patients and vaccines are only in the global database, so there are no
+-- foreign keys to them. Shards made before appointment IDs were bigint get there through shard migration 2.
+CREATE TABLE Availabilities (
+    Time date,
+    Username varchar(255),
+    Slot_Start int NOT NULL CONSTRAINT Availabilities_Slot_Start DEFAULT 0,
+    Slot_Minutes int NOT NULL CONSTRAINT Availabilities_Slot_Minutes DEFAULT 1440,
+    CONSTRAINT Availabilities_Key PRIMARY KEY (Time, Slot_Start, Username)
+);
+
+CREATE INDEX Availabilities_Caregiver ON Availabilities (Username, Time);
+
+CREATE TABLE Appointments (
+    ID bigint,
+    Time date,
+    Slot_Start int NOT NULL CONSTRAINT Appointments_Slot_Start DEFAULT 0,
+    Slot_Minutes int NOT NULL CONSTRAINT Appointments_Slot_Minutes DEFAULT 1440,
+    Vaccine_Name varchar(255),
+    Caregiver_Name varchar(255),
+    Patient_Name varchar(255),
+    PRIMARY KEY (ID)
+);
+
+CREATE INDEX Appointments_Caregiver ON Appointments (Caregiver_Name, Time, Slot_Start, ID)
+    INCLUDE (Slot_Minutes, Vaccine_Name, Patient_Name);
+CREATE INDEX Appointments_Patient ON Appointments (Patient_Name, Time, Slot_Start, ID)
+    INCLUDE (Slot_Minutes, Vaccine_Name, Caregiver_Name);
@@ -1,230 +1,390 @@
 package scheduler;
 
+import scheduler.batch.BatchRunner;
+import scheduler.bulk.AccountImporter;
+import scheduler.bulk.BatchAllocator;
+import scheduler.bulk.WaitlistMatcher;
+import scheduler.db.CancellationEngine;
 import scheduler.db.ConnectionManager;
+import scheduler.db.Queries;
+import scheduler.db.Dialect;
+import scheduler.db.ReservationEngine;
+import scheduler.db.ShardRouter;
+import scheduler.db.StorageBackend;
+import scheduler.db.WriteBehindQueue;
+import scheduler.index.Slot;
+import scheduler.journal.EventJournal;
+import scheduler.metrics.LatencyHistogram;
+import scheduler.metrics.Metrics;
 import scheduler.model.Caregiver;
 import scheduler.model.Patient;
+import scheduler.model.Schedule;
+import scheduler.server.SchedulerServer;
 import scheduler.model.Vaccine;
-import scheduler.util.Util;
+import scheduler.util.Config;
+import scheduler.util.PasswordHasher;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Date;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 public class Scheduler {
 
-    // objects to keep track of the currently logged-in user
-    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
-    //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
-
-    private static String[] checks = {"Password is at least 8 characters: ",
+    // checks, patterns and checkPWD are package-private so the benchmarks can reach them
+    static String[] checks = {"Password is at least 8 characters: ",
             "Password contains both uppercase and lowercase letters: ",
             "Password contains a mixture of letters and numbers: ",
             "Password includes at least one special character, from “!”, “@”, “#”, “?”: "};
 
-    private static String[] patterns = {".{8,}", "\\b(?![a-z]+\\b|[A-Z]+\\b)[a-zA-Z]+", "[a-zA-Z][0-9]", "[!@#$?]+"};
+    // longest range upload_availability accepts in one go
+    private static final int MAX_UPLOAD_DAYS = 366;
+
+    // how many appointments show_appointments prints at once, by default and at most
+    private static final int DEFAULT_APPOINTMENT_PAGE = 50;
+    private static final int MAX_APPOINTMENT_PAGE = 1000;
+
+    // where commands that read a file (import_accounts, reserve_batch) may read from; clients of the server can
+    // read no file without it
+    private static final String IMPORT_DIRECTORY = Config.get("ImportDirectory", "");
+
+    // caregivers (comma separated) who may cancel_range for other caregivers and prioritize patients
+    private static final List<String> OPERATORS = Arrays.asList(Config.get("Operators", "").split("\\s*,\\s*"));
+
+    static String[] patterns = {".{8,}", "\\b(?![a-z]+\\b|[A-Z]+\\b)[a-zA-Z]+", "[a-zA-Z][0-9]", "[!@#$?]+"};
 
     public static void main(String[] args) {
-        // printing greetings text
-        System.out.println();
-        System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
-        System.out.println("*** Please enter one of the following commands ***");
-        System.out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
-        System.out.println("> create_caregiver <username> <password>");
-        System.out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
-        System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
-        System.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
-        System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");  // TODO: implement show_appointments (Part 2)
-        System.out.println("> logout");  // TODO: implement logout (Part 2)
-        System.out.println("> quit");
-        System.out.println();
+        int serverPort = -1;
+        String batchSource = null;
+        boolean json = false;
+        for (int i = 0; i < args.length; i++) {
+            // --backend <sqlserver|embedded|embedded:mem|embedded:file:path> overrides the Backend environment variable
+            if (args[i].equals("--backend") && i + 1 < args.length) {
+                System.setProperty(StorageBackend.SETTING, args[++i]);
+            } else if (args[i].equals("--server")) {
+                // --server [port] serves many users over TCP instead of one on the console
+                serverPort = SchedulerServer.DEFAULT_PORT;
+                if (i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                    serverPort = Integer.parseInt(args[++i]);
+                }
+            } else if (args[i].equals("--batch") && i + 1 < args.length) {
+                // --batch <file|-> runs the commands in a file (or stdin) without prompts, see BatchRunner
+                batchSource = args[++i];
+            } else if (args[i].equals("--json")) {
+                json = true;
+            }
+        }
+        // writes an earlier run acknowledged but did not get to the database go there before any new command
+        if (WriteBehindQueue.isEnabled()) {
+            try {
+                WriteBehindQueue.getInstance();
+            } catch (SQLException e) {
+                System.out.println("Could not replay the write-behind log");
+                e.printStackTrace();
+            }
+        }
+        if (batchSource != null) {
+            try {
+                BatchRunner.Summary summary = new BatchRunner(json).run(batchSource);
+                System.err.println(summary);
+            } catch (IOException e) {
+                System.err.println("Could not run batch " + batchSource);
+                e.printStackTrace();
+            }
+            shutdown();
+            return;
+        }
+        if (serverPort >= 0) {
+            try {
+                new SchedulerServer(serverPort).run();
+            } catch (IOException e) {
+                System.out.println("Could not start the server on port " + serverPort);
+                e.printStackTrace();
+            }
+            shutdown();
+            return;
+        }
+
+        Session session = new Session(new PrintWriter(new OutputStreamWriter(System.out), true));
+        printGreeting(session);
 
         // read input from user
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
         while (true) {
-            System.out.print("> ");
+            session.print("> ");
+            session.flush();
             String response = "";
             try {
                 response = r.readLine();
             } catch (IOException e) {
-                System.out.println("Please try again!");
-            }
-            // split the user input by spaces
-            String[] tokens = response.split(" ");
-            // check if input exists
-            if (tokens.length == 0) {
-                System.out.println("Please try again!");
-                continue;
-            }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
+                session.println("Please try again!");
+            }
+            // end of input counts as quit
+            if (response == null) {
+                response = "quit";
+            }
+            if (!execute(session, response)) {
+                shutdown();
                 return;
-            } else {
-                System.out.println("Invalid operation name!");
             }
         }
     }
 
-    private static void createPatient(String[] tokens) {
+    // let queued writes and a waitlist run that is under way finish before the connections go
+    private static void shutdown() {
+        WriteBehindQueue.shutdownIfStarted();
+        WaitlistMatcher.getInstance().shutdown();
+        EventJournal.shutdownIfStarted();
+        ShardRouter.shutdownIfStarted();
+        ConnectionManager.getInstance().shutdown();
+    }
+
+    public static void printGreeting(Session session) {
+        // printing greetings text
+        session.println();
+        session.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        session.println("*** Please enter one of the following commands ***");
+        session.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
+        session.println("> create_caregiver <username> <password>");
+        session.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
+        session.println("> login_caregiver <username> <password>");
+        session.println("> search_caregiver_schedule <date> [<end_date>]");  // TODO: implement search_caregiver_schedule (Part 2)
+        session.println("> reserve <date> [<HH:MM>] <vaccine>");  // TODO: implement reserve (Part 2)
+        session.println("> reserve_batch <file>");
+        session.println("> waitlist [<date> [<end_date>] <vaccine>]");
+        session.println("> prioritize <patient> <priority>");
+        session.println("> upload_availability <date>");
+        session.println("> upload_availability <from> <to> [weekdays-mask]");
+        session.println("> upload_availability <date> <HH:MM>-<HH:MM> <minutes>");
+        session.println("> cancel <appointment_id>");
+        session.println("> cancel_range <caregiver> <from> <to>");
+        session.println("> add_doses <vaccine> <number>");
+        session.println("> show_appointments [--from <date>] [--limit <n>] [--after <id>]");  // TODO: implement show_appointments (Part 2)
+        session.println("> import_accounts <file>");
+        session.println("> logout");  // TODO: implement logout (Part 2)
+        session.println("> quit");
+        session.println();
+        session.flush();
+    }
+
+    // command name -> handler, built once instead of walking an if/else chain for every line
+    private static final Map<String, BiConsumer<Session, String[]>> COMMANDS = new HashMap<>();
+    // command name -> how long it takes, see Metrics
+    private static final Map<String, LatencyHistogram> LATENCIES = new HashMap<>();
+
+    static {
+        COMMANDS.put("create_patient", Scheduler::createPatient);
+        COMMANDS.put("create_caregiver", Scheduler::createCaregiver);
+        COMMANDS.put("login_patient", Scheduler::loginPatient);
+        COMMANDS.put("login_caregiver", Scheduler::loginCaregiver);
+        COMMANDS.put("search_caregiver_schedule", Scheduler::searchCaregiverSchedule);
+        COMMANDS.put("reserve", Scheduler::reserve);
+        COMMANDS.put("reserve_batch", Scheduler::reserveBatch);
+        COMMANDS.put("waitlist", Scheduler::waitlist);
+        COMMANDS.put("prioritize", Scheduler::prioritize);
+        COMMANDS.put("upload_availability", Scheduler::uploadAvailability);
+        COMMANDS.put("cancel", Scheduler::cancel);
+        COMMANDS.put("cancel_range", Scheduler::cancelRange);
+        COMMANDS.put("add_doses", Scheduler::addDoses);
+        COMMANDS.put("show_appointments", Scheduler::showAppointments);
+        COMMANDS.put("import_accounts", Scheduler::importAccounts);
+        COMMANDS.put("logout", Scheduler::logout);
+        for (String name : COMMANDS.keySet()) {
+            LATENCIES.put(name, Metrics.getInstance().command(name));
+        }
+    }
+
+    // run one command line for a session, returns false when the session asked to quit
+    public static boolean execute(Session session, String response) {
+        // split the user input by spaces
+        String[] tokens = response.split(" ");
+        // check if input exists
+        if (tokens.length == 0) {
+            session.println("Please try again!");
+            return true;
+        }
+        // determine which operation to perform
+        String operation = tokens[0];
+        if (operation.equals("quit")) {
+            session.println("Bye!");
+            session.flush();
+            return false;
+        }
+        BiConsumer<Session, String[]> command = COMMANDS.get(operation);
+        if (command != null) {
+            LatencyHistogram latency = LATENCIES.get(operation);
+            long start = System.nanoTime();
+            try {
+                command.accept(session, tokens);
+            } catch (RuntimeException e) {
+                // a bug or input a command does not check must not end the session, on any of the front ends
+                latency.recordError();
+                session.setCommandError(e.toString());
+                e.printStackTrace();
+                session.println("Please try again!");
+            } finally {
+                latency.record(System.nanoTime() - start);
+            }
+        } else {
+            session.println("Invalid operation name!");
+        }
+        session.flush();
+        return true;
+    }
+
+    private static void createPatient(Session session, String[] tokens) {
         // create_patient <username> <password>
         // TODO: Part 1
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            session.println("Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         // check 2: check if the username has been taken already
-        if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again!");
+        if (usernameExistsPatient(session, username)) {
+            session.println("Username taken, try again!");
             return;
         }
 
         //Check 3: Check if password fits requirements
         String[] pwhead = checkPWD(password, checks, patterns);
         if (pwhead[0].equals("f")) {
-            System.out.println("Password did not fit requirements. Try Again!");
-            System.out.println(pwhead[1]);
+            session.println("Password did not fit requirements. Try Again!");
+            session.println(pwhead[1]);
             return;
         }
 
-        byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        PasswordHasher hasher = PasswordHasher.getInstance();
+        byte[] salt = hasher.generateSalt();
+        byte[] hash = hasher.hash(password, salt);
         try {
-            currentPatient = new Patient.PatientBuilder(username, salt, hash).build();
-            currentPatient.saveToDB();
-            System.out.println("Created user " + username);
+            session.setCurrentPatient(new Patient.PatientBuilder(username, salt, hash).build());
+            session.getCurrentPatient().saveToDB();
+            session.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
+            session.println("Failed to create user.");
             e.printStackTrace();
         }
     }
 
-    private static void createCaregiver(String[] tokens) {
+    private static void createCaregiver(Session session, String[] tokens) {
         // create_caregiver <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            session.println("Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         // check 2: check if the username has been taken already
-        if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
+        if (usernameExistsCaregiver(session, username)) {
+            session.println("Username taken, try again!");
             return;
         }
 
         // Check 3: Check if password fits requirements
 //        String[] pwhead = checkPWD(password, checks, patterns);
 //        if (pwhead[0].equals("f")) {
-//            System.out.println("Password did not fit requirements. Try Again!");
-//            System.out.println(pwhead[1]);
+//            session.println("Password did not fit requirements. Try Again!");
+//            session.println(pwhead[1]);
 //            return;
 //        }
 
-        byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        PasswordHasher hasher = PasswordHasher.getInstance();
+        byte[] salt = hasher.generateSalt();
+        byte[] hash = hasher.hash(password, salt);
         // create the caregiver
         try {
-            currentCaregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build();
+            session.setCurrentCaregiver(new Caregiver.CaregiverBuilder(username, salt, hash).build());
             // save to caregiver information to our database
-            currentCaregiver.saveToDB();
-            System.out.println("Created user " + username);
+            session.getCurrentCaregiver().saveToDB();
+            session.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
+            session.println("Failed to create user.");
             e.printStackTrace();
         }
     }
 
-    private static boolean usernameExistsCaregiver(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    private static boolean usernameExistsCaregiver(Session session, String username) {
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = null;
 
-        String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            con = cm.borrowReadConnection();
+            try (PreparedStatement statement = con.prepareStatement(Queries.CAREGIVER_EXISTS)) {
+                statement.setString(1, username);
+                ResultSet resultSet = statement.executeQuery();
+                // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
+                return resultSet.isBeforeFirst();
+            }
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
+            session.println("Error occurred when checking username");
             e.printStackTrace();
         } finally {
-            cm.closeConnection();
+            cm.returnConnection(con);
         }
         return true;
     }
 
-    private static boolean usernameExistsPatient(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    private static boolean usernameExistsPatient(Session session, String username) {
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = null;
 
-        String selectUsername = "SELECT * FROM Patients WHERE Username = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            con = cm.borrowReadConnection();
+            try (PreparedStatement statement = con.prepareStatement(Queries.PATIENT_EXISTS)) {
+                statement.setString(1, username);
+                ResultSet resultSet = statement.executeQuery();
+                // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
+                return resultSet.isBeforeFirst();
+            }
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
+            session.println("Error occurred when checking username");
             e.printStackTrace();
         } finally {
-            cm.closeConnection();
+            cm.returnConnection(con);
         }
         return true;
     }
 
-    private static void loginPatient(String[] tokens) {
+    private static void loginPatient(Session session, String[] tokens) {
         // TODO: Part 1
         // login_patient <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+        if (session.getCurrentCaregiver() != null || session.getCurrentPatient() != null) {
+            session.println("User already logged in.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            session.println("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -234,28 +394,28 @@ public class Scheduler {
         try {
             patient = new Patient.PatientGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
+            session.println("Login failed.");
             e.printStackTrace();
         }
         // check if the login was successful
         if (patient == null) {
-            System.out.println("Login failed.");
+            session.println("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
-            currentPatient = patient;
+            session.println("Logged in as: " + username);
+            session.setCurrentPatient(patient);
         }
     }
 
-    private static void loginCaregiver(String[] tokens) {
+    private static void loginCaregiver(Session session, String[] tokens) {
         // login_caregiver <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+        if (session.getCurrentCaregiver() != null || session.getCurrentPatient() != null) {
+            session.println("User already logged in.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            session.println("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -265,114 +425,476 @@ public class Scheduler {
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
+            session.println("Login failed.");
             e.printStackTrace();
         }
         // check if the login was successful
         if (caregiver == null) {
-            System.out.println("Login failed.");
+            session.println("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
-            currentCaregiver = caregiver;
+            session.println("Logged in as: " + username);
+            session.setCurrentCaregiver(caregiver);
         }
     }
 
-    private static void searchCaregiverSchedule(String[] tokens) {
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+    private static void searchCaregiverSchedule(Session session, String[] tokens) {
+        if (session.getCurrentCaregiver() == null && session.getCurrentPatient() == null) {
+            session.println("Please login first!");
             return;
         }
 
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        // search_caregiver_schedule <date> or search_caregiver_schedule <from> <to>
+        if (tokens.length != 2 && tokens.length != 3) {
+            session.println("Please try again!");
             return;
         }
 
-        String date = tokens[1];
         try {
-            Date d = Date.valueOf(date);
-            obtainSchedule(d);
+            Date from = Date.valueOf(tokens[1]);
+            Date to = tokens.length == 3 ? Date.valueOf(tokens[2]) : from;
+            if (from.after(to)) {
+                session.println("Start date must not be after end date!");
+                return;
+            }
+            if (ChronoUnit.DAYS.between(from.toLocalDate(), to.toLocalDate()) >= MAX_UPLOAD_DAYS) {
+                session.println("Please search at most " + MAX_UPLOAD_DAYS + " days at a time!");
+                return;
+            }
+            obtainSchedule(session, from, to);
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            session.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
-            e.printStackTrace(System.out);
+            session.println("Error occurred when uploading availability");
+            e.printStackTrace();
         }
     }
 
-    private static void reserve(String[] tokens) {
+    private static void reserve(Session session, String[] tokens) {
         // TODO: Part 2
         // check 1: Make sure user logged in as a patient
-        if (currentPatient == null) {
-            System.out.println("Please login as a patient first!");
+        if (session.getCurrentPatient() == null) {
+            session.println("Please login as a patient first!");
             return;
         }
-        // Check 2: The length for tokens need to be exactly 2 tokens
-        if (tokens.length != 3) {
-            System.out.println("Please try again!");
+        // Check 2: The tokens are the date, optionally the start time of a slot, and the vaccine
+        if (tokens.length != 3 && tokens.length != 4) {
+            session.println("Please try again!");
             return;
         }
         String date = tokens[1];
-        String vaccine = tokens[2];
+        String vaccine = tokens[tokens.length - 1];
         try {
             Date d = Date.valueOf(date);
-            reserveAppointment(d, vaccine);
+            int start = tokens.length == 4 ? Slot.parseTime(tokens[2]) : -1;
+            reserveAppointment(session, d, start, vaccine);
+        } catch (IllegalArgumentException e) {
+            session.println("Please try again!");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            session.println("Error occurred when reserving appointment. Please try again!");
+        }
+
+    }
+
+    private static void reserveBatch(Session session, String[] tokens) {
+        // reserve_batch <file>, booking on behalf of patients is for caregivers
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 2) {
+            session.println("Please try again!");
+            return;
+        }
+        File file = importFile(session, tokens[1]);
+        if (file == null) {
+            return;
+        }
+        try (Reader source = new FileReader(file, StandardCharsets.UTF_8)) {
+            BatchAllocator.AllocationResult result = new BatchAllocator().allocate(source);
+            session.println("Reserved " + result.getAssigned().size() + " appointments in " +
+                    TimeUnit.NANOSECONDS.toMillis(result.getElapsedNanos()) + " ms");
+            for (BatchAllocator.Assignment assignment : result.getAssigned()) {
+                Slot slot = assignment.getSlot();
+                session.println("Appointment ID: " + assignment.getAppointmentId() +
+                        " Patient: " + assignment.getPatient() +
+                        " Date: " + assignment.getDate() +
+                        (slot.isWholeDay() ? "" : " Time: " + slot.formatTimes()) +
+                        " Caregiver Username: " + slot.getCaregiver() +
+                        " Vaccine: " + assignment.getVaccine());
+            }
+            if (!result.getUnassigned().isEmpty()) {
+                session.println(result.getUnassigned().size() + " patients were not assigned:");
+                for (BatchAllocator.Unassigned unassigned : result.getUnassigned()) {
+                    session.println(unassigned.toString());
+                }
+            }
+        } catch (FileNotFoundException e) {
+            session.println("Cannot find file " + tokens[1]);
+        } catch (IOException | SQLException e) {
+            session.println("Error occurred when reserving appointments. Please try again!");
+            e.printStackTrace();
+        }
+    }
+
+    private static void waitlist(Session session, String[] tokens) {
+        // waitlist <date> [<end_date>] <vaccine> books the patient as soon as there is room, waitlist alone lists
+        // the patient's entries
+        if (session.getCurrentPatient() == null) {
+            session.println("Please login as a patient first!");
+            return;
+        }
+        if (tokens.length == 1) {
+            showWaitlist(session);
+            return;
+        }
+        if (tokens.length != 3 && tokens.length != 4) {
+            session.println("Please try again!");
+            return;
+        }
+        String vaccine = tokens[tokens.length - 1];
+        Date from;
+        Date to;
+        try {
+            from = Date.valueOf(tokens[1]);
+            to = tokens.length == 4 ? Date.valueOf(tokens[2]) : from;
         } catch (IllegalArgumentException e) {
-            System.out.println("Please try again!");
+            session.println("Please enter a valid date!");
+            return;
+        }
+        if (from.after(to)) {
+            session.println("Start date must not be after end date!");
+            return;
+        }
+        if (to.toLocalDate().isBefore(LocalDate.now())) {
+            session.println("Please choose dates that are not over yet!");
+            return;
+        }
+        if (ChronoUnit.DAYS.between(from.toLocalDate(), to.toLocalDate()) >= MAX_UPLOAD_DAYS) {
+            session.println("Please wait for at most " + MAX_UPLOAD_DAYS + " days at a time!");
+            return;
+        }
+        try {
+            int id = session.getCurrentPatient().joinWaitlist(from, to, vaccine);
+            session.println("Added to the waitlist as entry " + id +
+                    "! You will be booked as soon as a caregiver and a dose are free.");
+            // there may be room already
+            WaitlistMatcher.getInstance().capacityAdded();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            session.println("Please try again!");
+        }
+    }
+
+    private static void showWaitlist(Session session) {
+        String patient = session.getCurrentPatient().getUsername();
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = null;
+
+        try {
+            con = cm.borrowReadConnection();
+            try (PreparedStatement statement = con.prepareStatement(Queries.GET_WAITLIST_OF)) {
+                statement.setString(1, patient);
+                try (ResultSet rs = statement.executeQuery()) {
+                    session.println("Waitlist entries of " + patient + ":");
+                    int shown = 0;
+                    while (rs.next()) {
+                        session.println(rs.getInt("ID") + " " +
+                                rs.getString("Vaccine_Name") + " " +
+                                rs.getDate("From_Date") + " " +
+                                rs.getDate("To_Date"));
+                        shown++;
+                    }
+                    if (shown == 0) {
+                        session.println("Not waiting for anything!");
+                    }
+                }
+            }
         } catch (SQLException e) {
             e.printStackTrace();
-            System.out.println("Error occurred when reserving appointment. Please try again!");
+            session.println("Please try again!");
+        } finally {
+            cm.returnConnection(con);
         }
+    }
 
+    private static void prioritize(Session session, String[] tokens) {
+        // prioritize <patient> <priority>, waitlist entries with a higher priority are booked first
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        if (!isOperator(session)) {
+            session.println("Only operators can change waitlist priorities!");
+            return;
+        }
+        if (tokens.length != 3) {
+            session.println("Please try again!");
+            return;
+        }
+        int priority;
+        try {
+            priority = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException e) {
+            session.println("Please enter a whole number as the priority!");
+            return;
+        }
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = null;
+
+        try {
+            con = cm.borrowConnection();
+            try (PreparedStatement statement = con.prepareStatement(Queries.SET_WAITLIST_PRIORITY)) {
+                statement.setInt(1, priority);
+                statement.setString(2, tokens[1]);
+                int updated = statement.executeUpdate();
+                if (updated == 0) {
+                    session.println(tokens[1] + " is not on the waitlist!");
+                } else {
+                    session.println("Priority of " + updated + " waitlist entries of " + tokens[1] + " set to " +
+                            priority + "!");
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            session.println("Please try again!");
+        } finally {
+            cm.returnConnection(con);
+        }
     }
 
-    private static void uploadAvailability(String[] tokens) {
+    private static void uploadAvailability(Session session, String[] tokens) {
         // upload_availability <date>
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        // upload_availability <date> <HH:MM>-<HH:MM> <minutes> uploads slots of a day
+        if (tokens.length == 4 && tokens[2].contains(":")) {
+            uploadSlots(session, tokens);
+            return;
+        }
+        // upload_availability <from> <to> [weekdays-mask] uploads a whole range at once
+        if (tokens.length == 3 || tokens.length == 4) {
+            uploadAvailabilityRange(session, tokens);
             return;
         }
         // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
         if (tokens.length != 2) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
             return;
         }
         String date = tokens[1];
         try {
             Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            if (session.getCurrentCaregiver().uploadAvailability(d)) {
+                session.println("Availability uploaded!");
+            } else {
+                session.println("That day is already uploaded or booked!");
+            }
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid date!");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            session.println("Please try again!");
+        }
+    }
+
+    private static void uploadAvailabilityRange(Session session, String[] tokens) {
+        // the mask has one character per weekday starting on Monday, e.g. 1111100 for Monday to Friday
+        String mask = tokens.length == 4 ? tokens[3] : "1111111";
+        if (!mask.matches("[01]{7}")) {
+            session.println("Weekdays mask must be 7 digits of 0/1 starting on Monday, e.g. 1111100");
+            return;
+        }
+        List<Date> dates = new ArrayList<>();
+        try {
+            LocalDate from = Date.valueOf(tokens[1]).toLocalDate();
+            LocalDate to = Date.valueOf(tokens[2]).toLocalDate();
+            if (from.isAfter(to)) {
+                session.println("Start date must not be after end date!");
+                return;
+            }
+            if (ChronoUnit.DAYS.between(from, to) >= MAX_UPLOAD_DAYS) {
+                session.println("Please upload at most " + MAX_UPLOAD_DAYS + " days at a time!");
+                return;
+            }
+            for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+                if (mask.charAt(day.getDayOfWeek().getValue() - 1) == '1') {
+                    dates.add(Date.valueOf(day));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid date!");
+            return;
+        }
+        try {
+            Caregiver.UploadResult result = session.getCurrentCaregiver().uploadAvailabilities(dates);
+            session.println("Availability uploaded! Inserted: " + result.getInserted() +
+                    ", skipped (already uploaded or booked): " + result.getSkipped());
+        } catch (SQLException e) {
+            e.printStackTrace();
+            session.println("Please try again!");
+        }
+    }
+
+    private static void uploadSlots(Session session, String[] tokens) {
+        String[] window = tokens[2].split("-");
+        Date d;
+        int from;
+        int to;
+        int minutes;
+        try {
+            d = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid date!");
+            return;
+        }
+        try {
+            if (window.length != 2) {
+                throw new IllegalArgumentException();
+            }
+            from = Slot.parseTime(window[0]);
+            // 24:00 is not a LocalTime, but it is how the end of the day is written
+            to = window[1].equals("24:00") ? Slot.MINUTES_PER_DAY : Slot.parseTime(window[1]);
+            minutes = Integer.parseInt(tokens[3]);
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter the slots as <HH:MM>-<HH:MM> <minutes>, e.g. 09:00-12:00 15");
+            return;
+        }
+        if (minutes < 1 || from + minutes > to) {
+            session.println("The window must hold at least one slot of " + tokens[3] + " minutes!");
+            return;
+        }
+        try {
+            Caregiver.UploadResult result = session.getCurrentCaregiver().uploadSlots(d, from, to, minutes);
+            session.println("Availability uploaded! Inserted: " + result.getInserted() +
+                    ", skipped (overlapping): " + result.getSkipped());
+        } catch (SQLException e) {
+            e.printStackTrace();
+            session.println("Please try again!");
+        }
+    }
+
+    private static void cancel(Session session, String[] tokens) {
+        // cancel <appointment_id>, of one's own appointments
+        if (session.getCurrentCaregiver() == null && session.getCurrentPatient() == null) {
+            session.println("Please login first!");
+            return;
+        }
+        if (tokens.length != 2) {
+            session.println("Please try again!");
+            return;
+        }
+        long id;
+        try {
+            id = Long.parseLong(tokens[1]);
+        } catch (NumberFormatException e) {
+            session.println("Please enter a valid appointment ID!");
+            return;
+        }
+        try {
+            CancellationEngine.Cancelled cancelled = session.getCurrentCaregiver() != null
+                    ? CancellationEngine.getInstance().cancel(id, "Caregiver_Name",
+                            session.getCurrentCaregiver().getUsername())
+                    : CancellationEngine.getInstance().cancel(id, "Patient_Name",
+                            session.getCurrentPatient().getUsername());
+            if (cancelled == null) {
+                session.println("Cannot find appointment " + id + "!");
+            } else {
+                session.println("Appointment ID: " + id + " cancelled!");
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            session.println("Please try again!");
+        }
+    }
+
+    private static void cancelRange(Session session, String[] tokens) {
+        // cancel_range <caregiver> <from> <to>, when a caregiver cannot come
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 4) {
+            session.println("Please try again!");
+            return;
+        }
+        if (!tokens[1].equals(session.getCurrentCaregiver().getUsername()) && !isOperator(session)) {
+            session.println("You can only cancel your own appointments!");
+            return;
+        }
+        Date from;
+        Date to;
+        try {
+            from = Date.valueOf(tokens[2]);
+            to = Date.valueOf(tokens[3]);
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            session.println("Please enter a valid date!");
+            return;
+        }
+        if (from.after(to)) {
+            session.println("Start date must not be after end date!");
+            return;
+        }
+        try {
+            CancellationEngine.RangeResult result = CancellationEngine.getInstance().cancelRange(tokens[1], from, to);
+            StringBuilder doses = new StringBuilder();
+            for (Map.Entry<String, Integer> returned : result.getDosesReturned().entrySet()) {
+                doses.append(doses.length() == 0 ? "" : ", ").append(returned.getKey()).append(' ')
+                     .append(returned.getValue());
+            }
+            session.println("Cancelled " + result.getCancelled().size() + " appointments of " + tokens[1] +
+                    (doses.length() == 0 ? "" : ", doses returned: " + doses) +
+                    ", availability withdrawn: " + result.getSlotsWithdrawn());
+            for (CancellationEngine.Cancelled cancelled : result.getCancelled()) {
+                session.println("Appointment ID: " + cancelled.getAppointmentId() +
+                        " Patient: " + cancelled.getPatient() +
+                        " Date: " + cancelled.getDate() +
+                        " put on the waitlist");
+            }
         } catch (SQLException e) {
-            e.printStackTrace(System.out);
-            System.out.println("Please try again!");
+            e.printStackTrace();
+            session.println("Please try again!");
         }
     }
 
-    private static void cancel(String[] tokens) {
+    // the caregiver logged in to session is one of the Operators
+    private static boolean isOperator(Session session) {
+        return session.getCurrentCaregiver() != null
+                && OPERATORS.contains(session.getCurrentCaregiver().getUsername());
     }
 
-    private static void addDoses(String[] tokens) {
+    private static void addDoses(Session session, String[] tokens) {
         // add_doses <vaccine> <number>
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
             return;
         }
         String vaccineName = tokens[1];
-        int doses = Integer.parseInt(tokens[2]);
+        int doses;
+        try {
+            doses = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException e) {
+            session.println("Please enter a whole number of doses!");
+            return;
+        }
+        if (doses < 0) {
+            session.println("The number of doses must not be negative!");
+            return;
+        }
         Vaccine vaccine = null;
         try {
             vaccine = new Vaccine.VaccineGetter(vaccineName).get();
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
+            session.println("Error occurred when adding doses");
             e.printStackTrace();
         }
         // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
@@ -382,192 +904,331 @@ public class Scheduler {
                 vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
                 vaccine.saveToDB();
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
+                session.println("Error occurred when adding doses");
                 e.printStackTrace();
             }
-        } else {
+        } else if (doses > 0) {
             // if the vaccine is not null, meaning that the vaccine already exists in our table
             try {
                 vaccine.increaseAvailableDoses(doses);
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
+                session.println("Error occurred when adding doses");
                 e.printStackTrace();
             }
         }
-        System.out.println("Doses updated!");
+        session.println("Doses updated!");
     }
 
-    private static void showAppointments(String[] tokens) {
-        if (tokens.length != 1) {
-            System.out.println("Please try again");
+    private static void showAppointments(Session session, String[] tokens) {
+        // show_appointments [--from <date>] [--limit <n>] [--after <id>]
+        if (session.getCurrentCaregiver() == null && session.getCurrentPatient() == null) {
+            session.println("Please login first!");
+            return;
+        }
+        if (tokens.length % 2 != 1) {
+            session.println("Please try again");
             return;
         }
         try {
-            if (currentCaregiver != null) {
-                showCaregiverAppointments(currentCaregiver.getUsername());
-            } else if (currentPatient != null) {
-                showPatientAppointments(currentPatient.getUsername());
-            } else if (currentCaregiver == null && currentPatient != null) {
-                System.out.println("Please login first!");
+            // only upcoming appointments unless asked otherwise
+            Date from = Date.valueOf(LocalDate.now());
+            int limit = DEFAULT_APPOINTMENT_PAGE;
+            long after = 0;
+            for (int i = 1; i < tokens.length; i += 2) {
+                if (tokens[i].equals("--from")) {
+                    from = Date.valueOf(tokens[i + 1]);
+                } else if (tokens[i].equals("--limit")) {
+                    limit = Integer.parseInt(tokens[i + 1]);
+                } else if (tokens[i].equals("--after")) {
+                    after = Long.parseLong(tokens[i + 1]);
+                } else {
+                    session.println("Please try again");
+                    return;
+                }
+            }
+            if (limit < 1 || limit > MAX_APPOINTMENT_PAGE) {
+                session.println("The limit must be between 1 and " + MAX_APPOINTMENT_PAGE + "!");
+                return;
+            }
+            if (session.getCurrentCaregiver() != null) {
+                showCaregiverAppointments(session, session.getCurrentCaregiver().getUsername(), from, after, limit);
+            } else {
+                showPatientAppointments(session, session.getCurrentPatient().getUsername(), from, after, limit);
             }
+        } catch (NumberFormatException e) {
+            session.println("Please try again!");
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            session.println("Please enter a valid date!");
         } catch (SQLException e) {
-            e.printStackTrace(System.out);
-            System.out.println("Please try again!");
+            e.printStackTrace();
+            session.println("Please try again!");
+        }
+    }
+
+    private static void importAccounts(Session session, String[] tokens) {
+        // import_accounts <file>
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 2) {
+            session.println("Please try again!");
+            return;
+        }
+        File file = importFile(session, tokens[1]);
+        if (file == null) {
+            return;
+        }
+        try (Reader source = new FileReader(file, StandardCharsets.UTF_8)) {
+            AccountImporter.ImportResult result = new AccountImporter().importAccounts(source);
+            session.println("Imported " + result.getImported() + " accounts in " +
+                    TimeUnit.NANOSECONDS.toMillis(result.getElapsedNanos()) + " ms (" +
+                    Math.round(result.getAccountsPerSecond()) + " accounts/s)");
+            if (result.getFailed() > 0) {
+                session.println(result.getFailed() + " rows failed:");
+                for (String failure : result.getFailures()) {
+                    session.println(failure);
+                }
+                if (result.getFailed() > result.getFailures().size()) {
+                    session.println("... and " + (result.getFailed() - result.getFailures().size()) + " more");
+                }
+            }
+        } catch (FileNotFoundException e) {
+            session.println("Cannot find file " + tokens[1]);
+        } catch (IOException | SQLException e) {
+            session.println("Error occurred when importing accounts");
+            e.printStackTrace();
         }
     }
 
-    private static void logout(String[] tokens) {
+    // the file a command may read for session, null (after telling the session why) if it may not. With
+    // ImportDirectory set, names are taken relative to it and must not lead out of it; without it, only the
+    // console and batch files may read files.
+    private static File importFile(Session session, String name) {
+        if (IMPORT_DIRECTORY.isEmpty()) {
+            if (session.isRemote()) {
+                session.println("Reading files is not allowed over the network!");
+                return null;
+            }
+            return new File(name);
+        }
+        try {
+            Path directory = Paths.get(IMPORT_DIRECTORY).toRealPath();
+            // the real path, so neither .. nor a link leads out of the directory
+            Path file = directory.resolve(name).toRealPath();
+            if (!file.startsWith(directory)) {
+                session.println("Files can only be read from the import directory!");
+                return null;
+            }
+            return file.toFile();
+        } catch (IOException | InvalidPathException e) {
+            session.println("Cannot find file " + name);
+            return null;
+        }
+    }
+
+    private static void logout(Session session, String[] tokens) {
         if (tokens.length != 1) {
-            System.out.println("Please try again");
+            session.println("Please try again");
             return;
         }
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+        if (session.getCurrentCaregiver() == null && session.getCurrentPatient() == null) {
+            session.println("Please login first!");
             return;
         }
 
-        currentCaregiver = null;
-        currentPatient = null;
-        System.out.println("Successfully Logged out!");
+        session.setCurrentCaregiver(null);
+        session.setCurrentPatient(null);
+        session.println("Successfully Logged out!");
         return;
     }
 
-    public static void obtainSchedule(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    public static void obtainSchedule(Session session, Date d) throws SQLException {
+        obtainSchedule(session, d, d);
+    }
 
-        String getSchedule = "SELECT A.Username, V.Name, V.Doses FROM Availabilities as A, Vaccines as V WHERE A.Time = "+
-                             "? ORDER BY A.username";
+    public static void obtainSchedule(Session session, Date from, Date to) throws SQLException {
+        Schedule schedule = new Schedule.ScheduleGetter(from, to).get();
+        // the session's writer is buffered, so the rows go out together when the command is done
         try {
-            PreparedStatement statement = con.prepareStatement(getSchedule);
-            statement.setDate(1, d);
-            ResultSet rs = statement.executeQuery();
-            System.out.println("Available Caregivers on " + d + ":");
-            if(!rs.isBeforeFirst()) {
-                System.out.println("No Caregivers Available! Try another date!");
-                return;
-            }
-            while(rs.next()){
-                System.out.println(rs.getString("Username") + " " + rs.getString("Name")
-                        + " " + rs.getString("Doses"));
-            }
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+            schedule.print(session.getOut());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
         }
     }
 
-    public static void reserveAppointment(Date d, String vaccine) throws SQLException{
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String caregiver;
-        int doses;
-        int ID;
-
-        String getAvailableInfo = "SELECT TOP 1 A.Username, (SELECT ISNULL((SELECT Doses FROM Vaccines WHERE Name = ?), 0)) as Doses, (SELECT ISNULL(MAX(App.ID), 0) FROM Appointments as App) as ID FROM Availabilities as A WHERE A.Time = ?";
-        String updateTables = "INSERT INTO Appointments VALUES (? , ? , ? , ? , ?); DELETE FROM Availabilities WHERE Username = ? AND Time = ?; UPDATE Vaccines SET Doses = Doses-1 WHERE Name = ?";
-        PreparedStatement statement;
+    public static void reserveAppointment(Session session, Date d, String vaccine) throws SQLException{
+        reserveAppointment(session, d, -1, vaccine);
+    }
 
+    // start is the minute of the day the slot has to start at, or -1 for the earliest free slot
+    public static void reserveAppointment(Session session, Date d, int start, String vaccine) throws SQLException{
         try {
-            statement = con.prepareStatement(getAvailableInfo);
-            statement.setString(1, vaccine);
-            statement.setDate(2, d);
-            ResultSet rs = statement.executeQuery();
-            if(rs.next()) {
-                caregiver = rs.getString("Username");
-                doses = rs.getInt("Doses");
-                ID = rs.getInt("ID") + 1;
+            ReservationEngine.Result result = ReservationEngine.getInstance()
+                    .reserve(d, start, vaccine, session.getCurrentPatient().getUsername());
+            if (result.getStatus() == ReservationEngine.Status.NO_CAREGIVER) {
+                session.println(start < 0 ? "No Caregiver Available for this date!"
+                                          : "No Caregiver Available at " + Slot.formatTime(start) + " on this date!");
+            } else if (result.getStatus() == ReservationEngine.Status.NO_DOSES) {
+                session.println("Not enough available doses of " + vaccine + " are available!");
             } else {
-                System.out.println("No Caregiver Available for this date!");
-                return;
-            }
-            if (doses == 0) {
-                System.out.println("Not enough available doses of " + vaccine + " are available!");
-                return;
+                Slot slot = result.getSlot();
+                session.println("Appointment ID: " + result.getAppointmentId() +
+                        (slot.isWholeDay() ? "" : " Time: " + slot.formatTimes()) +
+                        " Caregiver Username: " + slot.getCaregiver());
             }
-            statement = con.prepareStatement(updateTables);
-            statement.setInt(1, ID);
-            statement.setDate(2, d);
-            statement.setString(3, vaccine);
-            statement.setString(4, caregiver);
-            statement.setString(5, currentPatient.getUsername());
-
-            statement.setString(6, caregiver);
-            statement.setDate(7, d);
-            statement.setString(8, vaccine);
-
-            statement.executeUpdate();
-            System.out.println("Appointment ID: " + ID + " Caregiver Username: " + caregiver);
         }  catch (SQLException e) {
-            System.out.print("Please try again!");
+            session.print("Please try again!");
             e.printStackTrace();
-            //throw new SQLException();
-        } finally {
-            cm.closeConnection();
         }
     }
 
-    public static void showCaregiverAppointments(String caregiver) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    public static void showCaregiverAppointments(Session session, String caregiver) throws SQLException {
+        showCaregiverAppointments(session, caregiver, Date.valueOf(LocalDate.now()), 0, DEFAULT_APPOINTMENT_PAGE);
+    }
+
+    public static void showCaregiverAppointments(Session session, String caregiver, Date from, long after, int limit)
+            throws SQLException {
+        showAppointmentPage(session, "Caregiver_Name", "Patient_Name", caregiver, from, after, limit);
+    }
+
+    public static void showPatientAppointments(Session session, String patient) throws SQLException {
+        showPatientAppointments(session, patient, Date.valueOf(LocalDate.now()), 0, DEFAULT_APPOINTMENT_PAGE);
+    }
+
+    public static void showPatientAppointments(Session session, String patient, Date from, long after, int limit)
+            throws SQLException {
+        showAppointmentPage(session, "Patient_Name", "Caregiver_Name", patient, from, after, limit);
+    }
+
+    // print at most limit of user's appointments on or after from, in (Time, Slot_Start, ID) order, starting after
+    // appointment after if it is not 0. The position is carried over as a key instead of an offset, so every page
+    // costs the same however much history there is before it. With date shards every shard that may hold the page
+    // is asked for it at the same time; they own disjoint dates in order, so their rows are put one after another.
+    private static void showAppointmentPage(Session session, String userColumn, String otherColumn, String user,
+                                            Date from, long after, int limit) throws SQLException {
+        ShardRouter router = ShardRouter.getInstance();
+        Dialect dialect = ConnectionManager.getInstance().getDialect();
 
-        String getAppointments = "SELECT ID, Vaccine_Name, Time, Patient_Name FROM Appointments WHERE Caregiver_Name = ? ORDER BY ID";
+        String getCursor = "SELECT Time, Slot_Start FROM Appointments WHERE ID = ? AND " + userColumn + " = ?";
+        String getAppointments = "SELECT " + dialect.top(limit + 1) + "ID, Vaccine_Name, Time, Slot_Start, " +
+                "Slot_Minutes, " + otherColumn + " FROM Appointments WHERE " + userColumn + " = ? AND Time >= ?" +
+                (after > 0 ? " AND (Time > ? OR (Time = ? AND " +
+                        "(Slot_Start > ? OR (Slot_Start = ? AND ID > ?))))" : "") +
+                " ORDER BY Time, Slot_Start, ID" + dialect.fetchFirst(limit + 1);
         try {
-            PreparedStatement statement = con.prepareStatement(getAppointments);
-            statement.setString(1, caregiver);
-            ResultSet rs = statement.executeQuery();
-            System.out.println("Appointments Scheduled for " + caregiver + ":");
-            if(!rs.isBeforeFirst()) {
-                System.out.println("No Appointments Scheduled!");
-                return;
+            Date cursor = null;
+            int cursorStart = 0;
+            if (after > 0) {
+                // we don't know the date of the appointment, so every shard is asked
+                List<PageRow> found = new ArrayList<>();
+                for (List<PageRow> rows : router.fanOut(router.all(), true, (shard, con) -> {
+                    List<PageRow> rows = new ArrayList<>();
+                    try (PreparedStatement statement = con.prepareStatement(getCursor)) {
+                        statement.setLong(1, after);
+                        statement.setString(2, user);
+                        try (ResultSet rs = statement.executeQuery()) {
+                            if (rs.next()) {
+                                rows.add(new PageRow(after, null, rs.getDate("Time"),
+                                        new Slot(user, rs.getInt("Slot_Start"), 1)));
+                            }
+                        }
+                    }
+                    return rows;
+                })) {
+                    found.addAll(rows);
+                }
+                if (found.isEmpty()) {
+                    session.println("Cannot find appointment " + after + "!");
+                    return;
+                }
+                cursor = found.get(0).date;
+                cursorStart = found.get(0).slot.getStart();
             }
-            while(rs.next()){
-                System.out.println(rs.getInt("ID") + " " +
-                                   rs.getString("Vaccine_Name") + " " +
-                                   rs.getDate("Time") + " " +
-                                   rs.getString("Patient_Name"));
+            Date pageCursor = cursor;
+            int pageCursorStart = cursorStart;
+            Date first = cursor != null && cursor.after(from) ? cursor : from;
+            List<PageRow> page = new ArrayList<>();
+            for (List<PageRow> rows : router.fanOut(router.covering(first, null), true, (shard, con) -> {
+                List<PageRow> rows = new ArrayList<>();
+                try (PreparedStatement statement = con.prepareStatement(getAppointments)) {
+                    // one more row than asked for tells whether there is a next page
+                    statement.setFetchSize(limit + 1);
+                    statement.setString(1, user);
+                    statement.setDate(2, from);
+                    if (pageCursor != null) {
+                        statement.setDate(3, pageCursor);
+                        statement.setDate(4, pageCursor);
+                        statement.setInt(5, pageCursorStart);
+                        statement.setInt(6, pageCursorStart);
+                        statement.setLong(7, after);
+                    }
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            Slot slot = new Slot(rs.getString(otherColumn), rs.getInt("Slot_Start"),
+                                    rs.getInt("Slot_Minutes"));
+                            rows.add(new PageRow(rs.getLong("ID"), rs.getString("Vaccine_Name"), rs.getDate("Time"),
+                                    slot));
+                        }
+                    }
+                }
+                return rows;
+            })) {
+                page.addAll(rows);
+            }
+
+            session.println("Appointments Scheduled for " + user + ":");
+            int shown = 0;
+            long last = 0;
+            for (PageRow row : page) {
+                if (shown == limit) {
+                    session.println("More: show_appointments --from " + from + " --limit " + limit +
+                            " --after " + last);
+                    return;
+                }
+                last = row.id;
+                session.println(last + " " +
+                        row.vaccine + " " +
+                        row.date + " " +
+                        (row.slot.isWholeDay() ? "" : row.slot.formatTimes() + " ") +
+                        row.slot.getCaregiver());
+                shown++;
+            }
+            if (shown == 0) {
+                session.println("No Appointments Scheduled!");
             }
         } catch (SQLException e) {
-            e.printStackTrace(System.out);
-            System.out.println("Please try again!");
-        } finally {
-            cm.closeConnection();
+            e.printStackTrace();
+            session.println("Please try again!");
         }
     }
 
-    public static void showPatientAppointments(String patient) throws SQLException{
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    // one appointment of a page; the slot is named after the other user of the appointment
+    private static class PageRow {
+        private final long id;
+        private final String vaccine;
+        private final Date date;
+        private final Slot slot;
 
-        String getAppointments = "SELECT ID, Vaccine_Name, Time, Caregiver_Name FROM Appointments WHERE Patient_Name = ?";
-        try {
-            PreparedStatement statement = con.prepareStatement(getAppointments);
-            statement.setString(1, patient);
-            ResultSet rs = statement.executeQuery();
-            System.out.println("Appointments Scheduled for " + patient + ":");
-            if(!rs.isBeforeFirst()) {
-                System.out.println("No Appointments Scheduled!");
-                return;
-            }
-            while(rs.next()){
-                System.out.println(rs.getInt("ID") + " " +
-                        rs.getString("Vaccine_Name") + " " +
-                        rs.getDate("Time") + " " +
-                        rs.getString("Caregiver_Name"));
+        private PageRow(long id, String vaccine, Date date, Slot slot) {
+            this.id = id;
+            this.vaccine = vaccine;
+            this.date = date;
+            this.slot = slot;
+        }
+    }
+
+    // the first of the create_patient password rules the password breaks, null if it keeps them all
+    public static String failedPasswordRule(String password) {
+        for (int i = 0; i < checks.length; i++) {
+            if (!Pattern.compile(patterns[i]).matcher(password).find()) {
+                return checks[i].substring(0, checks[i].lastIndexOf(':'));
             }
-        } catch (SQLException e) {
-            e.printStackTrace(System.out);
-            System.out.println("Please try again!");
-        } finally {
-            cm.closeConnection();
         }
+        return null;
     }
 
-    private static String[] checkPWD(String password, String[] checks, String[] patterns) {
+    static String[] checkPWD(String password, String[] checks, String[] patterns) {
         Pattern pattern;
         String response = "";
         String[] header = new String[2];
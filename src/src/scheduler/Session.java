@@ -0,0 +1,106 @@
+package scheduler;
+
+import scheduler.bulk.WaitlistMatcher;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+
+import java.io.PrintWriter;
+import java.util.function.Consumer;
+
+/**
+ * One user's conversation with the scheduler: who is logged in and where the answers go. The console has
+ * a single session, the network server has one per connection.
+ */
+public class Session {
+
+    // objects to keep track of the currently logged-in user
+    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
+    //       since only one user can be logged-in at a time per session
+    private Caregiver currentCaregiver = null;
+    private Patient currentPatient = null;
+
+    private final PrintWriter out;
+    // the unexpected error the last command ran into, if it ran into one
+    private String commandError = null;
+    // a client of the network server rather than the console or a batch file
+    private final boolean remote;
+    // where the waitlist matcher reports bookings for the logged-in patient, it runs on a thread of its own
+    private final Consumer<String> inbox = this::push;
+
+    public Session(PrintWriter out) {
+        this(out, false);
+    }
+
+    public Session(PrintWriter out, boolean remote) {
+        this.out = out;
+        this.remote = remote;
+    }
+
+    public boolean isRemote() {
+        return remote;
+    }
+
+    public Caregiver getCurrentCaregiver() {
+        return currentCaregiver;
+    }
+
+    public void setCurrentCaregiver(Caregiver currentCaregiver) {
+        this.currentCaregiver = currentCaregiver;
+    }
+
+    public Patient getCurrentPatient() {
+        return currentPatient;
+    }
+
+    public void setCurrentPatient(Patient currentPatient) {
+        WaitlistMatcher matcher = WaitlistMatcher.getInstance();
+        if (this.currentPatient != null) {
+            matcher.unsubscribe(this.currentPatient.getUsername(), inbox);
+        }
+        this.currentPatient = currentPatient;
+        if (currentPatient != null) {
+            matcher.subscribe(currentPatient.getUsername(), inbox);
+        }
+    }
+
+    public void setCommandError(String commandError) {
+        this.commandError = commandError;
+    }
+
+    // the error of the last command, and forget it
+    public String takeCommandError() {
+        String error = commandError;
+        commandError = null;
+        return error;
+    }
+
+    public boolean isLoggedIn() {
+        return currentCaregiver != null || currentPatient != null;
+    }
+
+    public PrintWriter getOut() {
+        return out;
+    }
+
+    public void println() {
+        out.println();
+    }
+
+    public void println(String line) {
+        out.println(line);
+    }
+
+    public void print(String text) {
+        out.print(text);
+    }
+
+    public void flush() {
+        out.flush();
+    }
+
+    // a line that is not the answer to a command, written at once
+    public void push(String line) {
+        out.println(line);
+        out.flush();
+    }
+}
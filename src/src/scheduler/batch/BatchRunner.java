@@ -0,0 +1,308 @@
+package scheduler.batch;
+
+import scheduler.Scheduler;
+import scheduler.Session;
+import scheduler.util.Config;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs scheduler commands from a file or standard input without a banner or prompts.
+ *
+ * Every line is one console command. Blank lines and lines starting with '#' are skipped. A line may start
+ * with "@&lt;name&gt; " to run in the session called name instead of the default one, so a log of many users'
+ * traffic can be replayed as it happened:
+ * <pre>
+ *     @alice login_patient alice Secret#123
+ *     @bob login_patient bob Secret#456
+ *     @alice reserve 2024-05-01 Pfizer
+ *     @bob reserve 2024-05-01 Moderna
+ * </pre>
+ * Commands of one session run one after another, in file order, because each may depend on what the one before
+ * it did (a login, a reservation). Different named sessions share nothing but the database, so their commands run
+ * at the same time, each session on its own virtual thread, while the file is still being read. At most
+ * BatchWindow commands are in flight; the answers are written in file order no matter which finished first.
+ * Lines without a name run in the default session and are barriers: they start once every earlier line is done
+ * and no later line starts before they are, which is the place for setup such as creating accounts.
+ *
+ * Answers go through one large buffer instead of being flushed line by line, either exactly as the console would
+ * print them or, with json set, as one JSON object per command:
+ * <pre>
+ *     {"line":3,"session":"alice","command":"reserve 2024-05-01 Pfizer","output":"Appointment ID: 1 ...\n"}
+ * </pre>
+ * "quit" in the default session ends the batch, in a named session it ends only that session; a later line
+ * for the same name starts a new one.
+ */
+public class BatchRunner {
+
+    private static final String DEFAULT_SESSION = "";
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private final boolean json;
+    private final int window = Math.max(1, Config.getInt("BatchWindow", 1024));
+
+    public BatchRunner(boolean json) {
+        this.json = json;
+    }
+
+    // source is a file name, or "-" for standard input; answers go to standard output
+    public Summary run(String source) throws IOException {
+        Reader in = source.equals("-")
+                ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                : new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8);
+        // straight to the file descriptor, System.out would flush on every line
+        Writer out = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8);
+        try (Reader r = in) {
+            return run(r, out);
+        }
+    }
+
+    public Summary run(Reader source, Writer destination) throws IOException {
+        long start = System.nanoTime();
+        Map<String, Lane> lanes = new HashMap<>();
+        List<Lane> started = new ArrayList<>();
+        Deque<Future<Answer>> pending = new ArrayDeque<>();
+        long commands = 0;
+        long errors = 0;
+
+        BufferedWriter out = new BufferedWriter(destination, OUTPUT_BUFFER_SIZE);
+        try (BufferedReader reader = new BufferedReader(source, OUTPUT_BUFFER_SIZE)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String command = line.trim();
+                if (command.isEmpty() || command.charAt(0) == '#') {
+                    continue;
+                }
+                String name = DEFAULT_SESSION;
+                if (command.charAt(0) == '@') {
+                    int space = command.indexOf(' ');
+                    if (space < 0) {
+                        continue;
+                    }
+                    name = command.substring(1, space);
+                    command = command.substring(space + 1).trim();
+                }
+                Lane lane = lanes.get(name);
+                if (lane == null) {
+                    lane = new Lane(name);
+                    lanes.put(name, lane);
+                    started.add(lane);
+                }
+                if (name.equals(DEFAULT_SESSION)) {
+                    // a barrier: wait for everything before it, and let nothing after it start until it is done
+                    while (!pending.isEmpty()) {
+                        errors += write(out, pending.removeFirst());
+                    }
+                    errors += write(out, lane.submit(lineNumber, command));
+                } else {
+                    // keep the number of unwritten answers bounded, whatever the speed of the slowest session
+                    if (pending.size() >= window) {
+                        errors += write(out, pending.removeFirst());
+                    }
+                    pending.addLast(lane.submit(lineNumber, command));
+                }
+                commands++;
+
+                boolean quit = command.equals("quit") || command.startsWith("quit ");
+                if (quit) {
+                    lanes.remove(name);
+                    if (name.equals(DEFAULT_SESSION)) {
+                        break;
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                errors += write(out, pending.removeFirst());
+            }
+        } finally {
+            for (Lane lane : started) {
+                lane.close();
+            }
+            out.flush();
+        }
+        return new Summary(commands, errors, started.size(), System.nanoTime() - start);
+    }
+
+    // returns 1 if the command failed with an unexpected error
+    private int write(BufferedWriter out, Future<Answer> future) throws IOException {
+        Answer answer;
+        try {
+            answer = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a command");
+        } catch (ExecutionException e) {
+            throw new IOException("Command failed", e.getCause());
+        }
+        if (json) {
+            out.write("{\"line\":");
+            out.write(Integer.toString(answer.line));
+            out.write(",\"session\":");
+            writeJsonString(out, answer.session);
+            out.write(",\"command\":");
+            writeJsonString(out, answer.command);
+            out.write(",\"output\":");
+            writeJsonString(out, answer.output);
+            if (answer.error != null) {
+                out.write(",\"error\":");
+                writeJsonString(out, answer.error);
+            }
+            out.write("}\n");
+        } else {
+            out.write(answer.output);
+        }
+        return answer.error == null ? 0 : 1;
+    }
+
+    private static void writeJsonString(Writer out, String s) throws IOException {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    // one session and the single virtual thread that runs its commands in order
+    private static class Lane {
+        private final String name;
+        private final StringWriter buffer = new StringWriter();
+        private final Session session = new Session(new PrintWriter(buffer));
+        private final ExecutorService executor;
+
+        private Lane(String name) {
+            this.name = name;
+            this.executor = Executors.newSingleThreadExecutor(
+                    Thread.ofVirtual().name("batch-" + (name.isEmpty() ? "default" : name)).factory());
+        }
+
+        private Future<Answer> submit(int line, String command) {
+            return executor.submit(() -> {
+                if (!Scheduler.execute(session, command)) {
+                    // nothing more is pushed to a session that quit
+                    session.setCurrentPatient(null);
+                }
+                String error = session.takeCommandError();
+                String output;
+                // the waitlist matcher pushes from its own thread, through a PrintWriter that writes holding the
+                // buffer, so a push lands wholly in this answer or wholly in the next one
+                synchronized (buffer) {
+                    output = buffer.toString();
+                    buffer.getBuffer().setLength(0);
+                }
+                return new Answer(line, name, command, output, error);
+            });
+        }
+
+        private void close() {
+            executor.shutdownNow();
+            session.setCurrentPatient(null);
+        }
+    }
+
+    private static class Answer {
+        private final int line;
+        private final String session;
+        private final String command;
+        private final String output;
+        private final String error;
+
+        private Answer(int line, String session, String command, String output, String error) {
+            this.line = line;
+            this.session = session;
+            this.command = command;
+            this.output = output;
+            this.error = error;
+        }
+    }
+
+    public static class Summary {
+        private final long commands;
+        private final long errors;
+        private final int sessions;
+        private final long elapsedNanos;
+
+        private Summary(long commands, long errors, int sessions, long elapsedNanos) {
+            this.commands = commands;
+            this.errors = errors;
+            this.sessions = sessions;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getCommands() {
+            return commands;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public int getSessions() {
+            return sessions;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getCommandsPerSecond() {
+            return elapsedNanos == 0 ? 0 : commands * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "BatchSummary{" +
+                    "commands=" + commands +
+                    ", errors=" + errors +
+                    ", sessions=" + sessions +
+                    ", commandsPerSecond=" + Math.round(getCommandsPerSecond()) +
+                    '}';
+        }
+    }
+}
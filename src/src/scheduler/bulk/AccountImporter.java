@@ -0,0 +1,305 @@
+package scheduler.bulk;
+
+import scheduler.Scheduler;
+import scheduler.db.ConnectionManager;
+import scheduler.db.Queries;
+import scheduler.util.PasswordHasher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Creates patient and caregiver accounts from a CSV file with lines of the form
+ * <pre>
+ *     patient,&lt;username&gt;,&lt;password&gt;
+ *     caregiver,&lt;username&gt;,&lt;password&gt;
+ * </pre>
+ * (an optional "type,username,password" header and blank lines are ignored). Patient passwords have to meet the
+ * rules create_patient enforces.
+ *
+ * The file is read one line at a time. Salts and hashes are computed on the {@link PasswordHasher} threads, and a
+ * single writer inserts the hashed accounts into Patients and Caregivers in batches of BATCH_SIZE rows, one
+ * transaction per batch. Only a bounded number of accounts is in flight at any time, so memory use does not
+ * grow with the size of the file. Rows that cannot be imported (malformed lines, weak patient passwords, taken
+ * usernames) are reported back, the rest of the file is still imported.
+ */
+public class AccountImporter {
+
+    private static final int BATCH_SIZE = 500;
+    // failures beyond this are only counted, not kept
+    private static final int MAX_REPORTED_FAILURES = 1000;
+
+    private final int maxInFlight;
+
+    public AccountImporter() {
+        this.maxInFlight = Math.max(BATCH_SIZE * 2, Runtime.getRuntime().availableProcessors() * 64);
+    }
+
+    public ImportResult importAccounts(Reader source) throws IOException, SQLException {
+        long start = System.nanoTime();
+        Report report = new Report();
+        BlockingQueue<Account> hashed = new ArrayBlockingQueue<>(maxInFlight + 1);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        // separate from inFlight, which is only given back once an account is written
+        Semaphore hashing = new Semaphore(maxInFlight);
+        PasswordHasher hasher = PasswordHasher.getInstance();
+        Writer writer = new Writer(hashed, inFlight, report);
+        Thread writerThread = new Thread(writer, "import-writer");
+        writerThread.start();
+
+        int lineNumber = 0;
+        try (BufferedReader reader = new BufferedReader(source)) {
+            String line;
+            // stop reading early if the writer has given up
+            while (writer.error == null && (line = reader.readLine()) != null) {
+                lineNumber++;
+                Account account = parse(lineNumber, line, report);
+                if (account == null) {
+                    continue;
+                }
+                inFlight.acquire();
+                hashing.acquire();
+                account.salt = hasher.generateSalt();
+                hasher.hashAsync(account.password, account.salt).whenComplete((hash, e) -> {
+                    if (e != null) {
+                        report.fail(account.line, account.username, "could not hash password");
+                        inFlight.release();
+                    } else {
+                        account.hash = hash;
+                        hashed.add(account);
+                    }
+                    hashing.release();
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted at line " + lineNumber);
+        } finally {
+            try {
+                // wait for the last hashes before telling the writer there is nothing more to come
+                hashing.acquire(maxInFlight);
+                hashed.put(Account.END);
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writer.error != null) {
+            throw writer.error;
+        }
+        return new ImportResult(report.imported, report.failed, report.failures, System.nanoTime() - start);
+    }
+
+    private static Account parse(int lineNumber, String line, Report report) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || (lineNumber == 1 && trimmed.toLowerCase().startsWith("type,"))) {
+            return null;
+        }
+        String[] fields = trimmed.split(",", -1);
+        if (fields.length != 3) {
+            report.fail(lineNumber, null, "expected type,username,password");
+            return null;
+        }
+        String type = fields[0].trim().toLowerCase();
+        String username = fields[1].trim();
+        String password = fields[2];
+        if (!type.equals("patient") && !type.equals("caregiver")) {
+            // nothing of a line that is not an account is echoed, the file may be anything
+            report.fail(lineNumber, null, "unknown account type");
+            return null;
+        }
+        if (username.isEmpty() || password.isEmpty() || username.contains(" ") || password.contains(" ")) {
+            report.fail(lineNumber, null, "username and password must be non-empty and contain no spaces");
+            return null;
+        }
+        String rule = type.equals("patient") ? Scheduler.failedPasswordRule(password) : null;
+        if (rule != null) {
+            report.fail(lineNumber, username, "password does not meet the rule: " + rule);
+            return null;
+        }
+        return new Account(lineNumber, type.equals("patient"), username, password);
+    }
+
+    // takes hashed accounts off the queue and writes them in batches
+    private static class Writer implements Runnable {
+        private final BlockingQueue<Account> hashed;
+        private final Semaphore inFlight;
+        private final Report report;
+        private final List<Account> patients = new ArrayList<>();
+        private final List<Account> caregivers = new ArrayList<>();
+        private volatile SQLException error = null;
+
+        private Writer(BlockingQueue<Account> hashed, Semaphore inFlight, Report report) {
+            this.hashed = hashed;
+            this.inFlight = inFlight;
+            this.report = report;
+        }
+
+        @Override
+        public void run() {
+            boolean ended = false;
+            try {
+                while (true) {
+                    Account account = hashed.take();
+                    if (account == Account.END) {
+                        ended = true;
+                        break;
+                    }
+                    List<Account> batch = account.patient ? patients : caregivers;
+                    batch.add(account);
+                    if (batch.size() >= BATCH_SIZE) {
+                        flush(batch, account.patient ? Queries.ADD_PATIENT : Queries.ADD_CAREGIVER);
+                    }
+                }
+                flush(patients, Queries.ADD_PATIENT);
+                flush(caregivers, Queries.ADD_CAREGIVER);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (SQLException e) {
+                error = e;
+                // give back everything we were holding and keep draining so the reader is never blocked
+                inFlight.release(patients.size() + caregivers.size());
+                if (!ended) {
+                    drain();
+                }
+            }
+        }
+
+        private void flush(List<Account> batch, String sql) throws SQLException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            ConnectionManager cm = ConnectionManager.getInstance();
+            Connection con = cm.borrowConnection();
+            try {
+                con.setAutoCommit(false);
+                try (PreparedStatement statement = con.prepareStatement(sql)) {
+                    for (Account account : batch) {
+                        bind(statement, account);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    con.commit();
+                    report.imported += batch.size();
+                } catch (BatchUpdateException e) {
+                    // some row in the batch was rejected, redo it row by row to find out which
+                    con.rollback();
+                    insertOneByOne(con, batch, sql);
+                }
+            } finally {
+                cm.returnConnection(con);
+            }
+            inFlight.release(batch.size());
+            batch.clear();
+        }
+
+        private void insertOneByOne(Connection con, List<Account> batch, String sql) throws SQLException {
+            con.setAutoCommit(true);
+            try (PreparedStatement statement = con.prepareStatement(sql)) {
+                for (Account account : batch) {
+                    try {
+                        bind(statement, account);
+                        statement.executeUpdate();
+                        report.imported++;
+                    } catch (SQLException e) {
+                        report.fail(account.line, account.username, "could not be saved, username may be taken");
+                    }
+                }
+            }
+        }
+
+        private void bind(PreparedStatement statement, Account account) throws SQLException {
+            statement.setString(1, account.username);
+            statement.setBytes(2, account.salt);
+            statement.setBytes(3, account.hash);
+        }
+
+        private void drain() {
+            try {
+                while (hashed.take() != Account.END) {
+                    inFlight.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Account {
+        private static final Account END = new Account(0, false, null, null);
+
+        private final int line;
+        private final boolean patient;
+        private final String username;
+        private final String password;
+        private byte[] salt;
+        private byte[] hash;
+
+        private Account(int line, boolean patient, String username, String password) {
+            this.line = line;
+            this.patient = patient;
+            this.username = username;
+            this.password = password;
+        }
+    }
+
+    // imported is only written by the writer thread, failures come from the reader, hashers and writer
+    private static class Report {
+        private long imported = 0;
+        private long failed = 0;
+        private final List<String> failures = new ArrayList<>();
+
+        private synchronized void fail(int line, String username, String reason) {
+            failed++;
+            if (failures.size() < MAX_REPORTED_FAILURES) {
+                failures.add("line " + line + (username == null ? "" : " (" + username + ")") + ": " + reason);
+            }
+        }
+    }
+
+    public static class ImportResult {
+        private final long imported;
+        private final long failed;
+        private final List<String> failures;
+        private final long elapsedNanos;
+
+        private ImportResult(long imported, long failed, List<String> failures, long elapsedNanos) {
+            this.imported = imported;
+            this.failed = failed;
+            this.failures = new ArrayList<>(failures);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        // the first failures, one message per rejected row
+        public List<String> getFailures() {
+            return Collections.unmodifiableList(failures);
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getAccountsPerSecond() {
+            return elapsedNanos == 0 ? 0 : imported * 1e9 / elapsedNanos;
+        }
+    }
+}
@@ -0,0 +1,677 @@
+package scheduler.bulk;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.IdAllocator;
+import scheduler.db.Queries;
+import scheduler.db.ReservationEngine;
+import scheduler.db.Shard;
+import scheduler.db.ShardRouter;
+import scheduler.index.AvailabilityIndex;
+import scheduler.index.Slot;
+import scheduler.journal.EventJournal;
+import scheduler.util.Config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Books many patients at once, e.g. for a clinic event, from a CSV file with lines of the form
+ * <pre>
+ *     &lt;patient&gt;,&lt;vaccine&gt;,&lt;date&gt;[,&lt;date&gt;...]
+ * </pre>
+ * where the dates are the days the patient can come, most preferred first (an optional
+ * "patient,vaccine,dates" header and blank lines are ignored).
+ *
+ * Instead of one reservation per patient, the availabilities between the earliest and latest requested date and
+ * the vaccine inventory are read once, and patients are matched to days in memory: every free {@link Slot} of a
+ * day takes one patient, every patient may only go to one of their own dates and only as many patients as there
+ * are doses get a vaccine. Patients are taken in file order; each gets the first of their dates that still has a
+ * free slot, and if none has, patients already placed on one of their dates are moved to another of their own
+ * dates to make room (an augmenting path, as in bipartite matching). So the number of patients booked is as high
+ * as the slots allow, and when there are more patients than slots or doses, the earlier lines win. The patients
+ * of a day get its slots earliest first.
+ *
+ * The result is written in one transaction: the claimed availabilities are deleted, the doses taken and the
+ * appointments inserted, each as one JDBC batch. Requests that come from the waitlist (see {@link WaitlistMatcher})
+ * leave it in the same transaction. If someone else booked one of the slots in the meantime, the
+ * transaction is rolled back and the whole allocation is redone on fresh data, up to ReserveRetries times.
+ *
+ * The appointments' IDs are taken from the {@link IdAllocator} as one block up front. With date shards (see
+ * {@link ShardRouter}) the free slots are read from every shard the dates fall in. Each date shard gets a
+ * transaction of its own for its days' slots and appointments, the global shard one for its days, the doses and
+ * the waitlist; the date shards are committed after the global shard. A date shard that fails to commit gets its
+ * doses back, and its waitlist entries back under their old IDs so they keep their place, and its lines are
+ * reported as not booked.
+ */
+public class BatchAllocator {
+
+    private final int maxAttempts = Math.max(1, Config.getInt("ReserveRetries", 5));
+
+    public AllocationResult allocate(Reader source) throws IOException, SQLException {
+        List<Unassigned> rejected = new ArrayList<>();
+        List<Request> requests = parse(source, rejected);
+        return allocate(requests, rejected);
+    }
+
+    // requests must be in priority order
+    AllocationResult allocate(List<Request> requests) throws SQLException {
+        return allocate(requests, new ArrayList<>());
+    }
+
+    // requests must be in priority order, rejected holds the lines that could not be read
+    private AllocationResult allocate(List<Request> requests, List<Unassigned> rejected) throws SQLException {
+        long start = System.nanoTime();
+        List<Request> known = dropUnknownPatients(requests, rejected);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Plan plan = solve(known);
+                if (commit(plan)) {
+                    for (Assignment assignment : plan.assigned) {
+                        AvailabilityIndex.getInstance().removed(assignment.getDate(), assignment.getSlot());
+                        EventJournal.reserved(assignment.getAppointmentId(), assignment.getDate(),
+                                assignment.getSlot(), assignment.getVaccine(), assignment.getPatient());
+                    }
+                    List<Unassigned> unassigned = new ArrayList<>(rejected);
+                    unassigned.addAll(plan.unassigned);
+                    unassigned.sort((a, b) -> Integer.compare(a.line, b.line));
+                    return new AllocationResult(plan.assigned, unassigned, System.nanoTime() - start);
+                }
+                // a slot or a dose we counted on was taken by someone else
+            } catch (SQLException e) {
+                if (!ReservationEngine.isRetryable(e) || attempt >= maxAttempts) {
+                    throw e;
+                }
+            }
+            if (attempt >= maxAttempts) {
+                throw new SQLException("Could not commit the batch allocation after " + attempt + " attempts");
+            }
+            ReservationEngine.backOff(attempt);
+        }
+    }
+
+    private static List<Request> parse(Reader source, List<Unassigned> rejected) throws IOException {
+        List<Request> requests = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(source)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || (lineNumber == 1 && trimmed.toLowerCase().startsWith("patient,"))) {
+                    continue;
+                }
+                String[] fields = trimmed.split(",");
+                if (fields.length < 3 || fields[0].trim().isEmpty() || fields[1].trim().isEmpty()) {
+                    rejected.add(new Unassigned(lineNumber, null, "expected patient,vaccine,date[,date...]"));
+                    continue;
+                }
+                String patient = fields[0].trim();
+                // duplicates are dropped, the first mention keeps its place in the preferences
+                Set<LocalDate> dates = new LinkedHashSet<>();
+                try {
+                    for (int i = 2; i < fields.length; i++) {
+                        dates.add(Date.valueOf(fields[i].trim()).toLocalDate());
+                    }
+                } catch (IllegalArgumentException e) {
+                    rejected.add(new Unassigned(lineNumber, patient, "dates must be written as yyyy-mm-dd"));
+                    continue;
+                }
+                requests.add(new Request(lineNumber, 0, patient, fields[1].trim(), new ArrayList<>(dates)));
+            }
+        }
+        return requests;
+    }
+
+    // appointments must name an existing patient, check them all up front instead of failing the whole batch
+    private static List<Request> dropUnknownPatients(List<Request> requests, List<Unassigned> rejected)
+            throws SQLException {
+        List<String> usernames = new ArrayList<>();
+        for (Request request : requests) {
+            usernames.add(request.patient);
+        }
+        Set<String> existing = new HashSet<>();
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        try (PreparedStatement statement = con.prepareStatement(Queries.FIND_PATIENTS)) {
+            for (int from = 0; from < usernames.size(); from += Queries.FIND_PATIENTS_SIZE) {
+                for (int i = 0; i < Queries.FIND_PATIENTS_SIZE; i++) {
+                    int index = from + i;
+                    statement.setString(i + 1, index < usernames.size() ? usernames.get(index) : null);
+                }
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        existing.add(rs.getString("Username"));
+                    }
+                }
+            }
+        } finally {
+            cm.returnConnection(con);
+        }
+        List<Request> known = new ArrayList<>();
+        for (Request request : requests) {
+            if (existing.contains(request.patient)) {
+                known.add(request);
+            } else {
+                rejected.add(new Unassigned(request.line, request.patient, "no such patient"));
+            }
+        }
+        return known;
+    }
+
+    private static Plan solve(List<Request> requests) throws SQLException {
+        Plan plan = new Plan();
+        if (requests.isEmpty()) {
+            return plan;
+        }
+        LocalDate first = null;
+        LocalDate last = null;
+        for (Request request : requests) {
+            for (LocalDate d : request.dates) {
+                first = first == null || d.isBefore(first) ? d : first;
+                last = last == null || d.isAfter(last) ? d : last;
+            }
+        }
+
+        // in start order, see Queries.GET_SCHEDULE; shards own disjoint dates, so their days are simply put together
+        Map<LocalDate, List<Slot>> slots = new TreeMap<>();
+        Date from = Date.valueOf(first);
+        Date to = Date.valueOf(last);
+        ShardRouter router = ShardRouter.getInstance();
+        for (Map<LocalDate, List<Slot>> days : router.fanOut(router.covering(from, to), false, (shard, con) -> {
+            Map<LocalDate, List<Slot>> free = new HashMap<>();
+            try (PreparedStatement statement = con.prepareStatement(Queries.GET_SCHEDULE)) {
+                statement.setDate(1, from);
+                statement.setDate(2, to);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        Slot slot = new Slot(rs.getString("Username"), rs.getInt("Slot_Start"),
+                                rs.getInt("Slot_Minutes"));
+                        free.computeIfAbsent(rs.getDate("Time").toLocalDate(), d -> new ArrayList<>()).add(slot);
+                    }
+                }
+            }
+            return free;
+        })) {
+            slots.putAll(days);
+        }
+        Map<String, Integer> doses = new HashMap<>();
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        try (PreparedStatement statement = con.prepareStatement(Queries.GET_INVENTORY);
+             ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+                doses.put(rs.getString("Name"), rs.getInt("Doses"));
+            }
+        } finally {
+            cm.returnConnection(con);
+        }
+
+        Matching matching = new Matching(slots);
+        for (Request request : requests) {
+            Integer left = doses.get(request.vaccine);
+            if (left == null) {
+                plan.unassigned.add(new Unassigned(request.line, request.patient,
+                        "no such vaccine " + request.vaccine));
+            } else if (left <= 0) {
+                plan.unassigned.add(new Unassigned(request.line, request.patient,
+                        "not enough doses of " + request.vaccine));
+            } else if (matching.place(request)) {
+                doses.put(request.vaccine, left - 1);
+            } else {
+                plan.unassigned.add(new Unassigned(request.line, request.patient,
+                        "no caregiver available on the requested dates"));
+            }
+        }
+
+        // every free slot of a day takes at most one of that day's patients
+        for (Map.Entry<LocalDate, List<Request>> day : matching.placed.entrySet()) {
+            List<Slot> available = slots.get(day.getKey());
+            List<Request> patients = day.getValue();
+            for (int i = 0; i < patients.size(); i++) {
+                Request request = patients.get(i);
+                plan.assigned.add(new Assignment(request.line, request.waitlistId, request.patient, request.vaccine,
+                        Date.valueOf(day.getKey()), available.get(i)));
+            }
+        }
+        plan.assigned.sort((a, b) -> Integer.compare(a.line, b.line));
+        return plan;
+    }
+
+    // returns false, with nothing written, if a slot or a dose is no longer there
+    private static boolean commit(Plan plan) throws SQLException {
+        if (plan.assigned.isEmpty()) {
+            return true;
+        }
+        ShardRouter router = ShardRouter.getInstance();
+        Map<Shard, List<Assignment>> byShard = new LinkedHashMap<>();
+        for (Assignment assignment : plan.assigned) {
+            byShard.computeIfAbsent(router.forDate(assignment.date), k -> new ArrayList<>()).add(assignment);
+        }
+        // one block of IDs for the whole batch, taken before borrowing as it may need a connection of its own
+        long id = IdAllocator.getInstance().next(plan.assigned.size());
+        for (Assignment assignment : plan.assigned) {
+            assignment.appointmentId = id++;
+        }
+        // the date shards whose transaction is under way
+        Map<Shard, Connection> open = new LinkedHashMap<>();
+        ConnectionManager cm = router.global().getPool();
+        Connection con = cm.borrowConnection();
+        try {
+            con.setAutoCommit(false);
+            for (Map.Entry<Shard, List<Assignment>> shard : byShard.entrySet()) {
+                if (shard.getKey().isGlobal()) {
+                    continue;
+                }
+                Connection shardCon = shard.getKey().getPool().borrowConnection();
+                open.put(shard.getKey(), shardCon);
+                shardCon.setAutoCommit(false);
+                if (!book(shardCon, shard.getValue())) {
+                    rollback(con, open);
+                    return false;
+                }
+            }
+            List<Assignment> global = byShard.getOrDefault(router.global(), Collections.emptyList());
+            if (!book(con, global) || !takeDoses(con, plan.assigned)) {
+                rollback(con, open);
+                return false;
+            }
+            // the entries of the date shards' bookings, to put back if their shard fails to commit
+            Map<Integer, Waiting> waiting = readWaitlist(con, plan.assigned, global);
+            if (!leaveWaitlist(con, plan.assigned)) {
+                rollback(con, open);
+                return false;
+            }
+            con.commit();
+            for (Map.Entry<Shard, Connection> shard : open.entrySet()) {
+                try {
+                    shard.getValue().commit();
+                } catch (SQLException e) {
+                    // the global part is in already, so undo it for this shard's bookings
+                    e.printStackTrace();
+                    List<Assignment> lost = byShard.get(shard.getKey());
+                    try {
+                        giveBack(con, lost, waiting);
+                    } catch (SQLException undo) {
+                        undo.printStackTrace();
+                    }
+                    plan.assigned.removeAll(lost);
+                    for (Assignment assignment : lost) {
+                        plan.unassigned.add(new Unassigned(assignment.line, assignment.patient,
+                                "could not be saved in " + shard.getKey().getName()));
+                    }
+                }
+            }
+            return true;
+        } catch (SQLException e) {
+            rollback(con, open);
+            throw e;
+        } finally {
+            // the pool rolls back what is left open and switches auto-commit back on
+            cm.returnConnection(con);
+            for (Map.Entry<Shard, Connection> shard : open.entrySet()) {
+                shard.getKey().getPool().returnConnection(shard.getValue());
+            }
+        }
+    }
+
+    // claims the slots of assigned and inserts their appointments, false if a slot is no longer there
+    private static boolean book(Connection con, List<Assignment> assigned) throws SQLException {
+        if (assigned.isEmpty()) {
+            return true;
+        }
+        try (PreparedStatement statement = con.prepareStatement(Queries.CLAIM_SLOT)) {
+            for (Assignment assignment : assigned) {
+                statement.setDate(1, assignment.date);
+                statement.setInt(2, assignment.slot.getStart());
+                statement.setString(3, assignment.slot.getCaregiver());
+                statement.addBatch();
+            }
+            if (!allApplied(statement.executeBatch())) {
+                return false;
+            }
+        }
+        try (PreparedStatement statement = con.prepareStatement(Queries.ADD_APPOINTMENT)) {
+            for (Assignment assignment : assigned) {
+                statement.setLong(1, assignment.appointmentId);
+                statement.setDate(2, assignment.date);
+                statement.setInt(3, assignment.slot.getStart());
+                statement.setInt(4, assignment.slot.getMinutes());
+                statement.setString(5, assignment.vaccine);
+                statement.setString(6, assignment.slot.getCaregiver());
+                statement.setString(7, assignment.patient);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        return true;
+    }
+
+    // one UPDATE per vaccine, false if there are not enough doses of one of them left
+    private static boolean takeDoses(Connection con, List<Assignment> assigned) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(Queries.TAKE_DOSES)) {
+            for (Map.Entry<String, Integer> taken : dosesOf(assigned).entrySet()) {
+                statement.setInt(1, taken.getValue());
+                statement.setString(2, taken.getKey());
+                statement.setInt(3, taken.getValue());
+                statement.addBatch();
+            }
+            return allApplied(statement.executeBatch());
+        }
+    }
+
+    // the waitlist entries that assigned not on the global shard came from, by ID
+    private static Map<Integer, Waiting> readWaitlist(Connection con, List<Assignment> assigned,
+                                                      List<Assignment> global) throws SQLException {
+        Map<Integer, Waiting> waiting = new HashMap<>();
+        try (PreparedStatement statement = con.prepareStatement(Queries.GET_WAITLIST_ENTRY)) {
+            for (Assignment assignment : assigned) {
+                if (assignment.waitlistId == 0 || global.contains(assignment)) {
+                    continue;
+                }
+                statement.setInt(1, assignment.waitlistId);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (rs.next()) {
+                        waiting.put(assignment.waitlistId, new Waiting(rs.getString("Patient_Name"),
+                                rs.getString("Vaccine_Name"), rs.getDate("From_Date"), rs.getDate("To_Date"),
+                                rs.getInt("Priority")));
+                    }
+                }
+            }
+        }
+        return waiting;
+    }
+
+    // the doses of bookings whose date shard failed to commit, and the waitlist entries they came from, in one
+    // transaction on the global shard
+    private static void giveBack(Connection con, List<Assignment> lost, Map<Integer, Waiting> waiting)
+            throws SQLException {
+        try {
+            returnDoses(con, lost);
+            try (PreparedStatement statement = con.prepareStatement(Queries.RESTORE_TO_WAITLIST)) {
+                boolean any = false;
+                for (Assignment assignment : lost) {
+                    Waiting entry = waiting.get(assignment.waitlistId);
+                    if (entry == null) {
+                        continue;
+                    }
+                    statement.setInt(1, assignment.waitlistId);
+                    statement.setString(2, entry.patient);
+                    statement.setString(3, entry.vaccine);
+                    statement.setDate(4, entry.from);
+                    statement.setDate(5, entry.to);
+                    statement.setInt(6, entry.priority);
+                    statement.addBatch();
+                    any = true;
+                }
+                if (any) {
+                    statement.executeBatch();
+                }
+            }
+            con.commit();
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        }
+    }
+
+    private static void returnDoses(Connection con, List<Assignment> assigned) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(Queries.RETURN_DOSES)) {
+            for (Map.Entry<String, Integer> returned : dosesOf(assigned).entrySet()) {
+                statement.setInt(1, returned.getValue());
+                statement.setString(2, returned.getKey());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    // vaccine -> doses, in vaccine name order so concurrent batches lock the rows in the same order
+    private static Map<String, Integer> dosesOf(List<Assignment> assigned) {
+        Map<String, Integer> doses = new TreeMap<>();
+        for (Assignment assignment : assigned) {
+            doses.merge(assignment.vaccine, 1, Integer::sum);
+        }
+        return doses;
+    }
+
+    private static void rollback(Connection con, Map<Shard, Connection> open) throws SQLException {
+        con.rollback();
+        for (Connection shardCon : open.values()) {
+            shardCon.rollback();
+        }
+    }
+
+    // false if one of the booked waitlist entries is no longer there, i.e. someone else booked it
+    private static boolean leaveWaitlist(Connection con, List<Assignment> assigned) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(Queries.REMOVE_FROM_WAITLIST)) {
+            boolean any = false;
+            for (Assignment assignment : assigned) {
+                if (assignment.waitlistId != 0) {
+                    statement.setInt(1, assignment.waitlistId);
+                    statement.addBatch();
+                    any = true;
+                }
+            }
+            return !any || allApplied(statement.executeBatch());
+        }
+    }
+
+    // every statement of the batch changed exactly one row (or the driver does not say)
+    private static boolean allApplied(int[] counts) {
+        for (int count : counts) {
+            if (count != 1 && count != Statement.SUCCESS_NO_INFO) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // patients placed on days, at most as many per day as there are free slots that day
+    static class Matching {
+        private final Map<LocalDate, Integer> slots = new HashMap<>();
+        final Map<LocalDate, List<Request>> placed = new TreeMap<>();
+
+        Matching(Map<LocalDate, List<Slot>> free) {
+            for (Map.Entry<LocalDate, List<Slot>> day : free.entrySet()) {
+                slots.put(day.getKey(), day.getValue().size());
+                placed.put(day.getKey(), new ArrayList<>());
+            }
+        }
+
+        boolean place(Request request) {
+            return place(request, new HashSet<>());
+        }
+
+        // visited holds the days this search has already tried to make room on
+        private boolean place(Request request, Set<LocalDate> visited) {
+            // a free slot on a preferred day first, so nobody is moved when there is no need to; a visited day
+            // only has a free slot because the patient we are finding room for was just taken off it
+            for (LocalDate d : request.dates) {
+                List<Request> patients = placed.get(d);
+                if (patients != null && patients.size() < slots.get(d) && !visited.contains(d)) {
+                    patients.add(request);
+                    return true;
+                }
+            }
+            for (LocalDate d : request.dates) {
+                List<Request> patients = placed.get(d);
+                if (patients == null || !visited.add(d)) {
+                    continue;
+                }
+                for (Request other : new ArrayList<>(patients)) {
+                    patients.remove(other);
+                    if (place(other, visited)) {
+                        patients.add(request);
+                        return true;
+                    }
+                    patients.add(other);
+                }
+            }
+            return false;
+        }
+    }
+
+    // one patient to book: a line of the file, or a waitlist entry (then line is the entry's ID too)
+    static class Request {
+        private final int line;
+        private final int waitlistId;
+        private final String patient;
+        private final String vaccine;
+        private final List<LocalDate> dates;
+
+        Request(int line, int waitlistId, String patient, String vaccine, List<LocalDate> dates) {
+            this.line = line;
+            this.waitlistId = waitlistId;
+            this.patient = patient;
+            this.vaccine = vaccine;
+            this.dates = dates;
+        }
+    }
+
+    // a waitlist entry as it was before it was booked
+    private static class Waiting {
+        private final String patient;
+        private final String vaccine;
+        private final Date from;
+        private final Date to;
+        private final int priority;
+
+        private Waiting(String patient, String vaccine, Date from, Date to, int priority) {
+            this.patient = patient;
+            this.vaccine = vaccine;
+            this.from = from;
+            this.to = to;
+            this.priority = priority;
+        }
+    }
+
+    private static class Plan {
+        private final List<Assignment> assigned = new ArrayList<>();
+        private final List<Unassigned> unassigned = new ArrayList<>();
+    }
+
+    public static class Assignment {
+        private final int line;
+        private final int waitlistId;
+        private final String patient;
+        private final String vaccine;
+        private final Date date;
+        private final Slot slot;
+        private long appointmentId;
+
+        private Assignment(int line, int waitlistId, String patient, String vaccine, Date date, Slot slot) {
+            this.line = line;
+            this.waitlistId = waitlistId;
+            this.patient = patient;
+            this.vaccine = vaccine;
+            this.date = date;
+            this.slot = slot;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        // the waitlist entry this booking came from, 0 if it did not
+        public int getWaitlistId() {
+            return waitlistId;
+        }
+
+        public String getPatient() {
+            return patient;
+        }
+
+        public String getVaccine() {
+            return vaccine;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public String getCaregiver() {
+            return slot.getCaregiver();
+        }
+
+        public Slot getSlot() {
+            return slot;
+        }
+
+        public long getAppointmentId() {
+            return appointmentId;
+        }
+    }
+
+    public static class Unassigned {
+        private final int line;
+        private final String patient;
+        private final String reason;
+
+        private Unassigned(int line, String patient, String reason) {
+            this.line = line;
+            this.patient = patient;
+            this.reason = reason;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public String getPatient() {
+            return patient;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + line + (patient == null ? "" : " (" + patient + ")") + ": " + reason;
+        }
+    }
+
+    public static class AllocationResult {
+        private final List<Assignment> assigned;
+        private final List<Unassigned> unassigned;
+        private final long elapsedNanos;
+
+        private AllocationResult(List<Assignment> assigned, List<Unassigned> unassigned, long elapsedNanos) {
+            this.assigned = new ArrayList<>(assigned);
+            this.unassigned = new ArrayList<>(unassigned);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        // in file order
+        public List<Assignment> getAssigned() {
+            return Collections.unmodifiableList(assigned);
+        }
+
+        // in file order, with the reason each line was not booked
+        public List<Unassigned> getUnassigned() {
+            return Collections.unmodifiableList(unassigned);
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package scheduler.bulk;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Queries;
+import scheduler.index.Slot;
+import scheduler.metrics.LatencyHistogram;
+import scheduler.metrics.Metrics;
+import scheduler.util.Config;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Books patients from the waitlist as soon as there is room for them, so nobody has to keep searching the
+ * schedule for a free caregiver.
+ *
+ * Whatever adds capacity (uploaded availability, new doses, cancelled appointments) calls {@link #capacityAdded()},
+ * which only schedules a run on the matcher's own thread. Calls that arrive while a run is still waiting to start
+ * are folded into it, so a burst of uploads costs one run. A run drops the entries whose last date has passed,
+ * then reads the waitlist WaitlistBatchSize entries at a time in the order it is served in (highest Priority
+ * first, then first come first served) and books each page with the {@link BatchAllocator}, which matches the
+ * whole page against the free slots and doses at once. Booked entries leave the waitlist in the same transaction
+ * as their appointment is made, and patients who are logged in are told right away through the callback they
+ * subscribed with. Set Waitlist=off to keep entries without ever matching them.
+ */
+public class WaitlistMatcher {
+
+    private static WaitlistMatcher instance = null;
+
+    private final boolean enabled = Config.getBoolean("Waitlist", true);
+    private final int batchSize = Math.max(1, Config.getInt("WaitlistBatchSize", 200));
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "waitlist-matcher");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Map<String, Consumer<String>> subscribers = new ConcurrentHashMap<>();
+    private final LatencyHistogram latency = Metrics.getInstance().histogram(Metrics.WAITLIST_MATCH);
+
+    private WaitlistMatcher() {
+    }
+
+    public static synchronized WaitlistMatcher getInstance() {
+        if (instance == null) {
+            instance = new WaitlistMatcher();
+        }
+        return instance;
+    }
+
+    // something that can take a waiting patient was added; returns at once, the matching happens in the background
+    public void capacityAdded() {
+        if (!enabled || executor.isShutdown()) {
+            return;
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::run);
+        }
+    }
+
+    // messages about the patient's waitlist bookings go to inbox while subscribed
+    public void subscribe(String patient, Consumer<String> inbox) {
+        subscribers.put(patient, inbox);
+    }
+
+    // only removes inbox, so a session that logged out does not unsubscribe another one of the same patient
+    public void unsubscribe(String patient, Consumer<String> inbox) {
+        subscribers.remove(patient, inbox);
+    }
+
+    // finish the run in progress (and one that is scheduled), then stop
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        // cleared first, so capacity added while we are matching schedules the next run
+        scheduled.set(false);
+        long start = System.nanoTime();
+        try {
+            match();
+            latency.record(System.nanoTime() - start);
+        } catch (SQLException e) {
+            // the entries stay on the waitlist and are tried again the next time capacity is added
+            latency.recordError();
+            e.printStackTrace();
+        }
+    }
+
+    private void match() throws SQLException {
+        LocalDate today = LocalDate.now();
+        expire(today);
+        int priority = Integer.MAX_VALUE;
+        int id = 0;
+        while (true) {
+            List<Entry> page = readPage(priority, id);
+            if (page.isEmpty()) {
+                return;
+            }
+            List<BatchAllocator.Request> requests = new ArrayList<>();
+            for (Entry entry : page) {
+                List<LocalDate> dates = new ArrayList<>();
+                LocalDate first = entry.from.isBefore(today) ? today : entry.from;
+                for (LocalDate d = first; !d.isAfter(entry.to); d = d.plusDays(1)) {
+                    dates.add(d);
+                }
+                requests.add(new BatchAllocator.Request(entry.id, entry.id, entry.patient, entry.vaccine, dates));
+            }
+            BatchAllocator.AllocationResult result = new BatchAllocator().allocate(requests);
+            for (BatchAllocator.Assignment assignment : result.getAssigned()) {
+                notify(assignment);
+            }
+            if (page.size() < batchSize) {
+                return;
+            }
+            Entry last = page.get(page.size() - 1);
+            priority = last.priority;
+            id = last.id;
+        }
+    }
+
+    private void expire(LocalDate today) throws SQLException {
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        try (PreparedStatement statement = con.prepareStatement(Queries.EXPIRE_WAITLIST)) {
+            statement.setDate(1, Date.valueOf(today));
+            statement.executeUpdate();
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+
+    // the next batchSize entries after (priority, id) in the order the waitlist is served in
+    private List<Entry> readPage(int priority, int id) throws SQLException {
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        List<Entry> page = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(Queries.getWaiting(cm.getDialect(), batchSize))) {
+            statement.setInt(1, priority);
+            statement.setInt(2, priority);
+            statement.setInt(3, id);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    page.add(new Entry(rs.getInt("ID"), rs.getString("Patient_Name"), rs.getString("Vaccine_Name"),
+                            rs.getDate("From_Date").toLocalDate(), rs.getDate("To_Date").toLocalDate(),
+                            rs.getInt("Priority")));
+                }
+            }
+        } finally {
+            cm.returnConnection(con);
+        }
+        return page;
+    }
+
+    private void notify(BatchAllocator.Assignment assignment) {
+        Consumer<String> inbox = subscribers.get(assignment.getPatient());
+        if (inbox == null) {
+            return;
+        }
+        Slot slot = assignment.getSlot();
+        inbox.accept("Booked from your waitlist: Appointment ID: " + assignment.getAppointmentId() +
+                " Date: " + assignment.getDate() +
+                (slot.isWholeDay() ? "" : " Time: " + slot.formatTimes()) +
+                " Caregiver Username: " + slot.getCaregiver() +
+                " Vaccine: " + assignment.getVaccine());
+    }
+
+    private static class Entry {
+        private final int id;
+        private final String patient;
+        private final String vaccine;
+        private final LocalDate from;
+        private final LocalDate to;
+        private final int priority;
+
+        private Entry(int id, String patient, String vaccine, LocalDate from, LocalDate to, int priority) {
+            this.id = id;
+            this.patient = patient;
+            this.vaccine = vaccine;
+            this.from = from;
+            this.to = to;
+            this.priority = priority;
+        }
+    }
+}
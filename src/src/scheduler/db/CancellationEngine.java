@@ -0,0 +1,603 @@
+package scheduler.db;
+
+import scheduler.bulk.WaitlistMatcher;
+import scheduler.index.AvailabilityIndex;
+import scheduler.index.Slot;
+import scheduler.journal.EventJournal;
+import scheduler.util.Config;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Takes appointments back, each call in one transaction so a cancellation is either complete or not there at all.
+ *
+ * cancel deletes one appointment, gives its slot back to the caregiver (unless the caregiver has made other
+ * availability overlapping it in the meantime) and returns the dose. cancelRange is for a caregiver who cannot
+ * come: all of their appointments between two dates are deleted, their doses returned, the caregiver's remaining
+ * free slots in those days withdrawn, and the patients put on the waitlist for the day they had so the
+ * {@link WaitlistMatcher} can book them with someone else. Doses are returned with one UPDATE per vaccine, sent as
+ * one batch, however many appointments there were. The {@link AvailabilityIndex} is told about every slot that
+ * comes back or goes away, and the waitlist matcher about the capacity that was freed.
+ *
+ * With date shards (see {@link ShardRouter}) the doses are returned (and the patients put on the waitlist) first,
+ * in a transaction on the global shard, for the appointments the date shards have at that moment; then each date
+ * shard takes back its appointments and slots in a transaction of its own. What a date shard did differently (an
+ * appointment cancelled or booked in between, or a transaction that failed) is set right afterwards in one more
+ * transaction on the global shard, which takes back the doses and waitlist entries of appointments that were not
+ * cancelled and gives back those of appointments that were.
+ */
+public class CancellationEngine {
+
+    private static CancellationEngine instance = null;
+
+    private final int maxAttempts = Math.max(1, Config.getInt("ReserveRetries", 5));
+
+    private CancellationEngine() {
+    }
+
+    public static synchronized CancellationEngine getInstance() {
+        if (instance == null) {
+            instance = new CancellationEngine();
+        }
+        return instance;
+    }
+
+    // user must be the appointment's caregiver or patient (column is Caregiver_Name or Patient_Name); null if there
+    // is no such appointment of theirs
+    public Cancelled cancel(long id, String column, String user) throws SQLException {
+        ShardRouter router = ShardRouter.getInstance();
+        Shard shard = findAppointment(router, id);
+        Cancelled cancelled = shard.isGlobal() ? cancelOn(shard, id, column, user)
+                : cancelOnDateShard(router, shard, id, column, user);
+        if (cancelled == null) {
+            return null;
+        }
+        if (cancelled.isSlotRestored()) {
+            AvailabilityIndex.getInstance().added(cancelled.getDate(), cancelled.getSlot());
+        }
+        EventJournal.cancelled(cancelled.getAppointmentId(), cancelled.getDate(), cancelled.getSlot(),
+                cancelled.getVaccine(), cancelled.getPatient());
+        WaitlistMatcher.getInstance().capacityAdded();
+        return cancelled;
+    }
+
+    public RangeResult cancelRange(String caregiver, Date from, Date to) throws SQLException {
+        ShardRouter router = ShardRouter.getInstance();
+        // the appointments every date shard has now, given back on the global shard before the shards delete them
+        Map<Shard, List<Cancelled>> planned = new LinkedHashMap<>();
+        List<Cancelled> onDateShards = new ArrayList<>();
+        boolean global = false;
+        for (Shard shard : router.covering(from, to)) {
+            if (shard.isGlobal()) {
+                global = true;
+                continue;
+            }
+            List<Cancelled> found = readAppointments(shard, caregiver, from, to);
+            planned.put(shard, found);
+            onDateShards.addAll(found);
+        }
+        boolean inGlobal = global;
+        RangeResult result = withRetries(router.global().getPool(),
+                con -> cancelRangeInTransaction(con, caregiver, from, to, inGlobal, onDateShards));
+
+        // what the date shards took back differently: doses given back (negative: taken again), waitlist entries
+        // to remove and patients to put on the waitlist
+        Map<String, Integer> doses = new TreeMap<>();
+        List<Cancelled> leave = new ArrayList<>();
+        List<Cancelled> join = new ArrayList<>();
+        SQLException failure = null;
+        for (Map.Entry<Shard, List<Cancelled>> shard : planned.entrySet()) {
+            Set<Long> expected = new HashSet<>();
+            for (Cancelled appointment : shard.getValue()) {
+                expected.add(appointment.appointmentId);
+            }
+            Set<Long> taken = new HashSet<>();
+            try {
+                RangeResult part = withRetries(shard.getKey().getPool(),
+                        con -> takeBackInTransaction(con, caregiver, from, to));
+                result.withdrawn.addAll(part.withdrawn);
+                for (Cancelled appointment : part.cancelled) {
+                    taken.add(appointment.appointmentId);
+                    // booked after we looked
+                    if (!expected.contains(appointment.appointmentId)) {
+                        join.add(appointment);
+                        result.cancelled.add(appointment);
+                        doses.merge(appointment.vaccine, 1, Integer::sum);
+                    }
+                }
+            } catch (SQLException e) {
+                // nothing of this shard was taken back; the other shards go on, and the caller hears of it after
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+            // cancelled by someone else after we looked, or not at all
+            for (Cancelled appointment : shard.getValue()) {
+                if (!taken.contains(appointment.appointmentId)) {
+                    leave.add(appointment);
+                    result.cancelled.remove(appointment);
+                    doses.merge(appointment.vaccine, -1, Integer::sum);
+                }
+            }
+        }
+        doses.values().removeIf(n -> n == 0);
+        if (!doses.isEmpty() || !leave.isEmpty() || !join.isEmpty()) {
+            try {
+                settle(router, doses, leave, join);
+                for (Map.Entry<String, Integer> changed : doses.entrySet()) {
+                    result.dosesReturned.merge(changed.getKey(), changed.getValue(), Integer::sum);
+                }
+                result.dosesReturned.values().removeIf(n -> n == 0);
+            } catch (SQLException e) {
+                if (failure != null) {
+                    e.addSuppressed(failure);
+                }
+                throw e;
+            }
+        }
+
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        for (Withdrawn slot : result.withdrawn) {
+            index.removed(slot.date, slot.slot);
+        }
+        for (Cancelled appointment : result.cancelled) {
+            EventJournal.cancelled(appointment.getAppointmentId(), appointment.getDate(), appointment.getSlot(),
+                    appointment.getVaccine(), appointment.getPatient());
+        }
+        for (Withdrawn slot : result.withdrawn) {
+            EventJournal.availabilityWithdrawn(slot.date, slot.slot);
+        }
+        if (!result.getDosesReturned().isEmpty()) {
+            WaitlistMatcher.getInstance().capacityAdded();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+
+    private Cancelled cancelOn(Shard shard, long id, String column, String user) throws SQLException {
+        ConnectionManager cm = shard.getPool();
+        Connection con = cm.borrowConnection();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return cancelInTransaction(con, id, column, user, shard.isGlobal());
+                } catch (SQLException e) {
+                    if (!ReservationEngine.isRetryable(e) || attempt >= maxAttempts) {
+                        throw e;
+                    }
+                }
+                ReservationEngine.backOff(attempt);
+            }
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+
+    // the dose is given back on the global shard first, and taken again if the date shard does not cancel it
+    private Cancelled cancelOnDateShard(ShardRouter router, Shard shard, long id, String column, String user)
+            throws SQLException {
+        ConnectionManager cm = shard.getPool();
+        Connection con = cm.borrowConnection();
+        Cancelled found;
+        try {
+            found = readAppointment(con, id, column, user);
+        } finally {
+            cm.returnConnection(con);
+        }
+        if (found == null) {
+            return null;
+        }
+        List<Cancelled> none = Collections.emptyList();
+        settle(router, Collections.singletonMap(found.vaccine, 1), none, none);
+        Cancelled cancelled;
+        try {
+            cancelled = cancelOn(shard, id, column, user);
+        } catch (SQLException e) {
+            try {
+                settle(router, Collections.singletonMap(found.vaccine, -1), none, none);
+            } catch (SQLException undo) {
+                e.addSuppressed(undo);
+            }
+            throw e;
+        }
+        if (cancelled == null) {
+            // cancelled by someone else in the meantime, who gave the dose back too
+            settle(router, Collections.singletonMap(found.vaccine, -1), none, none);
+        }
+        return cancelled;
+    }
+
+    // one transaction on the global shard: doses given back (negative: taken again), the waitlist entries of leave
+    // removed and the patients of join put on the waitlist
+    private void settle(ShardRouter router, Map<String, Integer> doses, List<Cancelled> leave, List<Cancelled> join)
+            throws SQLException {
+        withRetries(router.global().getPool(), con -> {
+            con.setAutoCommit(false);
+            try {
+                returnDoses(con, doses);
+                leaveWaitlist(con, leave);
+                putOnWaitlist(con, join);
+                con.commit();
+                return Boolean.TRUE;
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        });
+    }
+
+    // the caregiver's appointments between from and to that shard has now
+    private static List<Cancelled> readAppointments(Shard shard, String caregiver, Date from, Date to)
+            throws SQLException {
+        ConnectionManager cm = shard.getPool();
+        Connection con = cm.borrowConnection();
+        try {
+            return readAppointments(con, caregiver, from, to);
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+
+    // the shard that has appointment id, the global one if none has
+    private static Shard findAppointment(ShardRouter router, long id) throws SQLException {
+        if (!router.isSharded()) {
+            return router.global();
+        }
+        List<Boolean> found = router.fanOut(router.all(), false, (shard, con) -> {
+            try (PreparedStatement statement = con.prepareStatement(Queries.GET_APPOINTMENT)) {
+                statement.setLong(1, id);
+                try (ResultSet rs = statement.executeQuery()) {
+                    return rs.next();
+                }
+            }
+        });
+        int index = found.indexOf(true);
+        return router.all().get(Math.max(0, index));
+    }
+
+    // runs attempt until it returns something, which it does not when the rows changed under it
+    private <T> T withRetries(ConnectionManager cm, Attempt<T> attempt) throws SQLException {
+        Connection con = cm.borrowConnection();
+        try {
+            for (int tries = 1; ; tries++) {
+                try {
+                    T result = attempt.run(con);
+                    if (result != null) {
+                        return result;
+                    }
+                    // an appointment was booked or cancelled between our read and our delete
+                } catch (SQLException e) {
+                    if (!ReservationEngine.isRetryable(e) || tries >= maxAttempts) {
+                        throw e;
+                    }
+                }
+                if (tries >= maxAttempts) {
+                    throw new SQLException("Could not cancel the appointments after " + tries + " attempts");
+                }
+                ReservationEngine.backOff(tries);
+            }
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+
+    // the dose is returned in the same transaction if withDose, otherwise the caller returns it on the global shard
+    private Cancelled cancelInTransaction(Connection con, long id, String column, String user, boolean withDose)
+            throws SQLException {
+        con.setAutoCommit(false);
+        try {
+            Cancelled cancelled = readAppointment(con, id, column, user);
+            if (cancelled == null) {
+                con.rollback();
+                return null;
+            }
+            // whoever deletes the row cancels it, a concurrent cancel of the same appointment finds nothing
+            try (PreparedStatement statement = con.prepareStatement(Queries.REMOVE_APPOINTMENT)) {
+                statement.setLong(1, id);
+                if (statement.executeUpdate() != 1) {
+                    con.rollback();
+                    return null;
+                }
+            }
+            try (PreparedStatement statement = con.prepareStatement(Queries.RESTORE_SLOT)) {
+                Slot slot = cancelled.slot;
+                statement.setDate(1, cancelled.date);
+                statement.setString(2, slot.getCaregiver());
+                statement.setInt(3, slot.getStart());
+                statement.setInt(4, slot.getMinutes());
+                statement.setDate(5, cancelled.date);
+                statement.setString(6, slot.getCaregiver());
+                statement.setInt(7, slot.getEnd());
+                statement.setInt(8, slot.getStart());
+                cancelled.slotRestored = statement.executeUpdate() == 1;
+            }
+            if (withDose) {
+                returnDoses(con, Collections.singletonMap(cancelled.vaccine, 1));
+            }
+            con.commit();
+            return cancelled;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    // a date shard's part of cancelRange; returns null when the appointments changed between reading and deleting
+    // them, and the caller should retry
+    private static RangeResult takeBackInTransaction(Connection con, String caregiver, Date from, Date to)
+            throws SQLException {
+        con.setAutoCommit(false);
+        try {
+            List<Cancelled> cancelled = new ArrayList<>();
+            List<Withdrawn> withdrawn = new ArrayList<>();
+            if (!takeBack(con, caregiver, from, to, cancelled, withdrawn)) {
+                con.rollback();
+                return null;
+            }
+            con.commit();
+            return new RangeResult(cancelled, new TreeMap<>(), withdrawn);
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    // the global shard's part: its own appointments and slots if it has dates in the range (inGlobal), and the doses
+    // and waitlist entries of every appointment, including the ones the date shards are about to take back
+    private static RangeResult cancelRangeInTransaction(Connection con, String caregiver, Date from, Date to,
+                                                        boolean inGlobal, List<Cancelled> onDateShards)
+            throws SQLException {
+        con.setAutoCommit(false);
+        try {
+            List<Cancelled> cancelled = new ArrayList<>();
+            List<Withdrawn> withdrawn = new ArrayList<>();
+            if (inGlobal && !takeBack(con, caregiver, from, to, cancelled, withdrawn)) {
+                con.rollback();
+                return null;
+            }
+            cancelled.addAll(onDateShards);
+            Map<String, Integer> doses = new TreeMap<>();
+            for (Cancelled appointment : cancelled) {
+                doses.merge(appointment.vaccine, 1, Integer::sum);
+            }
+            returnDoses(con, doses);
+            putOnWaitlist(con, cancelled);
+            con.commit();
+            return new RangeResult(cancelled, doses, withdrawn);
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    // deletes the caregiver's appointments and free slots between from and to, adding them to cancelled and
+    // withdrawn; false if the appointments changed between reading and deleting them
+    private static boolean takeBack(Connection con, String caregiver, Date from, Date to, List<Cancelled> cancelled,
+                                    List<Withdrawn> withdrawn) throws SQLException {
+        List<Cancelled> found = readAppointments(con, caregiver, from, to);
+        try (PreparedStatement statement = con.prepareStatement(Queries.REMOVE_CAREGIVER_APPOINTMENTS)) {
+            statement.setString(1, caregiver);
+            statement.setDate(2, from);
+            statement.setDate(3, to);
+            if (statement.executeUpdate() != found.size()) {
+                return false;
+            }
+        }
+        cancelled.addAll(found);
+
+        boolean any = false;
+        try (PreparedStatement statement = con.prepareStatement(Queries.GET_CAREGIVER_AVAILABILITY)) {
+            statement.setString(1, caregiver);
+            statement.setDate(2, from);
+            statement.setDate(3, to);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    withdrawn.add(new Withdrawn(rs.getDate("Time"),
+                            new Slot(caregiver, rs.getInt("Slot_Start"), rs.getInt("Slot_Minutes"))));
+                    any = true;
+                }
+            }
+        }
+        if (any) {
+            try (PreparedStatement statement = con.prepareStatement(Queries.WITHDRAW_AVAILABILITY)) {
+                statement.setString(1, caregiver);
+                statement.setDate(2, from);
+                statement.setDate(3, to);
+                statement.executeUpdate();
+            }
+        }
+        return true;
+    }
+
+    // appointment id, if user is its caregiver or patient (column is Caregiver_Name or Patient_Name)
+    private static Cancelled readAppointment(Connection con, long id, String column, String user)
+            throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(Queries.GET_APPOINTMENT)) {
+            statement.setLong(1, id);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next() || !user.equals(rs.getString(column))) {
+                    return null;
+                }
+                Slot slot = new Slot(rs.getString("Caregiver_Name"), rs.getInt("Slot_Start"),
+                        rs.getInt("Slot_Minutes"));
+                return new Cancelled(id, rs.getDate("Time"), slot, rs.getString("Vaccine_Name"),
+                        rs.getString("Patient_Name"));
+            }
+        }
+    }
+
+    private static List<Cancelled> readAppointments(Connection con, String caregiver, Date from, Date to)
+            throws SQLException {
+        List<Cancelled> found = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(Queries.GET_CAREGIVER_APPOINTMENTS)) {
+            statement.setString(1, caregiver);
+            statement.setDate(2, from);
+            statement.setDate(3, to);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    Slot slot = new Slot(caregiver, rs.getInt("Slot_Start"), rs.getInt("Slot_Minutes"));
+                    found.add(new Cancelled(rs.getLong("ID"), rs.getDate("Time"), slot,
+                            rs.getString("Vaccine_Name"), rs.getString("Patient_Name")));
+                }
+            }
+        }
+        return found;
+    }
+
+    // the patients of cancelled wait for another appointment on the day they had
+    private static void putOnWaitlist(Connection con, List<Cancelled> cancelled) throws SQLException {
+        if (cancelled.isEmpty()) {
+            return;
+        }
+        int id = IdAllocator.nextWaitlistIds(con, cancelled.size());
+        try (PreparedStatement statement = con.prepareStatement(Queries.ADD_TO_WAITLIST)) {
+            for (Cancelled appointment : cancelled) {
+                appointment.waitlistId = id++;
+                statement.setInt(1, appointment.waitlistId);
+                statement.setString(2, appointment.patient);
+                statement.setString(3, appointment.vaccine);
+                statement.setDate(4, appointment.date);
+                statement.setDate(5, appointment.date);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    // the waitlist entries putOnWaitlist made for cancelled, as far as the matcher has not booked them yet
+    private static void leaveWaitlist(Connection con, List<Cancelled> cancelled) throws SQLException {
+        if (cancelled.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = con.prepareStatement(Queries.REMOVE_FROM_WAITLIST)) {
+            for (Cancelled appointment : cancelled) {
+                statement.setInt(1, appointment.waitlistId);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    // one UPDATE per vaccine however many appointments it had, all in one batch
+    private static void returnDoses(Connection con, Map<String, Integer> doses) throws SQLException {
+        if (doses.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = con.prepareStatement(Queries.RETURN_DOSES)) {
+            for (Map.Entry<String, Integer> returned : doses.entrySet()) {
+                statement.setInt(1, returned.getValue());
+                statement.setString(2, returned.getKey());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private interface Attempt<T> {
+        T run(Connection con) throws SQLException;
+    }
+
+    private static class Withdrawn {
+        private final Date date;
+        private final Slot slot;
+
+        private Withdrawn(Date date, Slot slot) {
+            this.date = date;
+            this.slot = slot;
+        }
+    }
+
+    public static class Cancelled {
+        private final long appointmentId;
+        private final Date date;
+        private final Slot slot;
+        private final String vaccine;
+        private final String patient;
+        private boolean slotRestored;
+        // the entry that put the patient on the waitlist, cancelRange only
+        private int waitlistId;
+
+        private Cancelled(long appointmentId, Date date, Slot slot, String vaccine, String patient) {
+            this.appointmentId = appointmentId;
+            this.date = date;
+            this.slot = slot;
+            this.vaccine = vaccine;
+            this.patient = patient;
+        }
+
+        public long getAppointmentId() {
+            return appointmentId;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public Slot getSlot() {
+            return slot;
+        }
+
+        public String getVaccine() {
+            return vaccine;
+        }
+
+        public String getPatient() {
+            return patient;
+        }
+
+        // false if the caregiver had made other availability overlapping the slot since it was booked
+        public boolean isSlotRestored() {
+            return slotRestored;
+        }
+    }
+
+    public static class RangeResult {
+        private final List<Cancelled> cancelled;
+        private final Map<String, Integer> dosesReturned;
+        private final List<Withdrawn> withdrawn;
+
+        private RangeResult(List<Cancelled> cancelled, Map<String, Integer> dosesReturned, List<Withdrawn> withdrawn) {
+            this.cancelled = cancelled;
+            this.dosesReturned = dosesReturned;
+            this.withdrawn = withdrawn;
+        }
+
+        // the patients of these were put on the waitlist for the same day
+        public List<Cancelled> getCancelled() {
+            return Collections.unmodifiableList(cancelled);
+        }
+
+        // vaccine -> doses given back, in vaccine name order
+        public Map<String, Integer> getDosesReturned() {
+            return Collections.unmodifiableMap(dosesReturned);
+        }
+
+        public int getSlotsWithdrawn() {
+            return withdrawn.size();
+        }
+    }
+}
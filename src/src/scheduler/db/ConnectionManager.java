@@ -1,41 +1,692 @@
 package scheduler.db;
 
+import scheduler.metrics.LatencyHistogram;
+import scheduler.metrics.Metrics;
+import scheduler.util.Config;
+
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A bounded pool of JDBC connections shared by the whole process.
+ *
+ * Callers borrow a connection, use it for one unit of work and give it back:
+ * <pre>
+ *     ConnectionManager cm = ConnectionManager.getInstance();
+ *     Connection con = cm.borrowConnection();
+ *     try {
+ *         ...
+ *     } finally {
+ *         cm.returnConnection(con);
+ *     }
+ * </pre>
+ * The pool keeps between PoolMinSize and PoolMaxSize physical connections open. Idle connections above the
+ * minimum are closed after PoolIdleTimeout seconds, connections that sat idle for longer than PoolValidateAfter
+ * milliseconds are checked with {@link Connection#isValid(int)} before being handed out, and a borrow that cannot
+ * be served within PoolBorrowTimeout milliseconds fails with an SQLException instead of blocking forever.
+ *
+ * Which database the connections go to is decided by the {@link StorageBackend} chosen at startup. Connections
+ * are handed out as {@link InstrumentedConnection}s, so statement timings end up in {@link Metrics}; the time
+ * every borrow took goes to its jdbc.acquire histogram. Each connection caches the statements it prepares, and
+ * unless StatementCacheWarmUp is off a new connection prepares the scheduler's common {@link Queries} right away.
+ *
+ * Replicas lists read replicas of that database, separated by commas and named like the backend (see
+ * {@link StorageBackend}); each gets a pool of its own with the same settings. Work that only reads borrows with
+ * {@link #borrowReadConnection()}, which hands out a connection to a replica, taking them in turn or, with
+ * ReplicaRouting=least-loaded, the one with the fewest connections lent out. A session that has used the primary
+ * reads from the primary for the next ReplicaPinMillis milliseconds, so it sees its own writes even if the
+ * replicas lag behind. A session runs its commands on one thread, so this is tracked per thread. Every
+ * ReplicaHealthInterval seconds each replica is checked with a fresh connection; replicas that fail the check, or
+ * a borrow, get no reads until they pass a check again, and when no replica is healthy reads go to the primary.
+ */
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
-            ".database.windows.net:1433;database=" + System.getenv("DBName");
-    private final String userName = System.getenv("UserID");
-    private final String userPass = System.getenv("Password");
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private static ConnectionManager instance = null;
+
+    private final StorageBackend backend;
+
+    // pool settings
+    private final int minSize = Config.getInt("PoolMinSize", 1);
+    private final int maxSize = Math.max(1, Config.getInt("PoolMaxSize", 10));
+    private final long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(Config.getLong("PoolIdleTimeout", 300));
+    private final long validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong("PoolValidateAfter", 5000));
+    private final long borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong("PoolBorrowTimeout", 30000));
+    private final boolean warmUpStatements = Config.getBoolean("StatementCacheWarmUp", true);
+
+    // pool state, guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    // the connections that are lent out, so one given back twice is not pooled twice
+    private final Set<Connection> loaned = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int openConnections = 0;
+    private int borrowedConnections = 0;
+    private boolean shutdown = false;
+
+    // metrics, guarded by lock
+    private long borrows = 0;
+    private long creations = 0;
+    private long evictions = 0;
+    private long validationFailures = 0;
+    private long borrowTimeouts = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+
+    private final ScheduledExecutorService evictor;
+    private final LatencyHistogram acquire = Metrics.getInstance().histogram(Metrics.JDBC_ACQUIRE);
+
+    // read replicas, none unless Replicas is set
+    private final List<ConnectionManager> replicas = new ArrayList<>();
+    private final boolean leastLoaded = Config.get("ReplicaRouting", "round-robin").equalsIgnoreCase("least-loaded");
+    private final long pinNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong("ReplicaPinMillis", 5000));
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    // replica connections that are lent out, so returnConnection gives them back to their own pool
+    private final Map<Connection, ConnectionManager> replicaLoans = new ConcurrentHashMap<>();
+    // when the calling thread last borrowed from the primary for work that may write
+    private final ThreadLocal<Long> lastPrimaryBorrow = new ThreadLocal<>();
+    private ScheduledExecutorService healthChecker = null;
+
+    // state of a replica's own pool
+    private volatile boolean healthy = true;
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong healthCheckFailures = new AtomicLong();
+
+    private ConnectionManager(StorageBackend backend) {
+        this.backend = backend;
+        backend.load();
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(idleTimeoutNanos) / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, period, period, TimeUnit.SECONDS);
+    }
+
+    public static synchronized ConnectionManager getInstance() {
+        if (instance == null) {
+            instance = new ConnectionManager(StorageBackend.fromConfig());
+            instance.initializeBackend();
+            instance.fillToMinimum();
+            instance.startReplicas();
+        }
+        return instance;
+    }
+
+    public StorageBackend getBackend() {
+        return backend;
+    }
+
+    public Dialect getDialect() {
+        return backend.getDialect();
+    }
+
+    public Connection borrowConnection() throws SQLException {
+        Connection con = borrow();
+        if (!replicas.isEmpty()) {
+            lastPrimaryBorrow.set(System.nanoTime());
+        }
+        return con;
+    }
+
+    // for work that only reads; falls back to the primary when the thread is pinned to it or no replica is healthy
+    public Connection borrowReadConnection() throws SQLException {
+        Long pinned = lastPrimaryBorrow.get();
+        ConnectionManager replica = pinned != null && System.nanoTime() - pinned < pinNanos ? null : pickReplica();
+        if (replica != null) {
+            try {
+                Connection con = replica.borrow();
+                replicaLoans.put(con, replica);
+                replica.reads.incrementAndGet();
+                return con;
+            } catch (SQLException e) {
+                // a replica that cannot be reached (or is swamped) gets no reads until it passes a health check
+                replica.setHealthy(false);
+            }
+        }
+        return borrow();
+    }
+
+    private Connection borrow() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + borrowTimeoutNanos;
+        while (true) {
+            PooledConnection candidate = null;
+            boolean mayCreate = false;
+            lock.lock();
+            try {
+                while (true) {
+                    if (shutdown) {
+                        throw new SQLException("Connection pool has been shut down");
+                    }
+                    candidate = idle.pollFirst();
+                    if (candidate != null) {
+                        break;
+                    }
+                    if (openConnections < maxSize) {
+                        // reserve the slot now, the physical connection is opened outside the lock
+                        openConnections++;
+                        mayCreate = true;
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        borrowTimeouts++;
+                        acquire.recordError();
+                        throw new SQLException("Timed out waiting for a database connection after " +
+                                TimeUnit.NANOSECONDS.toMillis(borrowTimeoutNanos) + " ms");
+                    }
+                    try {
+                        released.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a database connection");
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (mayCreate) {
+                Connection con;
+                try {
+                    con = openPhysicalConnection();
+                } catch (SQLException e) {
+                    acquire.recordError();
+                    discard(null);
+                    throw e;
+                }
+                recordBorrow(start, true, con);
+                return con;
+            }
+
+            if (isUsable(candidate)) {
+                recordBorrow(start, false, candidate.connection);
+                return candidate.connection;
+            }
+            lock.lock();
+            try {
+                validationFailures++;
+            } finally {
+                lock.unlock();
+            }
+            discard(candidate.connection);
+        }
+    }
+
+    public void returnConnection(Connection con) {
+        if (con == null) {
+            return;
+        }
+        ConnectionManager replica = replicaLoans.remove(con);
+        if (replica != null) {
+            replica.returnConnection(con);
+            return;
+        }
+        lock.lock();
+        try {
+            if (!loaned.remove(con)) {
+                throw new IllegalStateException("Connection returned to the pool twice, or not borrowed from it");
+            }
+        } finally {
+            lock.unlock();
+        }
+        boolean reusable;
+        try {
+            reusable = !con.isClosed();
+            if (reusable && !con.getAutoCommit()) {
+                // never hand a half-finished transaction to the next borrower
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        lock.lock();
+        try {
+            borrowedConnections--;
+            if (reusable && !shutdown) {
+                idle.addFirst(new PooledConnection(con));
+                released.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        discard(con);
+    }
+
+    public PoolStats getStats() {
+        lock.lock();
+        try {
+            return new PoolStats(openConnections, idle.size(), borrowedConnections, borrows, creations, evictions,
+                    validationFailures, borrowTimeouts, totalWaitNanos, maxWaitNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-    private Connection con = null;
+    public List<ReplicaStats> getReplicaStats() {
+        List<ReplicaStats> stats = new ArrayList<>();
+        for (ConnectionManager replica : replicas) {
+            stats.add(new ReplicaStats(replica.backend.getName(), replica.healthy, replica.reads.get(),
+                    replica.healthCheckFailures.get(), replica.getStats()));
+        }
+        return stats;
+    }
 
-    public ConnectionManager() {
+    public void shutdown() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        for (ConnectionManager replica : replicas) {
+            replica.shutdown();
+        }
+        List<PooledConnection> toClose;
+        lock.lock();
         try {
-            Class.forName(driverName);
-        } catch (ClassNotFoundException e) {
-            System.out.println(e.toString());
+            shutdown = true;
+            toClose = new ArrayList<>(idle);
+            openConnections -= idle.size();
+            idle.clear();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        evictor.shutdownNow();
+        for (PooledConnection pc : toClose) {
+            closeQuietly(pc.connection);
         }
     }
 
-    public Connection createConnection() {
+    private Connection openPhysicalConnection() throws SQLException {
+        InstrumentedConnection con = new InstrumentedConnection(backend.connect());
+        if (warmUpStatements) {
+            con.warmUp(Queries.warmUp(backend.getDialect()));
+        }
+        lock.lock();
+        try {
+            creations++;
+        } finally {
+            lock.unlock();
+        }
+        return con;
+    }
+
+    private void initializeBackend() {
+        Connection con = null;
         try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
+            con = borrowConnection();
+            backend.initialize(con);
+            // the connection was opened, and warmed up, before the migrations created the tables
+            if (warmUpStatements) {
+                ((InstrumentedConnection) con).warmUp(Queries.warmUp(backend.getDialect()));
+            }
         } catch (SQLException e) {
+            System.out.println("Failed to initialize the " + backend.getName() + " database");
             e.printStackTrace();
+        } finally {
+            returnConnection(con);
         }
-        return con;
     }
 
-    public void closeConnection() {
+    // a pool for a date shard of ShardRouter, with the shard's schema brought up to date
+    static ConnectionManager openDateShard(StorageBackend backend) {
+        ConnectionManager shard = new ConnectionManager(backend);
+        Connection con = null;
         try {
-            this.con.close();
+            con = shard.borrow();
+            backend.initializeDateShard(con);
         } catch (SQLException e) {
+            System.out.println("Failed to initialize the " + backend.getName() + " shard");
             e.printStackTrace();
+        } finally {
+            shard.returnConnection(con);
+        }
+        shard.fillToMinimum();
+        return shard;
+    }
+
+    private void startReplicas() {
+        for (String spec : Config.get("Replicas", "").split(",")) {
+            if (spec.trim().isEmpty()) {
+                continue;
+            }
+            // the primary's migrations reach the replicas through replication, they are never run there
+            ConnectionManager replica = new ConnectionManager(StorageBackend.fromSpec(spec.trim(), true));
+            replica.setHealthy(replica.isReachable());
+            replica.fillToMinimum();
+            replicas.add(replica);
+        }
+        if (replicas.isEmpty()) {
+            return;
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-health-check");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(1, Config.getLong("ReplicaHealthInterval", 5));
+        healthChecker.scheduleWithFixedDelay(this::checkReplicas, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void checkReplicas() {
+        for (ConnectionManager replica : replicas) {
+            boolean reachable = replica.isReachable();
+            if (!reachable) {
+                replica.healthCheckFailures.incrementAndGet();
+            }
+            replica.setHealthy(reachable);
+        }
+    }
+
+    // a healthy replica, or null if there is none
+    private ConnectionManager pickReplica() {
+        if (replicas.isEmpty()) {
+            return null;
+        }
+        if (leastLoaded) {
+            ConnectionManager best = null;
+            int bestBorrowed = Integer.MAX_VALUE;
+            for (ConnectionManager replica : replicas) {
+                int borrowed = replica.getStats().getBorrowed();
+                if (replica.healthy && borrowed < bestBorrowed) {
+                    best = replica;
+                    bestBorrowed = borrowed;
+                }
+            }
+            return best;
+        }
+        int first = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            ConnectionManager replica = replicas.get((first + i) % replicas.size());
+            if (replica.healthy) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    // checked outside the pool, so a replica whose connections are all lent out still counts as reachable
+    private boolean isReachable() {
+        try (Connection con = backend.connect()) {
+            return con.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void setHealthy(boolean healthy) {
+        if (this.healthy != healthy) {
+            System.err.println("Read replica " + backend.getName() + (healthy ? " is back" : " is down"));
+        }
+        this.healthy = healthy;
+    }
+
+    private boolean isUsable(PooledConnection pc) {
+        // connections that were used a moment ago are trusted, older ones cost one round trip to check
+        if (System.nanoTime() - pc.lastUsed < validateAfterNanos) {
+            return true;
+        }
+        try {
+            return pc.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void recordBorrow(long start, boolean created, Connection con) {
+        long waited = System.nanoTime() - start;
+        acquire.record(waited);
+        lock.lock();
+        try {
+            loaned.add(con);
+            borrows++;
+            borrowedConnections++;
+            // time spent opening a brand new connection is not waiting for the pool
+            if (!created) {
+                totalWaitNanos += waited;
+                maxWaitNanos = Math.max(maxWaitNanos, waited);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // give up a slot, closing its connection if there is one
+    private void discard(Connection con) {
+        lock.lock();
+        try {
+            openConnections--;
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+        closeQuietly(con);
+    }
+
+    private void fillToMinimum() {
+        while (true) {
+            lock.lock();
+            try {
+                if (shutdown || openConnections >= minSize) {
+                    return;
+                }
+                openConnections++;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                Connection con = openPhysicalConnection();
+                lock.lock();
+                try {
+                    idle.addLast(new PooledConnection(con));
+                    released.signal();
+                } finally {
+                    lock.unlock();
+                }
+            } catch (SQLException e) {
+                // the database may not be reachable yet, borrowers will retry on demand
+                discard(null);
+                return;
+            }
+        }
+    }
+
+    private void evictIdleConnections() {
+        List<PooledConnection> toClose = new ArrayList<>();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            // the oldest idle connections sit at the tail of the deque
+            Iterator<PooledConnection> it = idle.descendingIterator();
+            while (it.hasNext() && openConnections > minSize) {
+                PooledConnection pc = it.next();
+                if (now - pc.lastUsed < idleTimeoutNanos) {
+                    break;
+                }
+                it.remove();
+                openConnections--;
+                evictions++;
+                toClose.add(pc);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (PooledConnection pc : toClose) {
+            closeQuietly(pc.connection);
+        }
+        fillToMinimum();
+    }
+
+    private static void closeQuietly(Connection con) {
+        if (con == null) {
+            return;
+        }
+        try {
+            con.close();
+        } catch (SQLException e) {
+            // the connection is being thrown away anyway
+        }
+    }
+
+    private static class PooledConnection {
+        private final Connection connection;
+        private final long lastUsed;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+
+    public static class ReplicaStats {
+        private final String name;
+        private final boolean healthy;
+        private final long reads;
+        private final long healthCheckFailures;
+        private final PoolStats pool;
+
+        private ReplicaStats(String name, boolean healthy, long reads, long healthCheckFailures, PoolStats pool) {
+            this.name = name;
+            this.healthy = healthy;
+            this.reads = reads;
+            this.healthCheckFailures = healthCheckFailures;
+            this.pool = pool;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public long getReads() {
+            return reads;
+        }
+
+        public long getHealthCheckFailures() {
+            return healthCheckFailures;
+        }
+
+        public PoolStats getPool() {
+            return pool;
+        }
+
+        @Override
+        public String toString() {
+            return "ReplicaStats{" +
+                    "name=" + name +
+                    ", healthy=" + healthy +
+                    ", reads=" + reads +
+                    ", healthCheckFailures=" + healthCheckFailures +
+                    ", pool=" + pool +
+                    '}';
+        }
+    }
+
+    public static class PoolStats {
+        private final int open;
+        private final int idle;
+        private final int borrowed;
+        private final long borrows;
+        private final long creations;
+        private final long evictions;
+        private final long validationFailures;
+        private final long borrowTimeouts;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+
+        private PoolStats(int open, int idle, int borrowed, long borrows, long creations, long evictions,
+                          long validationFailures, long borrowTimeouts, long totalWaitNanos, long maxWaitNanos) {
+            this.open = open;
+            this.idle = idle;
+            this.borrowed = borrowed;
+            this.borrows = borrows;
+            this.creations = creations;
+            this.evictions = evictions;
+            this.validationFailures = validationFailures;
+            this.borrowTimeouts = borrowTimeouts;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        public int getOpen() {
+            return open;
+        }
+
+        public int getIdle() {
+            return idle;
+        }
+
+        public int getBorrowed() {
+            return borrowed;
+        }
+
+        public long getBorrows() {
+            return borrows;
+        }
+
+        public long getCreations() {
+            return creations;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getValidationFailures() {
+            return validationFailures;
+        }
+
+        public long getBorrowTimeouts() {
+            return borrowTimeouts;
+        }
+
+        public long getTotalWaitNanos() {
+            return totalWaitNanos;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "PoolStats{" +
+                    "open=" + open +
+                    ", idle=" + idle +
+                    ", borrowed=" + borrowed +
+                    ", borrows=" + borrows +
+                    ", creations=" + creations +
+                    ", evictions=" + evictions +
+                    ", validationFailures=" + validationFailures +
+                    ", borrowTimeouts=" + borrowTimeouts +
+                    ", avgWaitMicros=" + (borrows == 0 ? 0 : totalWaitNanos / borrows / 1000) +
+                    ", maxWaitMicros=" + maxWaitNanos / 1000 +
+                    '}';
         }
     }
 }
@@ -0,0 +1,28 @@
+package scheduler.db;
+
+/**
+ * The bits of SQL that differ between the databases the scheduler can run on.
+ */
+public enum Dialect {
+    SQLSERVER,
+    H2;
+
+    // prefix for "first n rows", goes right after SELECT
+    public String top(int n) {
+        return this == SQLSERVER ? "TOP " + n + " " : "";
+    }
+
+    // suffix for "first n rows", goes at the very end of the query
+    public String fetchFirst(int n) {
+        return this == SQLSERVER ? "" : " FETCH FIRST " + n + " ROWS ONLY";
+    }
+
+    public String isNull() {
+        return this == SQLSERVER ? "ISNULL" : "COALESCE";
+    }
+
+    // whether several statements separated by ';' can be sent as one PreparedStatement
+    public boolean supportsStatementBatches() {
+        return this == SQLSERVER;
+    }
+}
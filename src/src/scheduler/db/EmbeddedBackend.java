@@ -0,0 +1,64 @@
+package scheduler.db;
+
+/**
+ * An H2 database running inside the scheduler's own JVM, either purely in memory or backed by files.
+ * There is no network hop, so it is what we use for local runs, CI and benchmarks. The schema is created by
+ * the migrations on first start.
+ */
+public class EmbeddedBackend extends StorageBackend {
+
+    private final String url;
+    private final String description;
+
+    private EmbeddedBackend(String url, String description) {
+        this.url = url;
+        this.description = description;
+    }
+
+    // DB_CLOSE_DELAY=-1 keeps the database alive while the pool has no open connection
+    public static EmbeddedBackend inMemory() {
+        return new EmbeddedBackend("jdbc:h2:mem:scheduler;DB_CLOSE_DELAY=-1", "embedded:mem");
+    }
+
+    // another connection to the same process' databases, which is what local runs use as a read replica
+    public static EmbeddedBackend inMemory(String name) {
+        return new EmbeddedBackend("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", "embedded:mem:" + name);
+    }
+
+    public static EmbeddedBackend inFile(String path) {
+        if (path.isEmpty()) {
+            throw new IllegalArgumentException("embedded:file needs a path, e.g. embedded:file:./data/scheduler");
+        }
+        return new EmbeddedBackend("jdbc:h2:file:" + path, "embedded:file:" + path);
+    }
+
+    @Override
+    public String getName() {
+        return description;
+    }
+
+    @Override
+    public Dialect getDialect() {
+        return Dialect.H2;
+    }
+
+    @Override
+    protected String getDriverName() {
+        return "org.h2.Driver";
+    }
+
+    @Override
+    protected String getUrl() {
+        return url;
+    }
+
+    @Override
+    protected String getUserName() {
+        return "sa";
+    }
+
+    @Override
+    protected String getPassword() {
+        return "";
+    }
+}
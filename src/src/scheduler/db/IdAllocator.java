@@ -0,0 +1,177 @@
+package scheduler.db;
+
+import scheduler.util.Config;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out appointment IDs from memory, going to the database once per block of IDs instead of once per
+ * appointment (the hi-lo pattern).
+ *
+ * The Appointments row of the Sequences table in the global shard holds the first ID nobody has been given yet.
+ * Taking a block moves it on by IdBlockSize (100 by default) in one UPDATE, so every process gets blocks of its
+ * own; the IDs of the current block are then counted off an AtomicLong. IDs are unique and increasing within a
+ * process but not without gaps: whatever is left of a block when the process stops is never handed out, and
+ * neither is the ID of a reservation that found no slot. On first use the row is created, or moved past the
+ * highest ID any shard has, so appointments written by older versions (with MAX(ID) + 1) are never repeated.
+ *
+ * Waitlist entry IDs come from the Waitlist row, one at a time in the transaction that adds the entries
+ * ({@link #nextWaitlistIds}). Entries are served in ID order, so they are not handed out in blocks: a process
+ * with a block of its own would put its later entries ahead of the earlier ones of other processes.
+ */
+public class IdAllocator {
+
+    private static final String APPOINTMENTS = "Appointments";
+    private static final String WAITLIST = "Waitlist";
+
+    private static IdAllocator instance = null;
+
+    private final int blockSize = Math.max(1, Config.getInt("IdBlockSize", 100));
+    private final Object refillLock = new Object();
+    // starts used up, so the first next() takes a block
+    private volatile Block block = new Block(0, 0);
+    private volatile boolean initialized = false;
+
+    private IdAllocator() {
+    }
+
+    public static synchronized IdAllocator getInstance() {
+        if (instance == null) {
+            instance = new IdAllocator();
+        }
+        return instance;
+    }
+
+    // a new appointment ID; when the block is used up this borrows a connection of the global shard, so callers
+    // must not hold one
+    public long next() throws SQLException {
+        while (true) {
+            Block current = block;
+            long id = current.next.getAndIncrement();
+            if (id < current.end) {
+                return id;
+            }
+            refill(current);
+        }
+    }
+
+    // the first of count consecutive new appointment IDs; more than one are taken from the table as a block of
+    // their own, so a batch does not use up the shared block
+    public long next(int count) throws SQLException {
+        if (count == 1) {
+            return next();
+        }
+        return reserve(count);
+    }
+
+    // the first of count consecutive new waitlist entry IDs, taken in the caller's transaction on con, a connection
+    // of the global shard; other transactions taking waitlist IDs wait until the caller commits or rolls back
+    public static int nextWaitlistIds(Connection con, int count) throws SQLException {
+        return Math.toIntExact(advance(con, WAITLIST, count));
+    }
+
+    private void refill(Block used) throws SQLException {
+        synchronized (refillLock) {
+            // another thread may have taken the next block while we waited
+            if (block == used) {
+                long first = reserve(blockSize);
+                block = new Block(first, first + blockSize);
+            }
+        }
+    }
+
+    // moves the sequence on by count and returns where it was
+    private long reserve(int count) throws SQLException {
+        if (!initialized) {
+            initialize();
+        }
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        try {
+            con.setAutoCommit(false);
+            try {
+                long first = advance(con, APPOINTMENTS, count);
+                con.commit();
+                return first;
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            }
+        } finally {
+            // the pool switches auto-commit back on when the connection is returned
+            cm.returnConnection(con);
+        }
+    }
+
+    // moves the sequence name on by count in the transaction on con and returns where it was
+    private static long advance(Connection con, String name, int count) throws SQLException {
+        // the row stays locked until the commit, so nobody else reads the value we moved it to
+        try (PreparedStatement statement = con.prepareStatement(Queries.ADVANCE_SEQUENCE)) {
+            statement.setInt(1, count);
+            statement.setString(2, name);
+            if (statement.executeUpdate() != 1) {
+                throw new SQLException("The " + name + " ID sequence is missing");
+            }
+        }
+        try (PreparedStatement statement = con.prepareStatement(Queries.GET_SEQUENCE)) {
+            statement.setString(1, name);
+            try (ResultSet rs = statement.executeQuery()) {
+                rs.next();
+                return rs.getLong("Next_Value") - count;
+            }
+        }
+    }
+
+    private synchronized void initialize() throws SQLException {
+        if (initialized) {
+            return;
+        }
+        long next = 1;
+        ShardRouter router = ShardRouter.getInstance();
+        for (long id : router.fanOut(router.all(), false, IdAllocator::firstFreeId)) {
+            next = Math.max(next, id);
+        }
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        try {
+            try (PreparedStatement statement = con.prepareStatement(Queries.ADD_SEQUENCE)) {
+                statement.setString(1, APPOINTMENTS);
+                statement.setLong(2, next);
+                statement.setString(3, APPOINTMENTS);
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = con.prepareStatement(Queries.RAISE_SEQUENCE)) {
+                statement.setLong(1, next);
+                statement.setString(2, APPOINTMENTS);
+                statement.setLong(3, next);
+                statement.executeUpdate();
+            }
+        } finally {
+            cm.returnConnection(con);
+        }
+        initialized = true;
+    }
+
+    private static long firstFreeId(Shard shard, Connection con) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(Queries.NEXT_APPOINTMENT_ID);
+             ResultSet rs = statement.executeQuery()) {
+            rs.next();
+            return rs.getLong("ID");
+        }
+    }
+
+    // the IDs from next up to end (exclusive)
+    private static class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        private Block(long first, long end) {
+            this.next = new AtomicLong(first);
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package scheduler.db;
+
+import scheduler.util.Config;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Brings a database's schema up to date by running the scripts it has not seen yet, in version order.
+ *
+ * Applied versions are recorded in the SchemaVersions table. A migration's script is looked up as
+ * resources/&lt;script&gt;.&lt;dialect&gt;.sql first (e.g. migrations/002_appointment_indexes.sqlserver.sql) and
+ * resources/&lt;script&gt;.sql otherwise, so a migration only needs a dialect specific file where the SQL differs.
+ * Version 1 is resources/create.sql; a database whose tables were created by hand before migrations existed is
+ * recorded as being at version 1 without running it. New migrations are added to the end of MIGRATIONS and never
+ * changed once released.
+ *
+ * A migration's statements and its SchemaVersions row are sent in one transaction. On SQL Server, where schema
+ * changes are transactional, a migration that fails leaves nothing behind. H2 commits every CREATE, ALTER and DROP
+ * on its own, so a script that fails part way keeps the statements before the failing one but gets no
+ * SchemaVersions row, and running it again stops at the first of them ("already exists"). That has to be put
+ * right by hand: either undo the statements that ran, or run the rest of the script and insert the migration's
+ * SchemaVersions row, then start the scheduler again. The error says how many of the statements had run.
+ *
+ * With MigrationPlanCheck on, the query plans of the scheduler's main lookups are printed before and after the
+ * pending migrations run (or just as they are, if nothing is pending), and any lookup that still reads a whole
+ * table is pointed out.
+ */
+public class MigrationRunner {
+
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Migration(1, "create tables", "create"),
+            new Migration(2, "appointment lookup indexes", "migrations/002_appointment_indexes"),
+            new Migration(3, "availability by caregiver index", "migrations/003_availability_caregiver_index"),
+            new Migration(4, "time slots", "migrations/004_time_slots"),
+            new Migration(5, "waitlist", "migrations/005_waitlist"),
+            new Migration(6, "write-behind progress", "migrations/006_write_behind"),
+            new Migration(7, "sequences", "migrations/007_sequences"),
+            new Migration(8, "bigint appointment IDs", "migrations/008_bigint_appointment_ids"),
+            new Migration(9, "waitlist sequence", "migrations/009_waitlist_sequence")
+    );
+
+    // the schema of a date shard (see ShardRouter), which only has the tables kept by date
+    private static final List<Migration> DATE_SHARD_MIGRATIONS = Arrays.asList(
+            new Migration(1, "date shard tables", "shard/001_date_tables"),
+            // for shards made while 001 still had int IDs; shards made since already have bigint ones
+            new Migration(2, "bigint appointment IDs", "migrations/008_bigint_appointment_ids")
+    );
+
+    private static final String CREATE_VERSIONS =
+            "CREATE TABLE SchemaVersions (" +
+            "    Version int," +
+            "    Description varchar(255)," +
+            "    Applied_At datetime," +
+            "    PRIMARY KEY (Version)" +
+            ")";
+    private static final String GET_VERSIONS = "SELECT Version FROM SchemaVersions";
+    private static final String ADD_VERSION =
+            "INSERT INTO SchemaVersions (Version, Description, Applied_At) VALUES (?, ?, CURRENT_TIMESTAMP)";
+
+    // the lookups the indexes are for; the plan check explains each of them
+    private static final List<AccessPath> ACCESS_PATHS = Arrays.asList(
+            new AccessPath("showCaregiverAppointments",
+                    "SELECT ID, Vaccine_Name, Time, Slot_Start, Slot_Minutes, Patient_Name FROM Appointments " +
+                    "WHERE Caregiver_Name = ? AND Time >= ? ORDER BY Time, Slot_Start, ID", "sd"),
+            new AccessPath("showPatientAppointments",
+                    "SELECT ID, Vaccine_Name, Time, Slot_Start, Slot_Minutes, Caregiver_Name FROM Appointments " +
+                    "WHERE Patient_Name = ? AND Time >= ? ORDER BY Time, Slot_Start, ID", "sd"),
+            new AccessPath("obtainSchedule", Queries.GET_SCHEDULE, "dd"),
+            new AccessPath("reserveAppointment", Queries.FIND_SLOTS, "dii"),
+            new AccessPath("caregiverAvailability",
+                    "SELECT Time FROM Availabilities WHERE Username = ? AND Time >= ? ORDER BY Time", "sd")
+    );
+
+    private final Dialect dialect;
+    private final List<Migration> migrations;
+    private final boolean planCheck = Config.getBoolean("MigrationPlanCheck", false);
+
+    public MigrationRunner(Dialect dialect) {
+        this(dialect, MIGRATIONS);
+    }
+
+    private MigrationRunner(Dialect dialect, List<Migration> migrations) {
+        this.dialect = dialect;
+        this.migrations = migrations;
+    }
+
+    public static MigrationRunner forDateShard(Dialect dialect) {
+        return new MigrationRunner(dialect, DATE_SHARD_MIGRATIONS);
+    }
+
+    // run every migration the database has not had yet, returns how many ran
+    public int migrate(Connection con) throws SQLException {
+        Set<Integer> applied = appliedVersions(con);
+        List<Migration> pending = new ArrayList<>();
+        for (Migration migration : migrations) {
+            if (!applied.contains(migration.version)) {
+                pending.add(migration);
+            }
+        }
+        if (pending.isEmpty()) {
+            if (planCheck) {
+                printPlans(null, explainAll(con));
+            }
+            return 0;
+        }
+        // plans are only worth comparing once the tables exist
+        boolean checkPlans = planCheck && applied.contains(1);
+        Map<String, String> before = checkPlans ? explainAll(con) : null;
+
+        for (Migration migration : pending) {
+            apply(con, migration);
+            System.out.println("Applied schema migration " + migration.version + ": " + migration.description);
+        }
+
+        if (checkPlans) {
+            printPlans(before, explainAll(con));
+        }
+        return pending.size();
+    }
+
+    public Map<String, String> explainAll(Connection con) throws SQLException {
+        Map<String, String> plans = new LinkedHashMap<>();
+        for (AccessPath path : ACCESS_PATHS) {
+            try {
+                plans.put(path.name, explain(con, path));
+            } catch (SQLException e) {
+                // the lookups are written for the latest schema, an older one may not have their columns yet
+                plans.put(path.name, "(cannot be explained on this schema: " + e.getMessage() + ")");
+            }
+        }
+        return plans;
+    }
+
+    private Set<Integer> appliedVersions(Connection con) throws SQLException {
+        Set<Integer> applied = new TreeSet<>();
+        if (!tableExists(con, "SchemaVersions")) {
+            try (Statement statement = con.createStatement()) {
+                statement.execute(CREATE_VERSIONS);
+            }
+            // the tables were created by hand from create.sql before there were migrations
+            if (migrations == MIGRATIONS && tableExists(con, "Caregivers")) {
+                record(con, MIGRATIONS.get(0));
+                applied.add(1);
+            }
+            return applied;
+        }
+        try (Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery(GET_VERSIONS)) {
+            while (rs.next()) {
+                applied.add(rs.getInt("Version"));
+            }
+        }
+        return applied;
+    }
+
+    private void apply(Connection con, Migration migration) throws SQLException {
+        List<String> statements = load(migration);
+        con.setAutoCommit(false);
+        int ran = 0;
+        try {
+            try (Statement statement = con.createStatement()) {
+                for (String sql : statements) {
+                    statement.execute(sql);
+                    ran++;
+                }
+            }
+            record(con, migration);
+            con.commit();
+        } catch (SQLException e) {
+            con.rollback();
+            // H2 keeps the schema changes that ran, see the class comment for putting that right
+            String partly = dialect == Dialect.H2 && ran > 0
+                    ? ", after " + ran + " of its " + statements.size() + " statements had been applied" : "";
+            throw new SQLException("Schema migration " + migration.version + " (" + migration.description +
+                    ") failed" + partly, e);
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    private List<String> load(Migration migration) throws SQLException {
+        String specific = "resources/" + migration.script + "." + dialect.name().toLowerCase() + ".sql";
+        try {
+            return SqlScript.load(specific);
+        } catch (IOException e) {
+            // no dialect specific version, use the common one
+        }
+        String common = "resources/" + migration.script + ".sql";
+        try {
+            return SqlScript.load(common);
+        } catch (IOException e) {
+            throw new SQLException("Could not read " + common, e);
+        }
+    }
+
+    private static void record(Connection con, Migration migration) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(ADD_VERSION)) {
+            statement.setInt(1, migration.version);
+            statement.setString(2, migration.description);
+            statement.executeUpdate();
+        }
+    }
+
+    private String explain(Connection pooled, AccessPath path) throws SQLException {
+        // on the driver's connection, a statement prepared under SHOWPLAN must not end up in the statement cache
+        Connection con = pooled instanceof InstrumentedConnection
+                ? ((InstrumentedConnection) pooled).getDelegate() : pooled;
+        StringBuilder plan = new StringBuilder();
+        if (dialect == Dialect.SQLSERVER) {
+            try (Statement statement = con.createStatement()) {
+                statement.execute("SET SHOWPLAN_TEXT ON");
+                try (PreparedStatement query = con.prepareStatement(path.sql)) {
+                    path.bindSamples(query);
+                    readPlan(query, plan);
+                } finally {
+                    statement.execute("SET SHOWPLAN_TEXT OFF");
+                }
+            }
+        } else {
+            try (PreparedStatement query = con.prepareStatement("EXPLAIN " + path.sql)) {
+                path.bindSamples(query);
+                readPlan(query, plan);
+            }
+        }
+        return plan.toString().trim();
+    }
+
+    // SHOWPLAN_TEXT answers with the statement text first and the plan second, keep the last result set
+    private static void readPlan(PreparedStatement query, StringBuilder plan) throws SQLException {
+        boolean isResultSet = query.execute();
+        while (true) {
+            if (isResultSet) {
+                plan.setLength(0);
+                try (ResultSet rs = query.getResultSet()) {
+                    while (rs.next()) {
+                        plan.append(rs.getString(1)).append('\n');
+                    }
+                }
+            } else if (query.getUpdateCount() == -1) {
+                return;
+            }
+            isResultSet = query.getMoreResults();
+        }
+    }
+
+    // before is null when there was nothing to migrate and only the current plans are shown
+    private static void printPlans(Map<String, String> before, Map<String, String> after) {
+        System.out.println(before == null ? "Query plans:" : "Query plans before and after the schema migrations:");
+        for (Map.Entry<String, String> path : after.entrySet()) {
+            if (before == null) {
+                System.out.println("== " + path.getKey());
+                System.out.println(path.getValue());
+            } else {
+                String old = before.get(path.getKey());
+                System.out.println("== " + path.getKey() + (path.getValue().equals(old) ? " (unchanged)" : ""));
+                System.out.println("before: " + old);
+                System.out.println("after:  " + path.getValue());
+            }
+            if (isScan(path.getValue())) {
+                System.out.println("warning: " + path.getKey() + " reads the whole table");
+            }
+        }
+    }
+
+    private static boolean isScan(String plan) {
+        String lower = plan.toLowerCase();
+        return lower.contains("tablescan") || lower.contains("table scan") ||
+                lower.contains("clustered index scan");
+    }
+
+    private static boolean tableExists(Connection con, String name) throws SQLException {
+        // H2 keeps unquoted names in upper case, SQL Server as they were written
+        for (String candidate : new String[]{name, name.toUpperCase()}) {
+            try (ResultSet rs = con.getMetaData().getTables(null, null, candidate, null)) {
+                if (rs.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class AccessPath {
+        private final String name;
+        private final String sql;
+        // one letter per parameter: s for a username, d for a date, i for a minute of the day
+        private final String parameters;
+
+        private AccessPath(String name, String sql, String parameters) {
+            this.name = name;
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+
+        // the values only matter for the plan's estimates
+        private void bindSamples(PreparedStatement query) throws SQLException {
+            Date today = new Date(System.currentTimeMillis());
+            for (int i = 0; i < parameters.length(); i++) {
+                if (parameters.charAt(i) == 'd') {
+                    query.setDate(i + 1, today);
+                } else if (parameters.charAt(i) == 'i') {
+                    query.setInt(i + 1, 0);
+                } else {
+                    query.setString(i + 1, "sample");
+                }
+            }
+        }
+    }
+
+    private static class Migration {
+        private final int version;
+        private final String description;
+        private final String script;
+
+        private Migration(int version, String description, String script) {
+            this.version = version;
+            this.description = description;
+            this.script = script;
+        }
+    }
+}
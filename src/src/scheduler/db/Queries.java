@@ -0,0 +1,160 @@
+package scheduler.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The SQL the scheduler runs on every request, in one place.
+ *
+ * Connections keep the statements they prepare in a {@link StatementCache} keyed by SQL text, so the same query
+ * should always be written with exactly the same text; taking it from here makes sure it is. When a connection is
+ * opened, the statements of {@link #warmUp(Dialect)} are prepared on it ahead of the first request. Statements
+ * whose text is built per call (the appointment pages, which embed their row limit) are cached just the same once
+ * they have been used, they are only not warmed.
+ */
+public final class Queries {
+
+    // accounts
+    public static final String GET_CAREGIVER = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
+    public static final String GET_PATIENT = "SELECT Salt, Hash FROM Patients WHERE Username = ?";
+    public static final String CAREGIVER_EXISTS = "SELECT * FROM Caregivers WHERE Username = ?";
+    public static final String PATIENT_EXISTS = "SELECT * FROM Patients WHERE Username = ?";
+    public static final String ADD_CAREGIVER = "INSERT INTO Caregivers VALUES (?, ?, ?)";
+    public static final String ADD_PATIENT = "INSERT INTO Patients VALUES (?, ?, ?)";
+    public static final String UPDATE_CAREGIVER_HASH = "UPDATE Caregivers SET Salt = ?, Hash = ? WHERE Username = ?";
+    public static final String UPDATE_PATIENT_HASH = "UPDATE Patients SET Salt = ?, Hash = ? WHERE Username = ?";
+    // which of up to FIND_PATIENTS_SIZE usernames exist; unused places are bound to NULL, which matches nothing
+    public static final int FIND_PATIENTS_SIZE = 100;
+    public static final String FIND_PATIENTS =
+            "SELECT Username FROM Patients WHERE Username IN (" + placeholders(FIND_PATIENTS_SIZE) + ")";
+
+    // availability, see Slot for the Slot_Start and Slot_Minutes columns
+    public static final String ADD_AVAILABILITY = "INSERT INTO Availabilities (Time, Username) VALUES (?, ?)";
+    public static final String ADD_SLOT =
+            "INSERT INTO Availabilities (Time, Username, Slot_Start, Slot_Minutes) VALUES (?, ?, ?, ?)";
+    // the caregiver's slots of a day, free or booked: a booked slot is only in Appointments
+    public static final String GET_CAREGIVER_SLOTS =
+            "SELECT Slot_Start, Slot_Minutes FROM Availabilities WHERE Time = ? AND Username = ? " +
+            "UNION ALL SELECT Slot_Start, Slot_Minutes FROM Appointments WHERE Time = ? AND Caregiver_Name = ?";
+    // the whole day, unless the caregiver has a slot that day, free or booked (booked ones overlap any day)
+    public static final String ADD_AVAILABILITY_IF_MISSING =
+            "INSERT INTO Availabilities (Time, Username) SELECT ?, ? " +
+            "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND Username = ?) " +
+            "AND NOT EXISTS (SELECT 1 FROM Appointments WHERE Time = ? AND Caregiver_Name = ? " +
+            "AND Slot_Start < 1440 AND Slot_Start + Slot_Minutes > 0)";
+    public static final String GET_SCHEDULE = "SELECT Time, Username, Slot_Start, Slot_Minutes FROM Availabilities " +
+            "WHERE Time BETWEEN ? AND ? ORDER BY Time, Slot_Start, Username";
+    public static final String LOAD_AVAILABILITIES =
+            "SELECT Time, Username, Slot_Start, Slot_Minutes FROM Availabilities";
+    public static final String LOAD_AVAILABILITIES_ON =
+            "SELECT Username, Slot_Start, Slot_Minutes FROM Availabilities WHERE Time = ?";
+    public static final String LOAD_AVAILABILITIES_BETWEEN =
+            "SELECT Time, Username, Slot_Start, Slot_Minutes FROM Availabilities WHERE Time BETWEEN ? AND ?";
+
+    // vaccines
+    public static final String GET_VACCINE = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
+    public static final String GET_INVENTORY = "SELECT Name, Doses FROM Vaccines ORDER BY Name";
+    public static final String ADD_VACCINE = "INSERT INTO Vaccines VALUES (?, ?)";
+
+    // reservations
+    // the free slots of a day starting between two minutes of the day, earliest first
+    public static final String FIND_SLOTS = "SELECT Username, Slot_Start, Slot_Minutes FROM Availabilities " +
+            "WHERE Time = ? AND Slot_Start BETWEEN ? AND ? ORDER BY Slot_Start, Username";
+    public static final String CLAIM_SLOT =
+            "DELETE FROM Availabilities WHERE Time = ? AND Slot_Start = ? AND Username = ?";
+    public static final String TAKE_DOSE = "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Doses > 0";
+    public static final String TAKE_DOSES = "UPDATE Vaccines SET Doses = Doses - ? WHERE Name = ? AND Doses >= ?";
+    // only read once, to start the IdAllocator's sequence past every existing appointment
+    public static final String NEXT_APPOINTMENT_ID = "SELECT COALESCE(MAX(ID), 0) + 1 AS ID FROM Appointments";
+    public static final String ADD_APPOINTMENT = "INSERT INTO Appointments " +
+            "(ID, Time, Slot_Start, Slot_Minutes, Vaccine_Name, Caregiver_Name, Patient_Name) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    // cancellations
+    public static final String GET_APPOINTMENT = "SELECT Time, Slot_Start, Slot_Minutes, Vaccine_Name, " +
+            "Caregiver_Name, Patient_Name FROM Appointments WHERE ID = ?";
+    public static final String REMOVE_APPOINTMENT = "DELETE FROM Appointments WHERE ID = ?";
+    public static final String GET_CAREGIVER_APPOINTMENTS = "SELECT ID, Time, Slot_Start, Slot_Minutes, " +
+            "Vaccine_Name, Patient_Name FROM Appointments WHERE Caregiver_Name = ? AND Time BETWEEN ? AND ?";
+    public static final String REMOVE_CAREGIVER_APPOINTMENTS =
+            "DELETE FROM Appointments WHERE Caregiver_Name = ? AND Time BETWEEN ? AND ?";
+    // the slot comes back unless the caregiver has made availability overlapping it since
+    public static final String RESTORE_SLOT =
+            "INSERT INTO Availabilities (Time, Username, Slot_Start, Slot_Minutes) SELECT ?, ?, ?, ? " +
+            "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND Username = ? " +
+            "AND Slot_Start < ? AND Slot_Start + Slot_Minutes > ?)";
+    public static final String GET_CAREGIVER_AVAILABILITY = "SELECT Time, Slot_Start, Slot_Minutes " +
+            "FROM Availabilities WHERE Username = ? AND Time BETWEEN ? AND ?";
+    public static final String WITHDRAW_AVAILABILITY =
+            "DELETE FROM Availabilities WHERE Username = ? AND Time BETWEEN ? AND ?";
+    public static final String RETURN_DOSES = "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ?";
+
+    // waitlist, see getWaiting for the order entries are served in
+    public static final String ADD_TO_WAITLIST = "INSERT INTO Waitlist " +
+            "(ID, Patient_Name, Vaccine_Name, From_Date, To_Date) VALUES (?, ?, ?, ?, ?)";
+    public static final String GET_WAITLIST_OF =
+            "SELECT ID, Vaccine_Name, From_Date, To_Date FROM Waitlist WHERE Patient_Name = ? ORDER BY ID";
+    public static final String EXPIRE_WAITLIST = "DELETE FROM Waitlist WHERE To_Date < ?";
+    public static final String REMOVE_FROM_WAITLIST = "DELETE FROM Waitlist WHERE ID = ?";
+    public static final String GET_WAITLIST_ENTRY =
+            "SELECT ID, Patient_Name, Vaccine_Name, From_Date, To_Date, Priority FROM Waitlist WHERE ID = ?";
+    public static final String RESTORE_TO_WAITLIST = "INSERT INTO Waitlist " +
+            "(ID, Patient_Name, Vaccine_Name, From_Date, To_Date, Priority) VALUES (?, ?, ?, ?, ?, ?)";
+    public static final String SET_WAITLIST_PRIORITY = "UPDATE Waitlist SET Priority = ? WHERE Patient_Name = ?";
+
+    // write-behind, see WriteBehindQueue
+    public static final String ADD_WRITE_BEHIND_PROGRESS = "INSERT INTO WriteBehindProgress (Log_Name, " +
+            "Applied_Sequence) SELECT ?, 0 WHERE NOT EXISTS (SELECT 1 FROM WriteBehindProgress WHERE Log_Name = ?)";
+    public static final String GET_WRITE_BEHIND_PROGRESS =
+            "SELECT Applied_Sequence FROM WriteBehindProgress WHERE Log_Name = ?";
+    public static final String SET_WRITE_BEHIND_PROGRESS =
+            "UPDATE WriteBehindProgress SET Applied_Sequence = ? WHERE Log_Name = ?";
+
+    // sequences, see IdAllocator
+    public static final String ADD_SEQUENCE = "INSERT INTO Sequences (Name, Next_Value) SELECT ?, ? " +
+            "WHERE NOT EXISTS (SELECT 1 FROM Sequences WHERE Name = ?)";
+    public static final String RAISE_SEQUENCE =
+            "UPDATE Sequences SET Next_Value = ? WHERE Name = ? AND Next_Value < ?";
+    public static final String ADVANCE_SEQUENCE = "UPDATE Sequences SET Next_Value = Next_Value + ? WHERE Name = ?";
+    public static final String GET_SEQUENCE = "SELECT Next_Value FROM Sequences WHERE Name = ?";
+
+    private static final List<String> COMMON = Arrays.asList(
+            GET_CAREGIVER, GET_PATIENT, CAREGIVER_EXISTS, PATIENT_EXISTS, ADD_CAREGIVER, ADD_PATIENT,
+            ADD_AVAILABILITY_IF_MISSING, ADD_SLOT, GET_SCHEDULE, LOAD_AVAILABILITIES_ON,
+            GET_VACCINE, GET_INVENTORY, RETURN_DOSES
+    );
+
+    private Queries() {
+    }
+
+    private static String placeholders(int n) {
+        StringBuilder s = new StringBuilder("?");
+        for (int i = 1; i < n; i++) {
+            s.append(", ?");
+        }
+        return s.toString();
+    }
+
+    // the next limit waitlist entries by Priority (highest first) and ID after the entry (priority, id); the first
+    // page starts after (Integer.MAX_VALUE, 0)
+    public static String getWaiting(Dialect dialect, int limit) {
+        return "SELECT " + dialect.top(limit) + "ID, Patient_Name, Vaccine_Name, From_Date, To_Date, Priority " +
+                "FROM Waitlist WHERE Priority < ? OR (Priority = ? AND ID > ?) ORDER BY Priority DESC, ID" +
+                dialect.fetchFirst(limit);
+    }
+
+    // the statements worth preparing on every new connection, for the reservation path the dialect takes
+    public static List<String> warmUp(Dialect dialect) {
+        List<String> statements = new ArrayList<>(COMMON);
+        if (dialect.supportsStatementBatches()) {
+            statements.add(ReservationEngine.RESERVE_SQLSERVER);
+        } else {
+            statements.add(ReservationEngine.findSlots(dialect));
+            statements.add(CLAIM_SLOT);
+            statements.add(TAKE_DOSE);
+            statements.add(ADD_APPOINTMENT);
+        }
+        return statements;
+    }
+}
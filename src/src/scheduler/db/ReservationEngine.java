@@ -0,0 +1,439 @@
+package scheduler.db;
+
+import scheduler.index.AvailabilityIndex;
+import scheduler.index.Slot;
+import scheduler.journal.EventJournal;
+import scheduler.util.Config;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Books appointments without double-booking a caregiver, reusing an appointment ID or driving a vaccine's
+ * doses below zero when many patients reserve at once.
+ *
+ * A reservation takes the earliest free slot of the day, or the slot starting at the time the patient asked for.
+ * The appointment's ID comes from the {@link IdAllocator} up front, usually without a round trip.
+ * Claiming the availability row, taking a dose and inserting the appointment happen in one transaction, and
+ * each step only succeeds if the row is still there (DELETE of the claimed availability, UPDATE ... WHERE
+ * Doses > 0). On SQL Server the whole transaction is sent as a single batch, so a successful reservation costs
+ * one round trip; concurrent batches skip each other's locked availability rows (READPAST) instead of queueing
+ * behind them. Other databases run the same steps as separate statements inside one transaction. Deadlocks,
+ * serialization failures and lost races are retried up to ReserveRetries times. A duplicate key is not: the only
+ * key a reservation inserts is its ID, and every attempt uses the same one.
+ *
+ * With date shards (see {@link ShardRouter}) the slot and the appointment are in the shard that owns the date and
+ * the dose in the global shard, so those dates do not use the single batch: the claim and the insert are made in
+ * a transaction on the date's shard, the dose is taken on the global shard, and the shard's transaction is
+ * committed last. Should that commit fail, the dose is given back.
+ */
+public class ReservationEngine {
+
+    public enum Status {
+        RESERVED,
+        NO_CAREGIVER,
+        NO_DOSES
+    }
+
+    static final String RESERVE_SQLSERVER =
+            "SET NOCOUNT ON; " +
+            "SET XACT_ABORT ON; " +
+            "DECLARE @claimed TABLE (Username varchar(255), Slot_Start int, Slot_Minutes int); " +
+            "DECLARE @id bigint = ?; " +
+            "BEGIN TRANSACTION; " +
+            // DELETE TOP cannot be ordered, deleting through an ordered CTE takes the earliest slot
+            "WITH next AS (SELECT TOP (1) * FROM Availabilities WITH (ROWLOCK, READPAST, UPDLOCK) " +
+            "    WHERE Time = ? AND Slot_Start BETWEEN ? AND ? ORDER BY Slot_Start, Username) " +
+            "DELETE FROM next OUTPUT deleted.Username, deleted.Slot_Start, deleted.Slot_Minutes INTO @claimed; " +
+            "IF @@ROWCOUNT = 0 " +
+            "BEGIN " +
+            "    ROLLBACK TRANSACTION; " +
+            "    SELECT 1 AS Status, CAST(NULL AS int) AS ID, CAST(NULL AS varchar(255)) AS Username, " +
+            "        0 AS Slot_Start, 0 AS Slot_Minutes; " +
+            "END " +
+            "ELSE " +
+            "BEGIN " +
+            "    UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Doses > 0; " +
+            "    IF @@ROWCOUNT = 0 " +
+            "    BEGIN " +
+            "        ROLLBACK TRANSACTION; " +
+            "        SELECT 2 AS Status, CAST(NULL AS int) AS ID, CAST(NULL AS varchar(255)) AS Username, " +
+            "            0 AS Slot_Start, 0 AS Slot_Minutes; " +
+            "    END " +
+            "    ELSE " +
+            "    BEGIN " +
+            "        INSERT INTO Appointments " +
+            "            (ID, Time, Slot_Start, Slot_Minutes, Vaccine_Name, Caregiver_Name, Patient_Name) " +
+            "            SELECT @id, ?, Slot_Start, Slot_Minutes, ?, Username, ? FROM @claimed; " +
+            "        COMMIT TRANSACTION; " +
+            "        SELECT 0 AS Status, @id AS ID, Username, Slot_Start, Slot_Minutes FROM @claimed; " +
+            "    END " +
+            "END";
+
+    // how many free slots the multi-statement path looks at before giving up and retrying
+    private static final int CANDIDATES = 16;
+
+    private static ReservationEngine instance = null;
+
+    private final int maxAttempts = Math.max(1, Config.getInt("ReserveRetries", 5));
+
+    // counters for throughput measurements
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    private ReservationEngine() {
+    }
+
+    public static synchronized ReservationEngine getInstance() {
+        if (instance == null) {
+            instance = new ReservationEngine();
+        }
+        return instance;
+    }
+
+    // the earliest free slot of the day
+    public Result reserve(Date d, String vaccine, String patient) throws SQLException {
+        return reserve(d, -1, vaccine, patient);
+    }
+
+    // the slot starting at minute startMinute of the day, or the earliest free one if startMinute is negative
+    public Result reserve(Date d, int startMinute, String vaccine, String patient) throws SQLException {
+        ShardRouter router = ShardRouter.getInstance();
+        Shard shard = router.forDate(d);
+        ConnectionManager cm = shard.getPool();
+        int from = startMinute < 0 ? 0 : startMinute;
+        int to = startMinute < 0 ? Slot.MINUTES_PER_DAY - 1 : startMinute;
+        long start = System.nanoTime();
+        // the batch takes the dose in the same database
+        boolean oneBatch = cm.getDialect() == Dialect.SQLSERVER && shard.isGlobal();
+        // asked before borrowing, the index may need a connection of its own to refresh the day and the allocator
+        // one of the global shard
+        List<Slot> indexed = oneBatch ? null : indexedCandidates(d, from, to);
+        long id = IdAllocator.getInstance().next();
+        Connection con = cm.borrowConnection();
+        ConnectionManager doses = router.global().getPool();
+        Connection dosesCon = null;
+        try {
+            if (!shard.isGlobal()) {
+                dosesCon = doses.borrowConnection();
+            }
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    // a retry means the index was behind, so retries ask the database
+                    Result result = oneBatch
+                            ? reserveInOneBatch(con, id, d, from, to, vaccine, patient)
+                            : reserveInTransaction(con, dosesCon, id, d, from, to, attempt == 1 ? indexed : null,
+                                    vaccine, patient);
+                    if (result != null) {
+                        if (result.getStatus() == Status.RESERVED) {
+                            AvailabilityIndex.getInstance().removed(d, result.getSlot());
+                            EventJournal.reserved(id, d, result.getSlot(), vaccine, patient);
+                            reserved.incrementAndGet();
+                        } else {
+                            rejected.incrementAndGet();
+                        }
+                        return result;
+                    }
+                    // another patient claimed the same slots between our read and our delete
+                    AvailabilityIndex.getInstance().invalidate(d);
+                } catch (SQLException e) {
+                    if (!isRetryable(e) || isDuplicateKey(e) || attempt >= maxAttempts) {
+                        failures.incrementAndGet();
+                        throw e;
+                    }
+                }
+                if (attempt >= maxAttempts) {
+                    failures.incrementAndGet();
+                    throw new SQLException("Could not reserve an appointment after " + attempt + " attempts");
+                }
+                retries.incrementAndGet();
+                backOff(attempt);
+            }
+        } finally {
+            cm.returnConnection(con);
+            doses.returnConnection(dosesCon);
+            busyNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(reserved.get(), rejected.get(), retries.get(), failures.get(), busyNanos.get());
+    }
+
+    // the first CANDIDATES free slots of a day starting between two minutes
+    static String findSlots(Dialect dialect) {
+        return Queries.FIND_SLOTS + dialect.fetchFirst(CANDIDATES);
+    }
+
+    private Result reserveInOneBatch(Connection con, long id, Date d, int from, int to, String vaccine,
+                                     String patient) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(RESERVE_SQLSERVER)) {
+            statement.setLong(1, id);
+            statement.setDate(2, d);
+            statement.setInt(3, from);
+            statement.setInt(4, to);
+            statement.setString(5, vaccine);
+            statement.setDate(6, d);
+            statement.setString(7, vaccine);
+            statement.setString(8, patient);
+            boolean isResultSet = statement.execute();
+            while (!isResultSet && statement.getUpdateCount() != -1) {
+                isResultSet = statement.getMoreResults();
+            }
+            if (!isResultSet) {
+                throw new SQLException("Reservation batch returned no status");
+            }
+            try (ResultSet rs = statement.getResultSet()) {
+                rs.next();
+                int status = rs.getInt("Status");
+                if (status == 1) {
+                    return new Result(Status.NO_CAREGIVER, 0, null);
+                } else if (status == 2) {
+                    return new Result(Status.NO_DOSES, 0, null);
+                }
+                Slot slot = new Slot(rs.getString("Username"), rs.getInt("Slot_Start"), rs.getInt("Slot_Minutes"));
+                return new Result(Status.RESERVED, rs.getLong("ID"), slot);
+            }
+        }
+    }
+
+    // returns null when every slot we picked was taken by someone else and the caller should try again. The dose is
+    // taken on dosesCon if the date is in a date shard (null otherwise).
+    private Result reserveInTransaction(Connection con, Connection dosesCon, long id, Date d, int from, int to,
+                                        List<Slot> indexed, String vaccine, String patient) throws SQLException {
+        con.setAutoCommit(false);
+        try {
+            List<Slot> candidates = indexed != null ? indexed : findCandidates(con, d, from, to);
+            if (candidates.isEmpty()) {
+                con.rollback();
+                return new Result(Status.NO_CAREGIVER, 0, null);
+            }
+            Slot slot = claimSlot(con, d, candidates);
+            if (slot == null) {
+                con.rollback();
+                return null;
+            }
+            if (dosesCon == null && !takeDose(con, vaccine)) {
+                con.rollback();
+                return new Result(Status.NO_DOSES, 0, null);
+            }
+            insertAppointment(con, id, d, slot, vaccine, patient);
+            if (dosesCon == null) {
+                con.commit();
+                return new Result(Status.RESERVED, id, slot);
+            }
+            if (!takeDose(dosesCon, vaccine)) {
+                con.rollback();
+                return new Result(Status.NO_DOSES, 0, null);
+            }
+            try {
+                con.commit();
+            } catch (SQLException e) {
+                returnDose(dosesCon, vaccine);
+                throw e;
+            }
+            return new Result(Status.RESERVED, id, slot);
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    // deletes the first of the candidates that is still free and returns it, null if none of them is
+    private static Slot claimSlot(Connection con, Date d, List<Slot> candidates) throws SQLException {
+        // start at a random one of the earliest slots so concurrent patients don't all fight over the first
+        int earliest = 1;
+        int start = candidates.get(0).getStart();
+        while (earliest < candidates.size() && candidates.get(earliest).getStart() == start) {
+            earliest++;
+        }
+        int first = ThreadLocalRandom.current().nextInt(earliest);
+        try (PreparedStatement statement = con.prepareStatement(Queries.CLAIM_SLOT)) {
+            for (int i = 0; i < candidates.size(); i++) {
+                Slot candidate = candidates.get(i < earliest ? (first + i) % earliest : i);
+                statement.setDate(1, d);
+                statement.setInt(2, candidate.getStart());
+                statement.setString(3, candidate.getCaregiver());
+                if (statement.executeUpdate() == 1) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean takeDose(Connection con, String vaccine) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(Queries.TAKE_DOSE)) {
+            statement.setString(1, vaccine);
+            return statement.executeUpdate() == 1;
+        }
+    }
+
+    private static void returnDose(Connection con, String vaccine) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(Queries.RETURN_DOSES)) {
+            statement.setInt(1, 1);
+            statement.setString(2, vaccine);
+            statement.executeUpdate();
+        }
+    }
+
+    private static void insertAppointment(Connection con, long id, Date d, Slot slot, String vaccine,
+                                          String patient) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(Queries.ADD_APPOINTMENT)) {
+            statement.setLong(1, id);
+            statement.setDate(2, d);
+            statement.setInt(3, slot.getStart());
+            statement.setInt(4, slot.getMinutes());
+            statement.setString(5, vaccine);
+            statement.setString(6, slot.getCaregiver());
+            statement.setString(7, patient);
+            statement.executeUpdate();
+        }
+    }
+
+    // the first CANDIDATES free slots starting between from and to according to the index, null if it is off
+    private static List<Slot> indexedCandidates(Date d, int from, int to) throws SQLException {
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        if (!index.isEnabled()) {
+            return null;
+        }
+        List<Slot> candidates = new ArrayList<>();
+        for (Slot slot : index.slotsOn(d, from, to)) {
+            if (candidates.size() == CANDIDATES) {
+                break;
+            }
+            candidates.add(slot);
+        }
+        return candidates;
+    }
+
+    // the first CANDIDATES free slots starting between from and to according to the database
+    private static List<Slot> findCandidates(Connection con, Date d, int from, int to) throws SQLException {
+        List<Slot> candidates = new ArrayList<>();
+        Dialect dialect = ShardRouter.getInstance().forDate(d).getPool().getDialect();
+        try (PreparedStatement statement = con.prepareStatement(findSlots(dialect))) {
+            statement.setDate(1, d);
+            statement.setInt(2, from);
+            statement.setInt(3, to);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    candidates.add(new Slot(rs.getString("Username"), rs.getInt("Slot_Start"),
+                            rs.getInt("Slot_Minutes")));
+                }
+            }
+        }
+        return candidates;
+    }
+
+    // deadlock victims, serialization failures, lock timeouts and primary key collisions are worth another try
+    public static boolean isRetryable(SQLException e) {
+        String state = e.getSQLState();
+        if (state == null) {
+            return false;
+        }
+        int code = e.getErrorCode();
+        return state.equals("40001") || state.equals("HYT00") || state.equals("23505") ||
+                code == 1205 || code == 2627 || code == 2601;
+    }
+
+    public static boolean isDuplicateKey(SQLException e) {
+        int code = e.getErrorCode();
+        return "23505".equals(e.getSQLState()) || code == 2627 || code == 2601;
+    }
+
+    public static void backOff(int attempt) {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(1, 5 * attempt + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static class Result {
+        private final Status status;
+        private final long appointmentId;
+        private final Slot slot;
+
+        private Result(Status status, long appointmentId, Slot slot) {
+            this.status = status;
+            this.appointmentId = appointmentId;
+            this.slot = slot;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public long getAppointmentId() {
+            return appointmentId;
+        }
+
+        public String getCaregiver() {
+            return slot == null ? null : slot.getCaregiver();
+        }
+
+        // the slot that was booked, null unless RESERVED
+        public Slot getSlot() {
+            return slot;
+        }
+    }
+
+    public static class Stats {
+        private final long reserved;
+        private final long rejected;
+        private final long retries;
+        private final long failures;
+        private final long busyNanos;
+
+        private Stats(long reserved, long rejected, long retries, long failures, long busyNanos) {
+            this.reserved = reserved;
+            this.rejected = rejected;
+            this.retries = retries;
+            this.failures = failures;
+            this.busyNanos = busyNanos;
+        }
+
+        public long getReserved() {
+            return reserved;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getRetries() {
+            return retries;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "ReservationStats{" +
+                    "reserved=" + reserved +
+                    ", rejected=" + rejected +
+                    ", retries=" + retries +
+                    ", failures=" + failures +
+                    ", avgMicros=" + (reserved + rejected == 0 ? 0 : busyNanos / (reserved + rejected) / 1000) +
+                    '}';
+        }
+    }
+}
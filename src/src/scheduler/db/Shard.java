@@ -0,0 +1,60 @@
+package scheduler.db;
+
+import java.sql.Date;
+import java.time.LocalDate;
+
+/**
+ * One of the databases of {@link ShardRouter}: the global one, or a date shard owning the dates from its first
+ * date up to the first date of the next shard.
+ */
+public class Shard {
+
+    private final String name;
+    private final ConnectionManager pool;
+    // null for the global shard, which owns the dates before the first date shard
+    private final LocalDate first;
+    // the first date of the next shard, null if no shard follows
+    private LocalDate next = null;
+
+    Shard(String name, ConnectionManager pool, LocalDate first) {
+        this.name = name;
+        this.pool = pool;
+        this.first = first;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ConnectionManager getPool() {
+        return pool;
+    }
+
+    public boolean isGlobal() {
+        return first == null;
+    }
+
+    LocalDate getFirst() {
+        return first;
+    }
+
+    void setNext(LocalDate next) {
+        this.next = next;
+    }
+
+    public boolean owns(Date d) {
+        LocalDate day = d.toLocalDate();
+        return (first == null || !day.isBefore(first)) && (next == null || day.isBefore(next));
+    }
+
+    // whether any date from from to to (either may be null for no bound) is ours
+    boolean overlaps(Date from, Date to) {
+        return (from == null || next == null || from.toLocalDate().isBefore(next)) &&
+                (to == null || first == null || !to.toLocalDate().isBefore(first));
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
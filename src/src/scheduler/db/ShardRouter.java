@@ -0,0 +1,185 @@
+package scheduler.db;
+
+import scheduler.util.Config;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Spreads Availabilities and Appointments over several databases by date, so the booking history does not all
+ * pile up in one of them.
+ *
+ * Shards lists the date shards as &lt;first date&gt;=&lt;backend&gt;, separated by commas, with the backend named
+ * as in {@link StorageBackend} (e.g. Shards=2027-01-01=embedded:mem:y2027,2028-01-01=embedded:mem:y2028). A date
+ * shard owns the dates from its first date up to the first date of the next one; the last one owns every date
+ * after it. The dates before the first date shard, and everything that is not kept by date (caregivers, patients,
+ * vaccines, the waitlist), stay in the database of the Backend setting, the global shard. Without Shards the
+ * global shard is the only one and nothing changes.
+ *
+ * Each date shard has a pool and a schema of its own (resources/shard), with only the two tables kept by date and
+ * no foreign keys into the global shard. Work on one date goes to the shard that owns it ({@link #forDate}); a
+ * lookup over a range of dates, or over a user's whole history, goes to every shard that may have rows for it
+ * ({@link #covering}) at the same time with {@link #fanOut}. Shards own disjoint dates in order, so answers that
+ * are ordered by date are merged by putting the shards' answers one after the other. Appointment IDs come from
+ * {@link IdAllocator}, which counts them in the global shard, so they are unique across the shards.
+ */
+public class ShardRouter {
+
+    private static ShardRouter instance = null;
+
+    private final Shard global;
+    // the global shard first, then the date shards in date order
+    private final List<Shard> shards = new ArrayList<>();
+    // platform threads: callers are often virtual threads inside synchronized blocks (H2, lazy singletons), and a
+    // virtual thread waiting there pins its carrier, which could leave none to run the shard queries
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "shard-query");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ShardRouter() {
+        global = new Shard("global", ConnectionManager.getInstance(), null);
+        shards.add(global);
+        List<Shard> dated = new ArrayList<>();
+        for (String spec : Config.get("Shards", "").split(",")) {
+            if (spec.trim().isEmpty()) {
+                continue;
+            }
+            int split = spec.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Shards must be listed as <first date>=<backend>, got: " + spec);
+            }
+            LocalDate first;
+            try {
+                first = LocalDate.parse(spec.substring(0, split).trim());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("The first date of a shard must be yyyy-mm-dd, got: " + spec);
+            }
+            String backend = spec.substring(split + 1).trim();
+            dated.add(new Shard(backend, ConnectionManager.openDateShard(StorageBackend.fromSpec(backend, false)),
+                    first));
+        }
+        dated.sort(Comparator.comparing(Shard::getFirst));
+        shards.addAll(dated);
+        for (int i = 0; i + 1 < shards.size(); i++) {
+            if (i > 0 && shards.get(i).getFirst().equals(shards.get(i + 1).getFirst())) {
+                throw new IllegalArgumentException("Two shards start on " + shards.get(i).getFirst());
+            }
+            shards.get(i).setNext(shards.get(i + 1).getFirst());
+        }
+    }
+
+    public static synchronized ShardRouter getInstance() {
+        if (instance == null) {
+            instance = new ShardRouter();
+        }
+        return instance;
+    }
+
+    // closes the date shards' pools; the global one belongs to ConnectionManager
+    public static synchronized void shutdownIfStarted() {
+        if (instance == null) {
+            return;
+        }
+        instance.executor.shutdownNow();
+        for (Shard shard : instance.shards) {
+            if (!shard.isGlobal()) {
+                shard.getPool().shutdown();
+            }
+        }
+    }
+
+    public boolean isSharded() {
+        return shards.size() > 1;
+    }
+
+    public Shard global() {
+        return global;
+    }
+
+    public List<Shard> all() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    public Shard forDate(Date d) {
+        for (int i = shards.size() - 1; i > 0; i--) {
+            if (shards.get(i).owns(d)) {
+                return shards.get(i);
+            }
+        }
+        return global;
+    }
+
+    // the shards that own a date from from to to, in date order; null means no bound on that side
+    public List<Shard> covering(Date from, Date to) {
+        List<Shard> covering = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (shard.overlaps(from, to)) {
+                covering.add(shard);
+            }
+        }
+        return covering;
+    }
+
+    public interface ShardQuery<T> {
+        T run(Shard shard, Connection con) throws SQLException;
+    }
+
+    // runs query on each of shards at the same time and returns the answers in the same order. The connections
+    // are borrowed on the calling thread, so a read (read = true) may go to a replica of the global shard unless
+    // the caller's session is pinned to the primary, see ConnectionManager#borrowReadConnection.
+    public <T> List<T> fanOut(List<Shard> shards, boolean read, ShardQuery<T> query) throws SQLException {
+        List<Connection> connections = new ArrayList<>();
+        try {
+            for (Shard shard : shards) {
+                ConnectionManager pool = shard.getPool();
+                connections.add(read ? pool.borrowReadConnection() : pool.borrowConnection());
+            }
+            if (shards.size() == 1) {
+                return Collections.singletonList(query.run(shards.get(0), connections.get(0)));
+            }
+            List<Future<T>> answers = new ArrayList<>();
+            for (int i = 0; i < shards.size(); i++) {
+                Shard shard = shards.get(i);
+                Connection con = connections.get(i);
+                answers.add(executor.submit(() -> query.run(shard, con)));
+            }
+            // every query has to be done with its connection before the connections go back
+            List<T> results = new ArrayList<>();
+            SQLException failure = null;
+            for (Future<T> answer : answers) {
+                try {
+                    results.add(answer.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                : new SQLException("Shard query failed", e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new SQLException("Interrupted waiting for the shards");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return results;
+        } finally {
+            for (int i = 0; i < connections.size(); i++) {
+                shards.get(i).getPool().returnConnection(connections.get(i));
+            }
+        }
+    }
+}
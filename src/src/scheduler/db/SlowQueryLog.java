@@ -0,0 +1,129 @@
+package scheduler.db;
+
+import scheduler.util.AsyncFileAppender;
+import scheduler.util.Config;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs every prepared statement that takes longer than SlowQueryMillis milliseconds (default 100, a negative
+ * value turns tracing off) with its SQL, the parameters bound to it, the number of rows it affected or returned
+ * and how long it took:
+ * <pre>
+ *     2024-05-01T10:15:30.120Z 412 ms rows=1 UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? ... ['Pfizer']
+ * </pre>
+ * Binary parameters are never written out; the only ones the scheduler binds are password salts and hashes.
+ * Entries go to SlowQueryLogFile (default slow-queries.log) through an {@link AsyncFileAppender}, rotated at
+ * SlowQueryLogMaxBytes and keeping SlowQueryLogFiles files, so a slow statement is not made slower by logging it.
+ */
+public class SlowQueryLog {
+
+    private static SlowQueryLog instance = null;
+
+    private final long thresholdNanos;
+    private final AsyncFileAppender appender;
+
+    private SlowQueryLog() {
+        long millis = Config.getLong("SlowQueryMillis", 100);
+        this.thresholdNanos = millis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(millis);
+        this.appender = millis < 0 ? null : new AsyncFileAppender(
+                Config.get("SlowQueryLogFile", "slow-queries.log"),
+                Config.getLong("SlowQueryLogMaxBytes", 10L * 1024 * 1024),
+                Config.getInt("SlowQueryLogFiles", 5),
+                1024);
+    }
+
+    public static synchronized SlowQueryLog getInstance() {
+        if (instance == null) {
+            instance = new SlowQueryLog();
+        }
+        return instance;
+    }
+
+    // whether statements need to keep their bound parameters around
+    public boolean isEnabled() {
+        return thresholdNanos >= 0;
+    }
+
+    public boolean isSlow(long elapsedNanos) {
+        return thresholdNanos >= 0 && elapsedNanos >= thresholdNanos;
+    }
+
+    public long getDropped() {
+        return appender == null ? 0 : appender.getDropped();
+    }
+
+    // rows is -1 when unknown; parameters must not be changed afterwards, it is formatted on the writer thread
+    void log(String sql, Object[] parameters, int batchSize, long rows, long elapsedNanos, String error) {
+        appender.append(new Entry(System.currentTimeMillis(), sql, parameters, batchSize, rows, elapsedNanos, error));
+    }
+
+    private static class Entry {
+        private final long time;
+        private final String sql;
+        private final Object[] parameters;
+        private final int batchSize;
+        private final long rows;
+        private final long elapsedNanos;
+        private final String error;
+
+        private Entry(long time, String sql, Object[] parameters, int batchSize, long rows, long elapsedNanos,
+                      String error) {
+            this.time = time;
+            this.sql = sql;
+            this.parameters = parameters;
+            this.batchSize = batchSize;
+            this.rows = rows;
+            this.elapsedNanos = elapsedNanos;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder();
+            line.append(Instant.ofEpochMilli(time)).append(' ')
+                .append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)).append(" ms")
+                .append(" rows=").append(rows < 0 ? "?" : String.valueOf(rows));
+            if (batchSize > 0) {
+                line.append(" batch=").append(batchSize);
+            }
+            if (error != null) {
+                line.append(" failed=\"").append(error).append('"');
+            }
+            // one line per entry, whatever the statement looked like in the source
+            line.append(' ').append(sql.replaceAll("\\s+", " ").trim());
+            line.append(batchSize > 0 ? " last=[" : " [");
+            for (int i = 0; i < parameters.length; i++) {
+                if (i > 0) {
+                    line.append(", ");
+                }
+                line.append(format(parameters[i]));
+            }
+            return line.append(']').toString();
+        }
+
+        private static String format(Object value) {
+            if (value == null) {
+                return "NULL";
+            }
+            if (value instanceof byte[]) {
+                return "<" + ((byte[]) value).length + " bytes redacted>";
+            }
+            if (value instanceof InputStream || value instanceof Reader) {
+                return "<stream>";
+            }
+            if (value instanceof Blob || value instanceof Clob) {
+                return "<lob>";
+            }
+            if (value instanceof String) {
+                return "'" + ((String) value).replace("'", "''") + "'";
+            }
+            return value.toString();
+        }
+    }
+}
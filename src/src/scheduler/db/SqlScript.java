@@ -0,0 +1,68 @@
+package scheduler.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the .sql files under resources/ and runs them statement by statement.
+ */
+public class SqlScript {
+
+    // resources/ is a source folder, so scripts are on the classpath; when running straight from a checkout
+    // we fall back to the file next to the sources
+    private static final String SOURCE_DIR = "src/src/";
+
+    public static List<String> load(String resource) throws IOException {
+        String text;
+        InputStream in = SqlScript.class.getResourceAsStream("/" + resource);
+        if (in == null) {
+            File file = new File(SOURCE_DIR + resource);
+            if (!file.exists()) {
+                throw new IOException("Cannot find SQL script " + resource);
+            }
+            in = new FileInputStream(file);
+        }
+        try (InputStream stream = in) {
+            text = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        return split(text);
+    }
+
+    public static void run(Connection con, String resource) throws SQLException {
+        List<String> statements;
+        try {
+            statements = load(resource);
+        } catch (IOException e) {
+            throw new SQLException("Could not read " + resource, e);
+        }
+        try (Statement statement = con.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    // split on ';' and drop "--" comments; the scripts we ship don't put ';' inside string literals
+    static List<String> split(String text) {
+        StringBuilder cleaned = new StringBuilder();
+        for (String line : text.split("\r?\n")) {
+            int comment = line.indexOf("--");
+            cleaned.append(comment >= 0 ? line.substring(0, comment) : line).append('\n');
+        }
+        List<String> statements = new ArrayList<>();
+        for (String sql : cleaned.toString().split(";")) {
+            if (!sql.isBlank()) {
+                statements.add(sql.trim());
+            }
+        }
+        return statements;
+    }
+}
@@ -0,0 +1,45 @@
+package scheduler.db;
+
+import java.util.Objects;
+
+public class SqlServerBackend extends StorageBackend {
+
+    private final String server;
+    private final boolean readOnly;
+
+    public SqlServerBackend(String server, boolean readOnly) {
+        this.server = server;
+        this.readOnly = readOnly;
+    }
+
+    @Override
+    public String getName() {
+        return Objects.equals(server, System.getenv("Server")) ? "sqlserver" : "sqlserver:" + server;
+    }
+
+    @Override
+    public Dialect getDialect() {
+        return Dialect.SQLSERVER;
+    }
+
+    @Override
+    protected String getDriverName() {
+        return "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    }
+
+    @Override
+    protected String getUrl() {
+        return "jdbc:sqlserver://" + server + ".database.windows.net:1433;database=" + System.getenv("DBName") +
+                (readOnly ? ";applicationIntent=ReadOnly" : "");
+    }
+
+    @Override
+    protected String getUserName() {
+        return System.getenv("UserID");
+    }
+
+    @Override
+    protected String getPassword() {
+        return System.getenv("Password");
+    }
+}
@@ -0,0 +1,176 @@
+package scheduler.db;
+
+import scheduler.metrics.Metrics;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The prepared statements of one {@link InstrumentedConnection}, keyed by SQL text and kept open between uses.
+ *
+ * Closing a cached statement gives it back here with its parameters, batch and result set cleared instead of
+ * closing it, so the next prepareStatement of the same SQL on this connection costs neither a round trip nor a
+ * server side parse. At most StatementCacheSize statements are kept (default 64, 0 turns caching off); past that
+ * the least recently used idle one is really closed. A statement that is still in use when the same SQL is
+ * prepared again (two loops over the same query, one inside the other) is not shared, the second caller gets a
+ * statement of its own which is closed as usual.
+ *
+ * A connection is only ever used by one thread at a time, so nothing here is synchronized.
+ */
+public class StatementCache {
+
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> statements;
+    private final Metrics metrics = Metrics.getInstance();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    StatementCache(int capacity) {
+        this.capacity = capacity;
+        // in access order, so the eldest entry is the least recently used
+        this.statements = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    boolean isFull() {
+        return statements.size() >= capacity;
+    }
+
+    boolean contains(String sql) {
+        return statements.containsKey(sql);
+    }
+
+    // the idle cached statement for sql, now in use, or null if the caller has to prepare one
+    InstrumentedPreparedStatement take(String sql) {
+        Entry entry = statements.get(sql);
+        if (entry == null || entry.inUse) {
+            misses++;
+            metrics.statementCacheMiss();
+            return null;
+        }
+        entry.inUse = true;
+        hits++;
+        metrics.statementCacheHit();
+        return entry.statement;
+    }
+
+    // start caching a statement that was just prepared and is in use; false if it is not going to be cached
+    boolean add(String sql, InstrumentedPreparedStatement statement) {
+        if (statements.containsKey(sql)) {
+            return false;
+        }
+        statements.put(sql, new Entry(statement));
+        evictBeyondCapacity();
+        return statements.containsKey(sql);
+    }
+
+    // the statement's user closed it; false if it is no longer cached and should be closed for real
+    boolean release(InstrumentedPreparedStatement statement) {
+        Entry entry = statements.get(statement.getSql());
+        if (entry == null || entry.statement != statement) {
+            return false;
+        }
+        entry.inUse = false;
+        return true;
+    }
+
+    // forget a statement that could not be reset for reuse
+    void remove(InstrumentedPreparedStatement statement) {
+        Entry entry = statements.get(statement.getSql());
+        if (entry != null && entry.statement == statement) {
+            statements.remove(statement.getSql());
+        }
+    }
+
+    // close every idle statement, statements in use are closed by their users
+    void close() {
+        for (Entry entry : statements.values()) {
+            if (!entry.inUse) {
+                closeQuietly(entry.statement.getDelegate());
+            }
+        }
+        statements.clear();
+    }
+
+    Stats getStats() {
+        return new Stats(statements.size(), hits, misses, evictions);
+    }
+
+    private void evictBeyondCapacity() {
+        Iterator<Entry> it = statements.values().iterator();
+        while (statements.size() > capacity && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            evictions++;
+            metrics.statementCacheEviction();
+            // one still in use is closed when its user is done with it, since release will not find it
+            if (!eldest.inUse) {
+                closeQuietly(eldest.statement.getDelegate());
+            }
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // the statement is being thrown away anyway
+        }
+    }
+
+    private static class Entry {
+        private final InstrumentedPreparedStatement statement;
+        private boolean inUse = true;
+
+        private Entry(InstrumentedPreparedStatement statement) {
+            this.statement = statement;
+        }
+    }
+
+    public static class Stats {
+        private final int size;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        private Stats(int size, long hits, long misses, long evictions) {
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "StatementCacheStats{" +
+                    "size=" + size +
+                    ", hits=" + hits +
+                    ", misses=" + misses +
+                    ", evictions=" + evictions +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package scheduler.db;
+
+import scheduler.util.Config;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * Where the scheduler keeps its data. The backend is picked once at startup from the Backend setting
+ * (environment variable, -DBackend=... or the --backend flag of Scheduler):
+ * <ul>
+ *     <li>sqlserver (default) - the Azure SQL Server database named by Server/DBName/UserID/Password</li>
+ *     <li>embedded or embedded:mem - an H2 database living in this process' memory</li>
+ *     <li>embedded:file:&lt;path&gt; - an H2 database stored in files at the given path</li>
+ * </ul>
+ * plus sqlserver:&lt;server&gt; for a SQL Server database on another server with the same DBName/UserID/Password,
+ * and embedded:mem:&lt;name&gt; for an in-memory database of that name ("scheduler" is the one the embedded backend
+ * uses). Read replicas (see {@link ConnectionManager}) and date shards (see {@link ShardRouter}) are named the
+ * same way.
+ */
+public abstract class StorageBackend {
+
+    public static final String SETTING = "Backend";
+
+    public static StorageBackend fromConfig() {
+        return fromSpec(Config.get(SETTING, "sqlserver"), false);
+    }
+
+    // a read replica is only read from, SQL Server is told so it can send us to a readable secondary
+    public static StorageBackend fromSpec(String backend, boolean readOnly) {
+        if (backend.equalsIgnoreCase("sqlserver")) {
+            return new SqlServerBackend(System.getenv("Server"), readOnly);
+        }
+        if (backend.startsWith("sqlserver:")) {
+            return new SqlServerBackend(backend.substring("sqlserver:".length()), readOnly);
+        }
+        if (backend.equalsIgnoreCase("embedded") || backend.equalsIgnoreCase("embedded:mem")) {
+            return EmbeddedBackend.inMemory();
+        }
+        if (backend.startsWith("embedded:mem:")) {
+            return EmbeddedBackend.inMemory(backend.substring("embedded:mem:".length()));
+        }
+        if (backend.startsWith("embedded:file:")) {
+            return EmbeddedBackend.inFile(backend.substring("embedded:file:".length()));
+        }
+        throw new IllegalArgumentException("Unknown backend: " + backend +
+                " (expected sqlserver[:<server>], embedded, embedded:mem[:<name>] or embedded:file:<path>)");
+    }
+
+    public abstract String getName();
+
+    public abstract Dialect getDialect();
+
+    protected abstract String getDriverName();
+
+    protected abstract String getUrl();
+
+    protected abstract String getUserName();
+
+    protected abstract String getPassword();
+
+    // load the JDBC driver, called once before the first connection is opened
+    public void load() {
+        try {
+            Class.forName(getDriverName());
+        } catch (ClassNotFoundException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    public Connection connect() throws SQLException {
+        return DriverManager.getConnection(getUrl(), getUserName(), getPassword());
+    }
+
+    // bring the schema up to date, see MigrationRunner; MigrateOnStartup=off leaves it to the administrator
+    public void initialize(Connection con) throws SQLException {
+        if (Config.getBoolean("MigrateOnStartup", true)) {
+            new MigrationRunner(getDialect()).migrate(con);
+        }
+    }
+
+    // the same for a date shard of ShardRouter, which has a schema of its own
+    public void initializeDateShard(Connection con) throws SQLException {
+        if (Config.getBoolean("MigrateOnStartup", true)) {
+            MigrationRunner.forDateShard(getDialect()).migrate(con);
+        }
+    }
+}
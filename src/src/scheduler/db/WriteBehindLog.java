@@ -0,0 +1,164 @@
+package scheduler.db;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The append-only file behind {@link WriteBehindQueue}. Every record is its length, a CRC32 of its contents and the
+ * contents: the sequence number, the kind of write and its arguments.
+ *
+ * Records are written by {@link #write} and made durable by {@link #sync}; callers that sync while another sync is
+ * under way wait for it and usually find their record already on disk, so a burst of writers shares one fsync.
+ * A crash while a record was being written leaves a record that is cut short or fails its CRC; {@link #recover}
+ * stops at it and cuts it off, as nobody was told it had been saved.
+ */
+class WriteBehindLog {
+
+    // far larger than any record we write, anything bigger is a torn length
+    private static final int MAX_RECORD = 64 * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private final Object syncLock = new Object();
+
+    // sequence of the last record written, and of the last one known to be on disk (guarded by syncLock)
+    private volatile long written = 0;
+    private long synced = 0;
+
+    WriteBehindLog(String path) throws IOException {
+        this.file = new File(path);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    String getPath() {
+        return file.getPath();
+    }
+
+    // every intact record in the log, in the order written; the log is cut back to the end of the last of them
+    List<WriteBehindQueue.Mutation> recover() throws IOException {
+        List<WriteBehindQueue.Mutation> records = new ArrayList<>();
+        long end = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] payload;
+                long crc;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD) {
+                        break;
+                    }
+                    crc = in.readInt() & 0xffffffffL;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (crc(payload) != crc) {
+                    break;
+                }
+                WriteBehindQueue.Mutation record = decode(payload);
+                records.add(record);
+                written = record.getSequence();
+                end += 8 + payload.length;
+            }
+        }
+        if (channel.size() > end) {
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+        synced = written;
+        return records;
+    }
+
+    // callers write one at a time, in sequence order; the record is durable once sync(its sequence) returns
+    void write(WriteBehindQueue.Mutation record) throws IOException {
+        byte[] payload = encode(record);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc(payload)).put(payload).flip();
+        long start = channel.position();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            // don't leave half a record for the next one to be written after, recovery would stop at it
+            channel.truncate(start);
+            channel.position(start);
+            throw e;
+        }
+        written = record.getSequence();
+    }
+
+    void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= sequence) {
+                return;
+            }
+            long upTo = written;
+            channel.force(false);
+            synced = upTo;
+        }
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    // drops every record; only when all of them have been written to the database, by the one writing records
+    void truncate() throws IOException {
+        channel.truncate(0);
+        channel.force(true);
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private static long crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static byte[] encode(WriteBehindQueue.Mutation record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(record.getSequence());
+        out.writeByte(record.getType());
+        out.writeUTF(record.getName());
+        out.writeBoolean(record.getDate() != null);
+        if (record.getDate() != null) {
+            out.writeLong(record.getDate().toLocalDate().toEpochDay());
+        }
+        out.writeInt(record.getAmount());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static WriteBehindQueue.Mutation decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long sequence = in.readLong();
+        byte type = in.readByte();
+        String name = in.readUTF();
+        Date date = in.readBoolean() ? Date.valueOf(LocalDate.ofEpochDay(in.readLong())) : null;
+        int amount = in.readInt();
+        return new WriteBehindQueue.Mutation(sequence, type, name, date, amount);
+    }
+}
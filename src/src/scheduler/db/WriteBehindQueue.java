@@ -0,0 +1,459 @@
+package scheduler.db;
+
+import scheduler.bulk.WaitlistMatcher;
+import scheduler.index.AvailabilityIndex;
+import scheduler.index.Slot;
+import scheduler.journal.EventJournal;
+import scheduler.metrics.LatencyHistogram;
+import scheduler.metrics.Metrics;
+import scheduler.util.Config;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Takes whole-day availability uploads and dose changes off the caller's connection when WriteBehind is on.
+ *
+ * A write is acknowledged as soon as it is in the {@link WriteBehindLog} on local disk (WriteBehindLog, default
+ * write-behind.log) and on the queue. A writer thread takes whatever is queued, waiting up to WriteBehindFlushMillis
+ * for up to WriteBehindBatchSize writes, and writes them to the database in one transaction together with the
+ * sequence number of the last of them in WriteBehindProgress. Only then do the {@link AvailabilityIndex} and the
+ * {@link WaitlistMatcher} hear about the new availability and doses, so nothing is offered before it is in the
+ * database. At most WriteBehindQueueSize writes can be waiting; further callers wait up to WriteBehindPutTimeout
+ * milliseconds for room and then fail.
+ *
+ * On startup the records in the log after the database's sequence number are written before anything new is
+ * accepted, so writes acknowledged by a process that crashed are not lost, and none is written twice. Once every
+ * record has been written and the log is larger than WriteBehindLogMaxBytes it is emptied. A write the database
+ * refuses outright (a constraint violation) is dropped and reported on standard error; when the database cannot be
+ * reached the writer keeps trying, the writes are safe in the log meanwhile.
+ *
+ * Uploads that go through here skip days already uploaded instead of failing, and taking doses the vaccine does
+ * not have is dropped, since the caller has been answered before the database is asked.
+ */
+public class WriteBehindQueue {
+
+    static final byte ADD_AVAILABILITY = 1;
+    static final byte CHANGE_DOSES = 2;
+
+    private static WriteBehindQueue instance = null;
+
+    private final int batchSize = Math.max(1, Config.getInt("WriteBehindBatchSize", 500));
+    private final long flushNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong("WriteBehindFlushMillis", 20));
+    private final long putTimeoutMillis = Config.getLong("WriteBehindPutTimeout", 10000);
+    private final long maxLogBytes = Config.getLong("WriteBehindLogMaxBytes", 16L * 1024 * 1024);
+
+    private final WriteBehindLog log;
+    private final BlockingQueue<Mutation> queue = new LinkedBlockingQueue<>();
+    // one permit per write that may be waiting, given back once it is in the database
+    private final Semaphore room = new Semaphore(Math.max(1, Config.getInt("WriteBehindQueueSize", 10000)));
+    // held while a write gets its sequence number, goes into the log and onto the queue, so all three agree
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final LatencyHistogram latency = Metrics.getInstance().histogram(Metrics.WRITE_BEHIND_FLUSH);
+    private final Thread writerThread;
+
+    private long lastSequence;
+    private volatile long applied;
+    private volatile boolean running = true;
+
+    private WriteBehindQueue() throws SQLException {
+        try {
+            log = new WriteBehindLog(Config.get("WriteBehindLog", "write-behind.log"));
+            applied = readProgress();
+            lastSequence = applied;
+            List<Mutation> pending = new ArrayList<>();
+            for (Mutation record : log.recover()) {
+                lastSequence = Math.max(lastSequence, record.sequence);
+                if (record.sequence > applied) {
+                    pending.add(record);
+                }
+            }
+            // before taking anything new, so the database sees the writes in the order they were acknowledged
+            for (int i = 0; i < pending.size(); i += batchSize) {
+                flush(pending.subList(i, Math.min(pending.size(), i + batchSize)));
+            }
+            if (!pending.isEmpty()) {
+                System.err.println("Replayed " + pending.size() + " writes from " + log.getPath());
+            }
+        } catch (IOException e) {
+            throw new SQLException("Could not open the write-behind log", e);
+        }
+        writerThread = new Thread(this::run, "write-behind");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public static boolean isEnabled() {
+        return Config.getBoolean("WriteBehind", false);
+    }
+
+    // the first call replays what the log holds from an earlier run
+    public static synchronized WriteBehindQueue getInstance() throws SQLException {
+        if (instance == null) {
+            instance = new WriteBehindQueue();
+        }
+        return instance;
+    }
+
+    // write everything queued so far, then stop; does nothing if the queue was never started
+    public static synchronized void shutdownIfStarted() {
+        if (instance != null) {
+            instance.shutdown();
+        }
+    }
+
+    // the whole day as one slot, unless something of that day is there already
+    public void addAvailability(Date d, String caregiver) throws SQLException {
+        append(ADD_AVAILABILITY, caregiver, d, 0);
+    }
+
+    // delta is negative to take doses
+    public void changeDoses(String vaccine, int delta) throws SQLException {
+        append(CHANGE_DOSES, vaccine, null, delta);
+    }
+
+    // sequence number of the last write that is in the database
+    public long getApplied() {
+        return applied;
+    }
+
+    private void append(byte type, String name, Date date, int amount) throws SQLException {
+        try {
+            if (!room.tryAcquire(putTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("The write-behind queue is full");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for room in the write-behind queue");
+        }
+        Mutation record;
+        appendLock.lock();
+        try {
+            if (!running) {
+                room.release();
+                throw new SQLException("The write-behind queue has been shut down");
+            }
+            record = new Mutation(lastSequence + 1, type, name, date, amount);
+            log.write(record);
+            lastSequence = record.sequence;
+            queue.add(record);
+        } catch (IOException e) {
+            room.release();
+            throw new SQLException("Could not write to the write-behind log", e);
+        } finally {
+            appendLock.unlock();
+        }
+        try {
+            log.sync(record.sequence);
+        } catch (IOException e) {
+            throw new SQLException("Could not write to the write-behind log", e);
+        }
+    }
+
+    private void shutdown() {
+        appendLock.lock();
+        try {
+            running = false;
+        } finally {
+            appendLock.unlock();
+        }
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Mutation> group = new ArrayList<>(batchSize);
+        try {
+            while (true) {
+                Mutation first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (!running && queue.isEmpty()) {
+                        return;
+                    }
+                    compact();
+                    continue;
+                }
+                // flush when the group is full or the first write has waited flushNanos, whichever comes first
+                group.add(first);
+                long deadline = System.nanoTime() + flushNanos;
+                while (group.size() < batchSize) {
+                    long wait = deadline - System.nanoTime();
+                    Mutation next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+                flush(group);
+                room.release(group.size());
+                group.clear();
+            }
+        } catch (InterruptedException e) {
+            // what was not written stays in the log for the next start
+        }
+    }
+
+    // writes group, retrying until the database has it
+    private void flush(List<Mutation> group) {
+        long upTo = group.get(group.size() - 1).sequence;
+        List<Mutation> writes = group;
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                publish(writes, applyInTransaction(writes, upTo));
+                applied = upTo;
+                latency.record(System.nanoTime() - start);
+                return;
+            } catch (SQLException e) {
+                latency.recordError();
+                if (isRefused(e) && !writes.isEmpty()) {
+                    if (writes.size() > 1) {
+                        // one at a time, to find the one the database will never take
+                        for (Mutation record : writes) {
+                            flush(Collections.singletonList(record));
+                        }
+                        return;
+                    }
+                    System.err.println("Dropping write-behind record " + writes.get(0) + ": " + e);
+                    writes = Collections.emptyList();
+                    continue;
+                }
+                if (attempt == 1) {
+                    System.err.println("Could not write " + writes.size() + " write-behind records, retrying: " + e);
+                }
+            }
+            sleep(Math.min(1000, 10L * attempt));
+        }
+    }
+
+    // update counts of writes, in order; consecutive writes of the same kind go in one batch. With date shards the
+    // availability of a date shard is written there first, in a transaction per shard; those writes only insert
+    // what is missing, so when the global transaction fails after them, the retry (or the replay of the log on
+    // the next start) finds them done and changes nothing.
+    private int[] applyInTransaction(List<Mutation> writes, long upTo) throws SQLException {
+        int[] counts = new int[writes.size()];
+        ShardRouter router = ShardRouter.getInstance();
+        Map<Shard, List<Integer>> byShard = new LinkedHashMap<>();
+        for (int i = 0; i < writes.size(); i++) {
+            Date d = writes.get(i).date;
+            byShard.computeIfAbsent(d == null ? router.global() : router.forDate(d), k -> new ArrayList<>()).add(i);
+        }
+        for (Map.Entry<Shard, List<Integer>> shard : byShard.entrySet()) {
+            if (!shard.getKey().isGlobal()) {
+                apply(shard.getKey().getPool(), writes, shard.getValue(), counts, -1);
+            }
+        }
+        apply(router.global().getPool(), writes, byShard.getOrDefault(router.global(), Collections.emptyList()),
+                counts, upTo);
+        return counts;
+    }
+
+    // writes the writes at indexes in one transaction on cm's database, with the progress up to upTo unless it is -1
+    private void apply(ConnectionManager cm, List<Mutation> writes, List<Integer> indexes, int[] counts, long upTo)
+            throws SQLException {
+        Connection con = cm.borrowConnection();
+        try {
+            con.setAutoCommit(false);
+            try {
+                int i = 0;
+                while (i < indexes.size()) {
+                    String sql = writes.get(indexes.get(i)).sql();
+                    int end = i;
+                    try (PreparedStatement statement = con.prepareStatement(sql)) {
+                        while (end < indexes.size() && writes.get(indexes.get(end)).sql().equals(sql)) {
+                            writes.get(indexes.get(end)).bind(statement);
+                            statement.addBatch();
+                            end++;
+                        }
+                        int[] batch = statement.executeBatch();
+                        for (int j = 0; j < batch.length; j++) {
+                            counts[indexes.get(i + j)] = batch[j];
+                        }
+                    }
+                    i = end;
+                }
+                if (upTo >= 0) {
+                    try (PreparedStatement statement = con.prepareStatement(Queries.SET_WRITE_BEHIND_PROGRESS)) {
+                        statement.setLong(1, upTo);
+                        statement.setString(2, log.getPath());
+                        statement.executeUpdate();
+                    }
+                }
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            }
+        } finally {
+            // the pool switches auto-commit back on when the connection is returned
+            cm.returnConnection(con);
+        }
+    }
+
+    // tell the index, the waitlist and the journal about what was written
+    private void publish(List<Mutation> writes, int[] counts) {
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        boolean capacityAdded = false;
+        for (int i = 0; i < writes.size(); i++) {
+            Mutation record = writes.get(i);
+            if (record.type == ADD_AVAILABILITY) {
+                if (counts[i] > 0) {
+                    index.added(record.date, Slot.wholeDay(record.name));
+                    EventJournal.availabilityAdded(record.date, Slot.wholeDay(record.name));
+                    capacityAdded = true;
+                } else if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                    index.invalidate(record.date);
+                    EventJournal.availabilityAdded(record.date, Slot.wholeDay(record.name));
+                    capacityAdded = true;
+                }
+            } else if (record.amount > 0) {
+                EventJournal.dosesChanged(record.name, record.amount);
+                capacityAdded = true;
+            } else if (counts[i] == 0) {
+                System.err.println("Dropping write-behind record " + record + ": not enough doses");
+            } else {
+                EventJournal.dosesChanged(record.name, record.amount);
+            }
+        }
+        if (capacityAdded) {
+            WaitlistMatcher.getInstance().capacityAdded();
+        }
+    }
+
+    // empty the log when everything in it is in the database; skipped while a caller is appending
+    private void compact() {
+        if (!appendLock.tryLock()) {
+            return;
+        }
+        try {
+            if (lastSequence == applied && log.size() > maxLogBytes) {
+                log.truncate();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not empty the write-behind log: " + e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private long readProgress() throws SQLException {
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        try {
+            try (PreparedStatement statement = con.prepareStatement(Queries.ADD_WRITE_BEHIND_PROGRESS)) {
+                statement.setString(1, log.getPath());
+                statement.setString(2, log.getPath());
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = con.prepareStatement(Queries.GET_WRITE_BEHIND_PROGRESS)) {
+                statement.setString(1, log.getPath());
+                try (ResultSet rs = statement.executeQuery()) {
+                    rs.next();
+                    return rs.getLong("Applied_Sequence");
+                }
+            }
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+
+    // constraint violations and bad data; a duplicate key is a race with another upload and worth retrying
+    private static boolean isRefused(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23")) && !ReservationEngine.isRetryable(e);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static class Mutation {
+        private final long sequence;
+        private final byte type;
+        private final String name;
+        private final Date date;
+        private final int amount;
+
+        Mutation(long sequence, byte type, String name, Date date, int amount) {
+            this.sequence = sequence;
+            this.type = type;
+            this.name = name;
+            this.date = date;
+            this.amount = amount;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        byte getType() {
+            return type;
+        }
+
+        // the caregiver of an upload, the vaccine of a dose change
+        String getName() {
+            return name;
+        }
+
+        Date getDate() {
+            return date;
+        }
+
+        int getAmount() {
+            return amount;
+        }
+
+        private String sql() {
+            if (type == ADD_AVAILABILITY) {
+                return Queries.ADD_AVAILABILITY_IF_MISSING;
+            }
+            return amount >= 0 ? Queries.RETURN_DOSES : Queries.TAKE_DOSES;
+        }
+
+        private void bind(PreparedStatement statement) throws SQLException {
+            if (type == ADD_AVAILABILITY) {
+                statement.setDate(1, date);
+                statement.setString(2, name);
+                statement.setDate(3, date);
+                statement.setString(4, name);
+                statement.setDate(5, date);
+                statement.setString(6, name);
+            } else if (amount >= 0) {
+                statement.setInt(1, amount);
+                statement.setString(2, name);
+            } else {
+                statement.setInt(1, -amount);
+                statement.setString(2, name);
+                statement.setInt(3, -amount);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "#" + sequence + (type == ADD_AVAILABILITY ? " availability " + name + " " + date :
+                    " doses " + name + " " + (amount >= 0 ? "+" : "") + amount);
+        }
+    }
+}
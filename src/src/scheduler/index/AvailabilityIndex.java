@@ -0,0 +1,304 @@
+package scheduler.index;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Queries;
+import scheduler.db.ShardRouter;
+import scheduler.util.Config;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-local copy of the Availabilities table: date -> the free {@link Slot}s of that day, ordered by start time
+ * and then caregiver, so the first free slot of a day (or of part of a day) and all free slots of a range of days
+ * are read off the front of sorted sets instead of out of the table.
+ *
+ * The table is loaded once on first use and then kept in step by this process' own writes (uploads,
+ * reservations, cancellations). Every date remembers when it was last read from the database; a date older than
+ * AvailabilityIndexMaxAge milliseconds is re-read on the next lookup, so rows written by other processes show up
+ * eventually. Dates nobody has slots on get no entry: they are known to be empty as of the initial load or the last
+ * range read that covered them. Every change stamps its date with a new version number, and what is read from the database only
+ * replaces a date that has not changed since the read started: otherwise the change might be lost (a booked slot
+ * coming back, a new one missing), so the date is kept as it is and marked to be read again on the next lookup.
+ * Set AvailabilityIndex=off to always ask the database.
+ * With date shards (see {@link ShardRouter}) every date is read from the shard that owns it.
+ */
+public class AvailabilityIndex {
+
+    private static AvailabilityIndex instance = null;
+
+    private final boolean enabled = Config.getBoolean("AvailabilityIndex", true);
+    private final long maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong("AvailabilityIndexMaxAge", 60000));
+
+    private final ConcurrentSkipListMap<LocalDate, Entry> byDate = new ConcurrentSkipListMap<>();
+    private final AtomicLong version = new AtomicLong();
+    // date -> the version of its last change; changes and installing what was read are done holding changeLock
+    private final Map<LocalDate, Long> lastChange = new HashMap<>();
+    private final Object changeLock = new Object();
+    private volatile long loadedAt = 0;
+    private volatile boolean loaded = false;
+    // the last range of dates read at once and when, see emptySince
+    private volatile LoadedRange lastRange = null;
+
+    private AvailabilityIndex() {
+    }
+
+    public static synchronized AvailabilityIndex getInstance() {
+        if (instance == null) {
+            instance = new AvailabilityIndex();
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // the free slots of a day that start between two minutes of the day (inclusive), earliest first
+    public NavigableSet<Slot> slotsOn(Date d, int fromMinute, int toMinute) throws SQLException {
+        ensureLoaded();
+        LocalDate day = d.toLocalDate();
+        Entry entry = byDate.get(day);
+        long now = System.nanoTime();
+        long syncedAt = entry == null ? emptySince(day, day) : entry.syncedAt;
+        if (now - syncedAt > maxAgeNanos) {
+            entry = reload(day);
+        }
+        if (entry == null || fromMinute > toMinute) {
+            return Collections.emptyNavigableSet();
+        }
+        // "" sorts before every username, so these bounds take in every caregiver's slot at those minutes
+        NavigableSet<Slot> slots = entry.slots.tailSet(new Slot("", fromMinute, 1), true);
+        if (toMinute + 1 < Slot.MINUTES_PER_DAY) {
+            slots = slots.headSet(new Slot("", toMinute + 1, 1), false);
+        }
+        return Collections.unmodifiableNavigableSet(slots);
+    }
+
+    // all dates from..to (inclusive) that have at least one free slot, in date order
+    public NavigableMap<LocalDate, NavigableSet<Slot>> slotsBetween(Date from, Date to) throws SQLException {
+        ensureLoaded();
+        LocalDate first = from.toLocalDate();
+        LocalDate last = to.toLocalDate();
+        long now = System.nanoTime();
+        NavigableMap<LocalDate, Entry> range = byDate.subMap(first, true, last, true);
+        // a date we have no entry for is only known to be empty as long as the read that found it empty is fresh
+        boolean stale = range.size() < ChronoUnit.DAYS.between(first, last) + 1 &&
+                now - emptySince(first, last) > maxAgeNanos;
+        for (Entry entry : range.values()) {
+            stale |= now - entry.syncedAt > maxAgeNanos;
+        }
+        if (stale) {
+            reloadRange(first, last);
+        }
+        NavigableMap<LocalDate, NavigableSet<Slot>> result = new TreeMap<>();
+        for (Map.Entry<LocalDate, Entry> e : byDate.subMap(first, true, last, true).entrySet()) {
+            if (!e.getValue().slots.isEmpty()) {
+                result.put(e.getKey(), Collections.unmodifiableNavigableSet(e.getValue().slots));
+            }
+        }
+        return result;
+    }
+
+    public void added(Date d, Slot slot) {
+        synchronized (changeLock) {
+            if (loaded) {
+                byDate.computeIfAbsent(d.toLocalDate(), k -> new Entry(loadedAt)).slots.add(slot);
+            }
+            changed(d.toLocalDate());
+        }
+    }
+
+    // a slot was booked or withdrawn; slots are identified by caregiver and start, see Slot.equals
+    public void removed(Date d, Slot slot) {
+        synchronized (changeLock) {
+            Entry entry = byDate.get(d.toLocalDate());
+            if (entry != null) {
+                entry.slots.remove(slot);
+            }
+            changed(d.toLocalDate());
+        }
+    }
+
+    // forget what we know about a date, it is re-read from the database on the next lookup; a date without an
+    // entry gets a stale one, or it would count as known to be empty
+    public void invalidate(Date d) {
+        synchronized (changeLock) {
+            if (loaded) {
+                byDate.computeIfAbsent(d.toLocalDate(), k -> new Entry(0)).syncedAt = staleSince();
+            }
+            changed(d.toLocalDate());
+        }
+    }
+
+    private void ensureLoaded() throws SQLException {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            long now = System.nanoTime();
+            long before = version.get();
+            ShardRouter router = ShardRouter.getInstance();
+            List<Map<LocalDate, Entry>> loads = router.fanOut(router.all(), false, (shard, con) -> {
+                Map<LocalDate, Entry> load = new HashMap<>();
+                try (PreparedStatement statement = con.prepareStatement(Queries.LOAD_AVAILABILITIES)) {
+                    ResultSet rs = statement.executeQuery();
+                    while (rs.next()) {
+                        LocalDate day = rs.getDate("Time").toLocalDate();
+                        load.computeIfAbsent(day, k -> new Entry(now)).slots.add(readSlot(rs));
+                    }
+                }
+                return load;
+            });
+            Map<LocalDate, Entry> fresh = new HashMap<>();
+            for (Map<LocalDate, Entry> load : loads) {
+                fresh.putAll(load);
+            }
+            synchronized (changeLock) {
+                install(fresh, before);
+                // a date without slots that changed during the load may have some now
+                for (Map.Entry<LocalDate, Long> change : lastChange.entrySet()) {
+                    if (change.getValue() > before && !byDate.containsKey(change.getKey())) {
+                        byDate.put(change.getKey(), new Entry(staleSince()));
+                    }
+                }
+                loadedAt = now;
+                loaded = true;
+            }
+        }
+    }
+
+    private Entry reload(LocalDate day) throws SQLException {
+        long before = version.get();
+        Entry fresh = new Entry(System.nanoTime());
+        ConnectionManager cm = ShardRouter.getInstance().forDate(Date.valueOf(day)).getPool();
+        Connection con = cm.borrowConnection();
+        try (PreparedStatement statement = con.prepareStatement(Queries.LOAD_AVAILABILITIES_ON)) {
+            statement.setDate(1, Date.valueOf(day));
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                fresh.slots.add(readSlot(rs));
+            }
+        } finally {
+            cm.returnConnection(con);
+        }
+        synchronized (changeLock) {
+            install(Collections.singletonMap(day, fresh), before);
+            return byDate.get(day);
+        }
+    }
+
+    private void reloadRange(LocalDate first, LocalDate last) throws SQLException {
+        long now = System.nanoTime();
+        long before = version.get();
+        Map<LocalDate, Entry> fresh = new HashMap<>();
+        ShardRouter router = ShardRouter.getInstance();
+        Date from = Date.valueOf(first);
+        Date to = Date.valueOf(last);
+        List<Map<LocalDate, Entry>> loads = router.fanOut(router.covering(from, to), false, (shard, con) -> {
+            Map<LocalDate, Entry> load = new HashMap<>();
+            try (PreparedStatement statement = con.prepareStatement(Queries.LOAD_AVAILABILITIES_BETWEEN)) {
+                statement.setDate(1, from);
+                statement.setDate(2, to);
+                ResultSet rs = statement.executeQuery();
+                while (rs.next()) {
+                    LocalDate day = rs.getDate("Time").toLocalDate();
+                    load.computeIfAbsent(day, k -> new Entry(now)).slots.add(readSlot(rs));
+                }
+            }
+            return load;
+        });
+        for (Map<LocalDate, Entry> load : loads) {
+            fresh.putAll(load);
+        }
+        synchronized (changeLock) {
+            // dates we had slots for and the database has none for any more; dates nobody has slots on are left
+            // out, lastRange says they are empty
+            for (LocalDate day : byDate.subMap(first, true, last, true).keySet()) {
+                fresh.putIfAbsent(day, new Entry(now));
+            }
+            install(fresh, before);
+            lastRange = new LoadedRange(first, last, now);
+        }
+    }
+
+    // when the dates first..last without an entry were last known to be empty: at the initial load, or at the last
+    // range read if it covered them all
+    private long emptySince(LocalDate first, LocalDate last) {
+        LoadedRange range = lastRange;
+        if (range != null && !range.first.isAfter(first) && !range.last.isBefore(last)) {
+            return Math.max(loadedAt, range.readAt);
+        }
+        return loadedAt;
+    }
+
+    // puts what was read from the database once the version was before in place of what the index has; a date
+    // that changed since is kept as it is and marked stale instead. Called holding changeLock.
+    private void install(Map<LocalDate, Entry> fresh, long before) {
+        for (Map.Entry<LocalDate, Entry> e : fresh.entrySet()) {
+            Long changed = lastChange.get(e.getKey());
+            if (changed == null || changed <= before) {
+                byDate.put(e.getKey(), e.getValue());
+                continue;
+            }
+            Entry current = byDate.get(e.getKey());
+            Entry kept = current != null ? current : e.getValue();
+            kept.syncedAt = staleSince();
+            byDate.put(e.getKey(), kept);
+        }
+    }
+
+    // called holding changeLock
+    private void changed(LocalDate day) {
+        lastChange.put(day, version.incrementAndGet());
+    }
+
+    // a sync time that makes the next lookup read the date again
+    private long staleSince() {
+        return System.nanoTime() - maxAgeNanos - 1;
+    }
+
+    private static Slot readSlot(ResultSet rs) throws SQLException {
+        return new Slot(rs.getString("Username"), rs.getInt("Slot_Start"), rs.getInt("Slot_Minutes"));
+    }
+
+    private static class LoadedRange {
+        private final LocalDate first;
+        private final LocalDate last;
+        private final long readAt;
+
+        private LoadedRange(LocalDate first, LocalDate last, long readAt) {
+            this.first = first;
+            this.last = last;
+            this.readAt = readAt;
+        }
+    }
+
+    private static class Entry {
+        private final NavigableSet<Slot> slots = new ConcurrentSkipListSet<>();
+        private volatile long syncedAt;
+
+        private Entry(long syncedAt) {
+            this.syncedAt = syncedAt;
+        }
+    }
+}
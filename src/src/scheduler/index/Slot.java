@@ -0,0 +1,101 @@
+package scheduler.index;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * One bookable stretch of a caregiver's day: Slot_Minutes minutes starting Slot_Start minutes after midnight.
+ *
+ * Availability uploaded for a whole day, and everything that existed before slots did, is a single slot from
+ * 00:00 lasting the whole day, so one reservation still takes the caregiver's day. Slots order by start time and
+ * then by caregiver, which is the order reservations hand them out in.
+ */
+public class Slot implements Comparable<Slot> {
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    private final String caregiver;
+    private final int start;
+    private final int minutes;
+
+    public Slot(String caregiver, int start, int minutes) {
+        if (start < 0 || minutes < 1 || start + minutes > MINUTES_PER_DAY) {
+            throw new IllegalArgumentException("A slot must lie within one day");
+        }
+        this.caregiver = caregiver;
+        this.start = start;
+        this.minutes = minutes;
+    }
+
+    public static Slot wholeDay(String caregiver) {
+        return new Slot(caregiver, 0, MINUTES_PER_DAY);
+    }
+
+    // minutes after midnight of "HH:MM"
+    public static int parseTime(String time) {
+        try {
+            LocalTime t = LocalTime.parse(time);
+            return t.getHour() * 60 + t.getMinute();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Times must be written as HH:MM", e);
+        }
+    }
+
+    public static String formatTime(int minuteOfDay) {
+        return String.format("%02d:%02d", minuteOfDay / 60, minuteOfDay % 60);
+    }
+
+    public String getCaregiver() {
+        return caregiver;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getMinutes() {
+        return minutes;
+    }
+
+    public int getEnd() {
+        return start + minutes;
+    }
+
+    public boolean isWholeDay() {
+        return start == 0 && minutes == MINUTES_PER_DAY;
+    }
+
+    public boolean overlaps(int otherStart, int otherMinutes) {
+        return start < otherStart + otherMinutes && otherStart < start + minutes;
+    }
+
+    // "09:00-09:15", or "" for a whole day so day-based output looks as it always did
+    public String formatTimes() {
+        return isWholeDay() ? "" : formatTime(start) + "-" + formatTime(getEnd());
+    }
+
+    @Override
+    public int compareTo(Slot other) {
+        int byStart = Integer.compare(start, other.start);
+        return byStart != 0 ? byStart : caregiver.compareTo(other.caregiver);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Slot)) {
+            return false;
+        }
+        Slot other = (Slot) o;
+        return start == other.start && caregiver.equals(other.caregiver);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * caregiver.hashCode() + start;
+    }
+
+    @Override
+    public String toString() {
+        return isWholeDay() ? caregiver : caregiver + " " + formatTimes();
+    }
+}
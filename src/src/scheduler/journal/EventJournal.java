@@ -0,0 +1,254 @@
+package scheduler.journal;
+
+import scheduler.index.Slot;
+import scheduler.util.Config;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only history of the bookings: reservations, cancellations, dose changes and availability, one
+ * {@link JournalEvent} per change, numbered from 1 up in the order they were made. Turned on by setting Journal to
+ * a directory; {@link JournalReader} reads it back from any sequence number and follows it as it grows, so
+ * analytics and audits read a file front to back instead of querying the live tables.
+ *
+ * The journal is a series of segment files of JournalSegmentBytes (16 MB by default) named after the sequence
+ * number of their first event. Each is mapped into memory and written like an array: a record is its length, a
+ * CRC32 of its contents and the contents, and the length is written last, so a reader that finds a length finds
+ * the whole record behind it. A length of 0 is where nothing has been written yet, -1 says the events go on in the
+ * next segment. Every start begins a new segment after the events of the last one, which also leaves any record a
+ * crash cut short behind the -1. The operating system writes the mapped pages back to disk on its own (and a
+ * segment is forced to disk when it is full), so events survive a crash of the process but not necessarily one of
+ * the machine.
+ *
+ * Events are published after the change has been committed. Failing to write one is reported on standard error
+ * and does not fail the change.
+ */
+public class EventJournal {
+
+    // a record's length and CRC
+    static final int HEADER = 8;
+    static final int NEXT_SEGMENT = -1;
+    static final String SUFFIX = ".journal";
+
+    private static final boolean ENABLED = !Config.get("Journal", "").isEmpty();
+
+    private static EventJournal instance = null;
+
+    private final Path directory;
+    private final int segmentBytes;
+
+    // guarded by this
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long nextSequence = 1;
+
+    // segments of at least 4 KB
+    EventJournal(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max(4 * 1024, segmentBytes);
+        Files.createDirectories(directory);
+        List<Path> segments = segments(directory);
+        if (segments.isEmpty()) {
+            open(1);
+            return;
+        }
+        Path last = segments.get(segments.size() - 1);
+        nextSequence = firstSequence(last);
+        try (FileChannel previous = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = previous.map(FileChannel.MapMode.READ_WRITE, 0, previous.size());
+            int end = 0;
+            JournalEvent event;
+            while ((event = readAt(buffer, end)) != null) {
+                nextSequence = event.getSequence() + 1;
+                end += HEADER + buffer.getInt(end);
+            }
+            if (end == 0) {
+                // nothing in it, write on in the same one
+                buffer.putInt(0, 0);
+                buffer.force();
+                open(nextSequence);
+                return;
+            }
+            if (end + 4 <= buffer.limit()) {
+                buffer.putInt(end, NEXT_SEGMENT);
+                buffer.force();
+            }
+        }
+        open(nextSequence);
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    // null if the journal is off or cannot be opened
+    private static synchronized EventJournal getInstance() {
+        if (instance == null && ENABLED) {
+            try {
+                instance = new EventJournal(Paths.get(Config.get("Journal", "")),
+                        Config.getInt("JournalSegmentBytes", 16 * 1024 * 1024));
+            } catch (IOException e) {
+                System.err.println("Could not open the event journal, events are not recorded: " + e);
+            }
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdownIfStarted() {
+        if (instance == null) {
+            return;
+        }
+        try {
+            instance.close();
+        } catch (IOException e) {
+            System.err.println("Could not close the event journal: " + e);
+        }
+    }
+
+    public static void reserved(long appointmentId, Date d, Slot slot, String vaccine, String patient) {
+        if (ENABLED) {
+            publish(new JournalEvent(0, System.currentTimeMillis(), JournalEvent.Type.RESERVED, appointmentId,
+                    d.toLocalDate(), slot.getStart(), slot.getMinutes(), 0, vaccine, slot.getCaregiver(), patient));
+        }
+    }
+
+    public static void cancelled(long appointmentId, Date d, Slot slot, String vaccine, String patient) {
+        if (ENABLED) {
+            publish(new JournalEvent(0, System.currentTimeMillis(), JournalEvent.Type.CANCELLED, appointmentId,
+                    d.toLocalDate(), slot.getStart(), slot.getMinutes(), 0, vaccine, slot.getCaregiver(), patient));
+        }
+    }
+
+    // amount is negative when doses were taken
+    public static void dosesChanged(String vaccine, int amount) {
+        if (ENABLED) {
+            publish(new JournalEvent(0, System.currentTimeMillis(), JournalEvent.Type.DOSES_CHANGED, 0, null, 0, 0,
+                    amount, vaccine, null, null));
+        }
+    }
+
+    public static void availabilityAdded(Date d, Slot slot) {
+        if (ENABLED) {
+            publish(new JournalEvent(0, System.currentTimeMillis(), JournalEvent.Type.AVAILABILITY_ADDED, 0,
+                    d.toLocalDate(), slot.getStart(), slot.getMinutes(), 0, null, slot.getCaregiver(), null));
+        }
+    }
+
+    public static void availabilityWithdrawn(Date d, Slot slot) {
+        if (ENABLED) {
+            publish(new JournalEvent(0, System.currentTimeMillis(), JournalEvent.Type.AVAILABILITY_WITHDRAWN, 0,
+                    d.toLocalDate(), slot.getStart(), slot.getMinutes(), 0, null, slot.getCaregiver(), null));
+        }
+    }
+
+    private static void publish(JournalEvent event) {
+        EventJournal journal = getInstance();
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.append(event);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not record " + event.getType() + " in the event journal: " + e);
+        }
+    }
+
+    synchronized void append(JournalEvent event) throws IOException {
+        if (segment == null) {
+            throw new IOException("The event journal is closed");
+        }
+        byte[] payload = event.encode(nextSequence);
+        // room for the record and the -1 after it
+        if (HEADER + payload.length + 4 > segmentBytes) {
+            throw new IllegalArgumentException("Journal record of " + payload.length + " bytes is too large");
+        }
+        if (segment.remaining() < HEADER + payload.length + 4) {
+            segment.putInt(segment.position(), NEXT_SEGMENT);
+            segment.force();
+            channel.close();
+            open(nextSequence);
+        }
+        int position = segment.position();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        segment.putInt(position + 4, (int) crc.getValue());
+        segment.put(position + HEADER, payload);
+        // the contents have to be there before a reader can see the length
+        VarHandle.releaseFence();
+        segment.putInt(position, payload.length);
+        segment.position(position + HEADER + payload.length);
+        nextSequence++;
+    }
+
+    private void open(long firstSequence) throws IOException {
+        Path path = segmentPath(directory, firstSequence);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+
+    synchronized void close() throws IOException {
+        if (segment != null) {
+            segment.force();
+            channel.close();
+            segment = null;
+        }
+    }
+
+    // the intact record at position, null at the end of what was written
+    static JournalEvent readAt(ByteBuffer buffer, int position) {
+        if (position + HEADER > buffer.limit()) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + HEADER + length > buffer.limit()) {
+            return null;
+        }
+        VarHandle.acquireFence();
+        ByteBuffer payload = buffer.slice(position + HEADER, length);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+            return null;
+        }
+        return JournalEvent.decode(payload);
+    }
+
+    // the segments of the journal in directory, oldest first
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        // the names are zero padded, so they sort in sequence order
+        segments.sort(null);
+        return segments;
+    }
+
+    static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    static Path segmentPath(Path directory, long firstSequence) {
+        return directory.resolve(String.format("%020d%s", firstSequence, SUFFIX));
+    }
+}
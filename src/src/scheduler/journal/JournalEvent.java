@@ -0,0 +1,176 @@
+package scheduler.journal;
+
+import scheduler.index.Slot;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * One thing that happened to the bookings, as kept in the {@link EventJournal}. Which fields are set depends on
+ * the type: appointments have all of them but the amount, dose changes only the vaccine and the amount (positive
+ * when doses were added), availability the date and the slot. The dose a reservation takes and a cancellation gives
+ * back is part of that event, DOSES_CHANGED is only for changes to the inventory itself.
+ */
+public class JournalEvent {
+
+    public enum Type {
+        RESERVED,
+        CANCELLED,
+        DOSES_CHANGED,
+        AVAILABILITY_ADDED,
+        AVAILABILITY_WITHDRAWN
+    }
+
+    // stands for no date in a record
+    private static final int NO_DAY = Integer.MIN_VALUE;
+    private static final Type[] TYPES = Type.values();
+
+    private final long sequence;
+    private final long timeMillis;
+    private final Type type;
+    private final long appointmentId;
+    private final LocalDate date;
+    private final int slotStart;
+    private final int slotMinutes;
+    private final int amount;
+    private final String vaccine;
+    private final String caregiver;
+    private final String patient;
+
+    JournalEvent(long sequence, long timeMillis, Type type, long appointmentId, LocalDate date, int slotStart,
+                 int slotMinutes, int amount, String vaccine, String caregiver, String patient) {
+        this.sequence = sequence;
+        this.timeMillis = timeMillis;
+        this.type = type;
+        this.appointmentId = appointmentId;
+        this.date = date;
+        this.slotStart = slotStart;
+        this.slotMinutes = slotMinutes;
+        this.amount = amount;
+        this.vaccine = vaccine;
+        this.caregiver = caregiver;
+        this.patient = patient;
+    }
+
+    // position in the journal, from 1 up without gaps
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Instant getTime() {
+        return Instant.ofEpochMilli(timeMillis);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    // 0 unless RESERVED or CANCELLED
+    public long getAppointmentId() {
+        return appointmentId;
+    }
+
+    public LocalDate getDate() {
+        return date;
+    }
+
+    // null for dose changes
+    public Slot getSlot() {
+        return caregiver == null ? null : new Slot(caregiver, slotStart, slotMinutes);
+    }
+
+    // doses added (negative: taken), DOSES_CHANGED only
+    public int getAmount() {
+        return amount;
+    }
+
+    public String getVaccine() {
+        return vaccine;
+    }
+
+    public String getCaregiver() {
+        return caregiver;
+    }
+
+    public String getPatient() {
+        return patient;
+    }
+
+    @Override
+    public String toString() {
+        return "JournalEvent{" +
+                "sequence=" + sequence +
+                ", time=" + getTime() +
+                ", type=" + type +
+                (appointmentId != 0 ? ", appointmentId=" + appointmentId : "") +
+                (date != null ? ", date=" + date : "") +
+                (caregiver != null ? ", slot=" + getSlot() : "") +
+                (type == Type.DOSES_CHANGED ? ", amount=" + amount : "") +
+                (vaccine != null ? ", vaccine='" + vaccine + '\'' : "") +
+                (patient != null ? ", patient='" + patient + '\'' : "") +
+                '}';
+    }
+
+    // the record of this event as the sequence-th of the journal
+    byte[] encode(long sequence) {
+        byte[] vaccineBytes = bytes(vaccine);
+        byte[] caregiverBytes = bytes(caregiver);
+        byte[] patientBytes = bytes(patient);
+        ByteBuffer out = ByteBuffer.allocate(8 + 8 + 1 + 8 + 4 + 2 + 2 + 4 +
+                length(vaccineBytes) + length(caregiverBytes) + length(patientBytes));
+        out.putLong(sequence);
+        out.putLong(timeMillis);
+        out.put((byte) type.ordinal());
+        out.putLong(appointmentId);
+        out.putInt(date == null ? NO_DAY : (int) date.toEpochDay());
+        out.putShort((short) slotStart);
+        out.putShort((short) slotMinutes);
+        out.putInt(amount);
+        put(out, vaccineBytes);
+        put(out, caregiverBytes);
+        put(out, patientBytes);
+        return out.array();
+    }
+
+    static JournalEvent decode(ByteBuffer in) {
+        long sequence = in.getLong();
+        long timeMillis = in.getLong();
+        Type type = TYPES[in.get()];
+        long appointmentId = in.getLong();
+        int day = in.getInt();
+        int slotStart = in.getShort();
+        int slotMinutes = in.getShort();
+        int amount = in.getInt();
+        return new JournalEvent(sequence, timeMillis, type, appointmentId,
+                day == NO_DAY ? null : LocalDate.ofEpochDay(day), slotStart, slotMinutes, amount,
+                string(in), string(in), string(in));
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // strings are their length in bytes (-1 for null) and their UTF-8 bytes
+    private static int length(byte[] b) {
+        return 2 + (b == null ? 0 : b.length);
+    }
+
+    private static void put(ByteBuffer out, byte[] b) {
+        out.putShort((short) (b == null ? -1 : b.length));
+        if (b != null) {
+            out.put(b);
+        }
+    }
+
+    private static String string(ByteBuffer in) {
+        int length = in.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] b = new byte[length];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
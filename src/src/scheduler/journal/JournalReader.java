@@ -0,0 +1,147 @@
+package scheduler.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the {@link EventJournal} in a directory from a given sequence number on, in order, and keeps following it
+ * while the scheduler (in this process or another one) adds to it. {@link #poll()} returns the next event or null
+ * when there is none yet, {@link #poll(long, TimeUnit)} waits for one. A reader is meant for one thread.
+ *
+ * For example, to print every booking from the start and then the new ones as they come:
+ *
+ * <pre>
+ *     try (JournalReader reader = new JournalReader("journal", 1)) {
+ *         while (true) {
+ *             JournalEvent event = reader.poll(1, TimeUnit.SECONDS);
+ *             if (event != null) {
+ *                 System.out.println(event);
+ *             }
+ *         }
+ *     }
+ * </pre>
+ */
+public class JournalReader implements Closeable {
+
+    private static final long IDLE_MILLIS = 10;
+
+    private final Path directory;
+    private long nextSequence;
+
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    // the first sequence of the segment being read; before the first poll, one less than that of the one to open
+    private long segmentFirst = 0;
+    private int position = 0;
+
+    public JournalReader(String directory, long fromSequence) throws IOException {
+        this.directory = Paths.get(directory);
+        this.nextSequence = Math.max(1, fromSequence);
+        // the last segment that starts at or before fromSequence has it (or will)
+        Path start = null;
+        for (Path path : EventJournal.segments(this.directory)) {
+            if (start == null || EventJournal.firstSequence(path) <= nextSequence) {
+                start = path;
+            }
+        }
+        if (start != null) {
+            segmentFirst = EventJournal.firstSequence(start) - 1;
+        }
+    }
+
+    // the sequence number of the event the next poll returns
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    // the next event, or null if it has not been written yet
+    public JournalEvent poll() throws IOException {
+        while (true) {
+            if (segment == null && !openNext()) {
+                return null;
+            }
+            JournalEvent event = EventJournal.readAt(segment, position);
+            if (event == null) {
+                // nothing more here, unless the writer moved on to the next segment
+                boolean full = position + EventJournal.HEADER > segment.limit();
+                if (full && channel.size() > segment.limit()) {
+                    // mapped while the writer was still sizing the file
+                    remap();
+                    continue;
+                }
+                if (!full && segment.getInt(position) != EventJournal.NEXT_SEGMENT || !openNext()) {
+                    return null;
+                }
+                continue;
+            }
+            position += EventJournal.HEADER + segment.getInt(position);
+            // the segment may start before the sequence the reader was asked to start from
+            if (event.getSequence() >= nextSequence) {
+                nextSequence = event.getSequence() + 1;
+                return event;
+            }
+        }
+    }
+
+    // the next event, waiting up to timeout for it to be written; null if it was not
+    public JournalEvent poll(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            JournalEvent event = poll();
+            if (event != null) {
+                return event;
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return null;
+            }
+            Thread.sleep(Math.min(IDLE_MILLIS, TimeUnit.NANOSECONDS.toMillis(left) + 1));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            segment = null;
+        }
+    }
+
+    // the first segment after the current one, null if there is none yet
+    private Path newerSegment() throws IOException {
+        for (Path path : EventJournal.segments(directory)) {
+            if (EventJournal.firstSequence(path) > segmentFirst) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    private boolean openNext() throws IOException {
+        Path next = newerSegment();
+        if (next == null) {
+            return false;
+        }
+        open(next, EventJournal.firstSequence(next));
+        return true;
+    }
+
+    private void open(Path path, long first) throws IOException {
+        close();
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        remap();
+        segmentFirst = first;
+        position = 0;
+    }
+
+    private void remap() throws IOException {
+        segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+}
@@ -0,0 +1,161 @@
+package scheduler.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how long something took, HDR histogram style: durations in nanoseconds go into log-linear buckets,
+ * each power of two split into SUB_BUCKETS equal parts, so every recorded value is known to within about 6%
+ * from a nanosecond up to MAX_EXPONENT (about 18 minutes, longer ones count as that).
+ *
+ * Recording is a handful of atomic increments into arrays allocated up front and never allocates, so it can sit
+ * on every command and every statement. Percentiles are worked out when they are read.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(MAX_VALUE, nanos));
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        totalNanos.add(value);
+        long max = maxNanos.get();
+        while (value > max && !maxNanos.compareAndSet(max, value)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public void recordError() {
+        errors.increment();
+    }
+
+    // the smallest recorded value that at least quantile of all values are less than or equal to, in nanoseconds
+    public long valueAtQuantile(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= wanted) {
+                return Math.min(highestValueIn(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / (double) n / 1000;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return valueAtQuantile(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getP90Micros() {
+        return valueAtQuantile(0.9) / 1000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return valueAtQuantile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return valueAtQuantile(0.999) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return maxNanos.get() / 1000.0;
+    }
+
+    // not atomic with respect to concurrent recording, a value recorded meanwhile may be half counted
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        totalNanos.reset();
+        errors.reset();
+        maxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return name +
+                " count=" + getCount() +
+                " errors=" + getErrors() +
+                " mean=" + Math.round(getMeanMicros()) + "us" +
+                " p50=" + Math.round(getP50Micros()) + "us" +
+                " p90=" + Math.round(getP90Micros()) + "us" +
+                " p99=" + Math.round(getP99Micros()) + "us" +
+                " p99.9=" + Math.round(getP999Micros()) + "us" +
+                " max=" + Math.round(getMaxMicros()) + "us";
+    }
+
+    // values below SUB_BUCKETS get a bucket each, above that the top SUB_BUCKET_BITS bits after the highest
+    // one bit pick the sub-bucket within the value's power of two
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,184 @@
+package scheduler.metrics;
+
+import scheduler.util.Config;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The process wide set of {@link LatencyHistogram}s:
+ * <ul>
+ *     <li>command.&lt;name&gt; - one per console command, from dispatch to answer, errors are commands that threw</li>
+ *     <li>jdbc.acquire - waiting for (or opening) a pooled connection, errors are timeouts and failed opens</li>
+ *     <li>jdbc.execute - running a prepared statement, errors are statements that failed</li>
+ *     <li>waitlist.match - one run of the waitlist matcher over the whole waitlist, errors are runs that failed</li>
+ *     <li>writebehind.flush - one group of write-behind records written in one transaction, errors are attempts
+ *     that failed and were retried</li>
+ * </ul>
+ * plus the number of rows read from result sets and the hits, misses and evictions of every connection's prepared
+ * statement cache.
+ *
+ * Every histogram is registered with the platform MBean server as scheduler:type=Latency,name=&lt;name&gt;, and
+ * the totals as scheduler:type=Metrics. If MetricsDumpInterval is set to a number of seconds, a snapshot of all of
+ * them is also appended to MetricsDumpFile (standard error if not set) at that interval.
+ */
+public class Metrics implements MetricsMBean {
+
+    public static final String JDBC_ACQUIRE = "jdbc.acquire";
+    public static final String JDBC_EXECUTE = "jdbc.execute";
+    public static final String WAITLIST_MATCH = "waitlist.match";
+    public static final String WRITE_BEHIND_FLUSH = "writebehind.flush";
+    private static final String COMMAND_PREFIX = "command.";
+
+    private static Metrics instance = null;
+
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final LongAdder rowsReturned = new LongAdder();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    private final LongAdder statementCacheEvictions = new LongAdder();
+    private final String dumpFile = Config.get("MetricsDumpFile", "");
+
+    private Metrics() {
+        long interval = Config.getLong("MetricsDumpInterval", 0);
+        if (interval > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-dump");
+                t.setDaemon(true);
+                return t;
+            });
+            dumper.scheduleAtFixedRate(this::dump, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+            register("scheduler:type=Metrics", instance);
+        }
+        return instance;
+    }
+
+    // the histogram with the given name, created on first use; callers on a hot path should keep the result
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram != null) {
+            return histogram;
+        }
+        synchronized (histograms) {
+            histogram = histograms.get(name);
+            if (histogram == null) {
+                histogram = new LatencyHistogram(name);
+                histograms.put(name, histogram);
+                register("scheduler:type=Latency,name=" + name, histogram);
+            }
+        }
+        return histogram;
+    }
+
+    public LatencyHistogram command(String command) {
+        return histogram(COMMAND_PREFIX + command);
+    }
+
+    public void addRows(long rows) {
+        rowsReturned.add(rows);
+    }
+
+    public void statementCacheHit() {
+        statementCacheHits.increment();
+    }
+
+    public void statementCacheMiss() {
+        statementCacheMisses.increment();
+    }
+
+    public void statementCacheEviction() {
+        statementCacheEvictions.increment();
+    }
+
+    @Override
+    public long getRowsReturned() {
+        return rowsReturned.sum();
+    }
+
+    @Override
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    @Override
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    @Override
+    public long getStatementCacheEvictions() {
+        return statementCacheEvictions.sum();
+    }
+
+    @Override
+    public String getSnapshot() {
+        StringBuilder snapshot = new StringBuilder();
+        for (LatencyHistogram histogram : new TreeMap<>(histograms).values()) {
+            if (histogram.getCount() > 0 || histogram.getErrors() > 0) {
+                snapshot.append(histogram).append('\n');
+            }
+        }
+        snapshot.append("jdbc.rows returned=").append(getRowsReturned()).append('\n');
+        snapshot.append("jdbc.statementCache hits=").append(getStatementCacheHits())
+                .append(" misses=").append(getStatementCacheMisses())
+                .append(" evictions=").append(getStatementCacheEvictions()).append('\n');
+        return snapshot.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        rowsReturned.reset();
+        statementCacheHits.reset();
+        statementCacheMisses.reset();
+        statementCacheEvictions.reset();
+    }
+
+    private void dump() {
+        String snapshot = "metrics at " + Instant.now() + "\n" + getSnapshot();
+        if (dumpFile.isEmpty()) {
+            System.err.print(snapshot);
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(dumpFile, StandardCharsets.UTF_8, true))) {
+            out.print(snapshot);
+        } catch (IOException e) {
+            System.err.println("Could not write metrics to " + dumpFile + ": " + e);
+        }
+    }
+
+    private static void register(String objectName, Object bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(bean, name);
+            }
+        } catch (JMException e) {
+            // metrics are still collected and dumped, only not visible over JMX
+            System.err.println("Could not register " + objectName + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package scheduler.metrics;
+
+/**
+ * What JMX shows for the scheduler as a whole, next to the one {@link LatencyHistogramMBean} per histogram.
+ */
+public interface MetricsMBean {
+
+    long getRowsReturned();
+
+    long getStatementCacheHits();
+
+    long getStatementCacheMisses();
+
+    long getStatementCacheEvictions();
+
+    // one line per histogram that has seen anything, as written by the periodic dump
+    String getSnapshot();
+
+    void reset();
+}
@@ -1,10 +1,24 @@
 package scheduler.model;
 
+import scheduler.bulk.WaitlistMatcher;
 import scheduler.db.ConnectionManager;
-import scheduler.util.Util;
+import scheduler.db.Queries;
+import scheduler.db.Shard;
+import scheduler.db.ShardRouter;
+import scheduler.db.WriteBehindQueue;
+import scheduler.index.AvailabilityIndex;
+import scheduler.index.Slot;
+import scheduler.journal.EventJournal;
+import scheduler.util.PasswordHasher;
 
 import java.sql.*;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class Caregiver {
     private final String username;
@@ -37,12 +51,10 @@ public class Caregiver {
     }
 
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
 
-        String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
+        try (PreparedStatement statement = con.prepareStatement(Queries.ADD_CAREGIVER)) {
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
             statement.setBytes(3, this.hash);
@@ -50,24 +62,190 @@ public class Caregiver {
         } catch (SQLException e) {
             throw new SQLException();
         } finally {
-            cm.closeConnection();
+            cm.returnConnection(con);
         }
     }
 
-    public void uploadAvailability(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    // the whole day as one slot; false if the caregiver already has slots that day, uploaded or booked, except
+    // with write-behind, where the day is skipped later on instead
+    public boolean uploadAvailability(Date d) throws SQLException {
+        if (WriteBehindQueue.isEnabled()) {
+            WriteBehindQueue.getInstance().addAvailability(d, this.username);
+            return true;
+        }
+        ConnectionManager cm = ShardRouter.getInstance().forDate(d).getPool();
+        Connection con = cm.borrowConnection();
 
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
+        try (PreparedStatement statement = con.prepareStatement(Queries.ADD_AVAILABILITY_IF_MISSING)) {
             statement.setDate(1, d);
             statement.setString(2, this.username);
-            statement.executeUpdate();
+            statement.setDate(3, d);
+            statement.setString(4, this.username);
+            statement.setDate(5, d);
+            statement.setString(6, this.username);
+            if (statement.executeUpdate() == 0) {
+                return false;
+            }
+            AvailabilityIndex.getInstance().added(d, Slot.wholeDay(this.username));
+            EventJournal.availabilityAdded(d, Slot.wholeDay(this.username));
+            WaitlistMatcher.getInstance().capacityAdded();
+            return true;
+        } catch (SQLException e) {
+            throw new SQLException();
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+
+    // upload many dates at once: one batch in one transaction (per shard, with date shards), dates that are already
+    // uploaded are skipped
+    public UploadResult uploadAvailabilities(Collection<Date> dates) throws SQLException {
+        // sort and drop repeated dates so each (Time, Username) is only sent once
+        List<Date> unique = new ArrayList<>(new TreeSet<>(dates));
+        if (unique.isEmpty()) {
+            return new UploadResult(0, dates.size());
+        }
+        ShardRouter router = ShardRouter.getInstance();
+        Map<Shard, List<Date>> byShard = new LinkedHashMap<>();
+        for (Date d : unique) {
+            byShard.computeIfAbsent(router.forDate(d), k -> new ArrayList<>()).add(d);
+        }
+        int inserted = 0;
+        for (Map.Entry<Shard, List<Date>> shard : byShard.entrySet()) {
+            inserted += uploadAvailabilities(shard.getKey().getPool(), shard.getValue());
+        }
+        if (inserted > 0) {
+            WaitlistMatcher.getInstance().capacityAdded();
+        }
+        return new UploadResult(inserted, dates.size() - inserted);
+    }
+
+    // how many of the dates were inserted
+    private int uploadAvailabilities(ConnectionManager cm, List<Date> unique) throws SQLException {
+        Connection con = cm.borrowConnection();
+
+        try {
+            con.setAutoCommit(false);
+            try (PreparedStatement statement = con.prepareStatement(Queries.ADD_AVAILABILITY_IF_MISSING)) {
+                for (Date d : unique) {
+                    statement.setDate(1, d);
+                    statement.setString(2, this.username);
+                    statement.setDate(3, d);
+                    statement.setString(4, this.username);
+                    statement.setDate(5, d);
+                    statement.setString(6, this.username);
+                    statement.addBatch();
+                }
+                int[] counts = statement.executeBatch();
+                con.commit();
+
+                AvailabilityIndex index = AvailabilityIndex.getInstance();
+                int inserted = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        inserted++;
+                        index.added(unique.get(i), Slot.wholeDay(this.username));
+                        EventJournal.availabilityAdded(unique.get(i), Slot.wholeDay(this.username));
+                    } else if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                        // the driver didn't say whether the row was new, count it as inserted and let the index re-read
+                        inserted++;
+                        index.invalidate(unique.get(i));
+                        EventJournal.availabilityAdded(unique.get(i), Slot.wholeDay(this.username));
+                    }
+                }
+                return inserted;
+            }
         } catch (SQLException e) {
+            con.rollback();
             throw new SQLException();
         } finally {
-            cm.closeConnection();
+            // the pool switches auto-commit back on when the connection is returned
+            cm.returnConnection(con);
+        }
+    }
+
+    // back to back slots of slotMinutes from minute from up to minute to of a day, in one transaction;
+    // slots overlapping ones already uploaded or booked that day are skipped
+    public UploadResult uploadSlots(Date d, int from, int to, int slotMinutes) throws SQLException {
+        List<Slot> wanted = new ArrayList<>();
+        for (int start = from; start + slotMinutes <= to; start += slotMinutes) {
+            wanted.add(new Slot(this.username, start, slotMinutes));
+        }
+        if (wanted.isEmpty()) {
+            return new UploadResult(0, 0);
+        }
+        ConnectionManager cm = ShardRouter.getInstance().forDate(d).getPool();
+        Connection con = cm.borrowConnection();
+
+        try {
+            con.setAutoCommit(false);
+            // start -> end of the caregiver's slots that day; they never overlap, so the one starting last
+            // before a new slot ends is the only one that can overlap it
+            TreeMap<Integer, Integer> taken = new TreeMap<>();
+            try (PreparedStatement statement = con.prepareStatement(Queries.GET_CAREGIVER_SLOTS)) {
+                statement.setDate(1, d);
+                statement.setString(2, this.username);
+                statement.setDate(3, d);
+                statement.setString(4, this.username);
+                ResultSet rs = statement.executeQuery();
+                while (rs.next()) {
+                    int start = rs.getInt("Slot_Start");
+                    taken.put(start, start + rs.getInt("Slot_Minutes"));
+                }
+            }
+            List<Slot> added = new ArrayList<>();
+            try (PreparedStatement statement = con.prepareStatement(Queries.ADD_SLOT)) {
+                for (Slot slot : wanted) {
+                    Map.Entry<Integer, Integer> before = taken.lowerEntry(slot.getEnd());
+                    if (before != null && before.getValue() > slot.getStart()) {
+                        continue;
+                    }
+                    statement.setDate(1, d);
+                    statement.setString(2, this.username);
+                    statement.setInt(3, slot.getStart());
+                    statement.setInt(4, slot.getMinutes());
+                    statement.addBatch();
+                    taken.put(slot.getStart(), slot.getEnd());
+                    added.add(slot);
+                }
+                if (!added.isEmpty()) {
+                    statement.executeBatch();
+                }
+            }
+            con.commit();
+
+            AvailabilityIndex index = AvailabilityIndex.getInstance();
+            for (Slot slot : added) {
+                index.added(d, slot);
+                EventJournal.availabilityAdded(d, slot);
+            }
+            if (!added.isEmpty()) {
+                WaitlistMatcher.getInstance().capacityAdded();
+            }
+            return new UploadResult(added.size(), wanted.size() - added.size());
+        } catch (SQLException e) {
+            con.rollback();
+            throw new SQLException();
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+
+    public static class UploadResult {
+        private final int inserted;
+        private final int skipped;
+
+        private UploadResult(int inserted, int skipped) {
+            this.inserted = inserted;
+            this.skipped = skipped;
+        }
+
+        public int getInserted() {
+            return inserted;
+        }
+
+        public int getSkipped() {
+            return skipped;
         }
     }
 
@@ -99,34 +277,65 @@ public class Caregiver {
         }
 
         public Caregiver get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            ConnectionManager cm = ConnectionManager.getInstance();
+            Connection con = cm.borrowReadConnection();
+            boolean outdated = false;
 
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
+            try (PreparedStatement statement = con.prepareStatement(Queries.GET_CAREGIVER)) {
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
                     byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
+                    // the hasher knows every stored format, including the zero padded legacy one
+                    byte[] hash = resultSet.getBytes("Hash");
                     // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
+                    PasswordHasher hasher = PasswordHasher.getInstance();
+                    if (!hasher.verify(password, salt, hash)) {
                         return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Caregiver(this);
                     }
+                    // the password is at hand, so this is the moment to upgrade an outdated hash
+                    if (hasher.needsRehash(hash)) {
+                        salt = hasher.generateSalt();
+                        hash = hasher.hash(password, salt);
+                        outdated = true;
+                    }
+                    this.salt = salt;
+                    this.hash = hash;
+                    break;
                 }
-                return null;
+                if (this.hash == null) {
+                    return null;
+                }
+            } catch (SQLException e) {
+                throw new SQLException();
+            } finally {
+                cm.returnConnection(con);
+            }
+            if (outdated) {
+                // the password was right either way; if the upgrade fails it is tried again on the next login
+                try {
+                    rehash();
+                } catch (SQLException e) {
+                    System.err.println("Could not upgrade the password hash of " + username + ": " + e);
+                }
+            }
+            return new Caregiver(this);
+        }
+
+        // on the primary, the lookup may have been answered by a read replica
+        private void rehash() throws SQLException {
+            ConnectionManager cm = ConnectionManager.getInstance();
+            Connection con = cm.borrowConnection();
+
+            try (PreparedStatement statement = con.prepareStatement(Queries.UPDATE_CAREGIVER_HASH)) {
+                statement.setBytes(1, this.salt);
+                statement.setBytes(2, this.hash);
+                statement.setString(3, this.username);
+                statement.executeUpdate();
             } catch (SQLException e) {
                 throw new SQLException();
             } finally {
-                cm.closeConnection();
+                cm.returnConnection(con);
             }
         }
     }
@@ -1,11 +1,15 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
-import scheduler.util.Util;
+import scheduler.db.IdAllocator;
+import scheduler.db.Queries;
+import scheduler.db.ReservationEngine;
+import scheduler.util.PasswordHasher;
 
 import java.sql.*;
-import java.util.Arrays;
 public class Patient {
+    private static final int WAITLIST_ATTEMPTS = 5;
+
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
@@ -34,12 +38,10 @@ public class Patient {
     }
 
     public void saveToDB() throws SQLException{
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
 
-        String addCaregiver = "INSERT INTO Patients VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
+        try (PreparedStatement statement = con.prepareStatement(Queries.ADD_PATIENT)) {
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
             statement.setBytes(3, this.hash);
@@ -47,7 +49,52 @@ public class Patient {
         } catch (SQLException e) {
             throw new SQLException();
         } finally {
-            cm.closeConnection();
+            cm.returnConnection(con);
+        }
+    }
+
+    // wait for an appointment between two dates, returns the ID of the waitlist entry
+    public int joinWaitlist(Date from, Date to, String vaccine) throws SQLException {
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return addToWaitlist(con, from, to, vaccine);
+                } catch (SQLException e) {
+                    // a deadlock or lock timeout on the Waitlist sequence is retried
+                    if (!ReservationEngine.isRetryable(e) || attempt >= WAITLIST_ATTEMPTS) {
+                        throw e;
+                    }
+                    ReservationEngine.backOff(attempt);
+                }
+            }
+        } catch (SQLException e) {
+            throw new SQLException();
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+
+    // the ID and the entry in one transaction, so an ID is only taken for an entry that is there
+    private int addToWaitlist(Connection con, Date from, Date to, String vaccine) throws SQLException {
+        con.setAutoCommit(false);
+        try {
+            int id = IdAllocator.nextWaitlistIds(con, 1);
+            try (PreparedStatement statement = con.prepareStatement(Queries.ADD_TO_WAITLIST)) {
+                statement.setInt(1, id);
+                statement.setString(2, this.username);
+                statement.setString(3, vaccine);
+                statement.setDate(4, from);
+                statement.setDate(5, to);
+                statement.executeUpdate();
+            }
+            con.commit();
+            return id;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
         }
     }
 
@@ -79,36 +126,66 @@ public class Patient {
         }
 
         public Patient get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            ConnectionManager cm = ConnectionManager.getInstance();
+            Connection con = cm.borrowReadConnection();
+            boolean outdated = false;
 
-            String getPatient = "SELECT Salt, Hash FROM Patients WHERE Username = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getPatient);
+            try (PreparedStatement statement = con.prepareStatement(Queries.GET_PATIENT)) {
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
                     byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
+                    // the hasher knows every stored format, including the zero padded legacy one
+                    byte[] hash = resultSet.getBytes("Hash");
                     // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
+                    PasswordHasher hasher = PasswordHasher.getInstance();
+                    if (!hasher.verify(password, salt, hash)) {
                         return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Patient(this);
                     }
+                    // the password is at hand, so this is the moment to upgrade an outdated hash
+                    if (hasher.needsRehash(hash)) {
+                        salt = hasher.generateSalt();
+                        hash = hasher.hash(password, salt);
+                        outdated = true;
+                    }
+                    this.salt = salt;
+                    this.hash = hash;
+                    break;
+                }
+                if (this.hash == null) {
+                    return null;
+                }
+            } catch (SQLException e) {
+                throw new SQLException();
+            } finally {
+                cm.returnConnection(con);
+            }
+            if (outdated) {
+                // the password was right either way; if the upgrade fails it is tried again on the next login
+                try {
+                    rehash();
+                } catch (SQLException e) {
+                    System.err.println("Could not upgrade the password hash of " + username + ": " + e);
                 }
-                return null;
+            }
+            return new Patient(this);
+        }
+
+        // on the primary, the lookup may have been answered by a read replica
+        private void rehash() throws SQLException {
+            ConnectionManager cm = ConnectionManager.getInstance();
+            Connection con = cm.borrowConnection();
+
+            try (PreparedStatement statement = con.prepareStatement(Queries.UPDATE_PATIENT_HASH)) {
+                statement.setBytes(1, this.salt);
+                statement.setBytes(2, this.hash);
+                statement.setString(3, this.username);
+                statement.executeUpdate();
             } catch (SQLException e) {
                 throw new SQLException();
             } finally {
-                cm.closeConnection();
+                cm.returnConnection(con);
             }
         }
     }
 }
-
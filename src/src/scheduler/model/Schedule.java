@@ -0,0 +1,172 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Queries;
+import scheduler.db.Shard;
+import scheduler.db.ShardRouter;
+import scheduler.index.AvailabilityIndex;
+import scheduler.index.Slot;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+
+/**
+ * What search_caregiver_schedule shows: the free slots of caregivers on each date of a range, and one snapshot
+ * of the vaccine inventory. A caregiver available the whole day is shown by name alone, a shorter slot with
+ * its times. The two are independent, so they are fetched and printed separately instead of
+ * as one row per caregiver and vaccine.
+ */
+public class Schedule {
+    private final Date from;
+    private final Date to;
+    private final NavigableMap<LocalDate, List<Slot>> slots;
+    private final Map<String, Integer> inventory;
+
+    private Schedule(ScheduleGetter getter) {
+        this.from = getter.from;
+        this.to = getter.to;
+        this.slots = getter.slots;
+        this.inventory = getter.inventory;
+    }
+
+    // Getters
+    public Date getFrom() {
+        return from;
+    }
+
+    public Date getTo() {
+        return to;
+    }
+
+    public NavigableMap<LocalDate, List<Slot>> getSlots() {
+        return Collections.unmodifiableNavigableMap(slots);
+    }
+
+    public Map<String, Integer> getInventory() {
+        return Collections.unmodifiableMap(inventory);
+    }
+
+    // write the schedule in the format shown to users
+    public void print(Appendable out) throws IOException {
+        boolean singleDay = from.equals(to);
+        if (singleDay) {
+            out.append("Available Caregivers on ").append(from.toString()).append(":\n");
+        } else {
+            out.append("Available Caregivers from ").append(from.toString())
+               .append(" to ").append(to.toString()).append(":\n");
+        }
+        if (slots.isEmpty()) {
+            out.append(singleDay ? "No Caregivers Available! Try another date!\n"
+                                 : "No Caregivers Available! Try other dates!\n");
+            return;
+        }
+        for (Map.Entry<LocalDate, List<Slot>> day : slots.entrySet()) {
+            for (Slot slot : day.getValue()) {
+                if (!singleDay) {
+                    out.append(day.getKey().toString()).append(' ');
+                }
+                out.append(slot.toString()).append('\n');
+            }
+        }
+        out.append("Available Doses:\n");
+        if (inventory.isEmpty()) {
+            out.append("No Vaccines Available!\n");
+            return;
+        }
+        for (Map.Entry<String, Integer> vaccine : inventory.entrySet()) {
+            out.append(vaccine.getKey()).append(' ').append(String.valueOf(vaccine.getValue())).append('\n');
+        }
+    }
+
+    public static class ScheduleGetter {
+        private final Date from;
+        private final Date to;
+        private final NavigableMap<LocalDate, List<Slot>> slots = new TreeMap<>();
+        private final Map<String, Integer> inventory = new LinkedHashMap<>();
+
+        public ScheduleGetter(Date d) {
+            this(d, d);
+        }
+
+        public ScheduleGetter(Date from, Date to) {
+            if (from.after(to)) {
+                throw new IllegalArgumentException("Start date must not be after end date!");
+            }
+            this.from = from;
+            this.to = to;
+        }
+
+        public Schedule get() throws SQLException {
+            AvailabilityIndex index = AvailabilityIndex.getInstance();
+            if (index.isEnabled()) {
+                for (Map.Entry<LocalDate, NavigableSet<Slot>> day : index.slotsBetween(from, to).entrySet()) {
+                    slots.put(day.getKey(), new ArrayList<>(day.getValue()));
+                }
+                // no free slot means nothing to book, so there is no need to go to the database at all
+                if (slots.isEmpty()) {
+                    return new Schedule(this);
+                }
+            }
+
+            if (!index.isEnabled()) {
+                // shards own disjoint dates, so each shard's days go into the map as they are
+                ShardRouter router = ShardRouter.getInstance();
+                try {
+                    for (Map<LocalDate, List<Slot>> days : router.fanOut(router.covering(from, to), true,
+                            this::readSlots)) {
+                        slots.putAll(days);
+                    }
+                } catch (SQLException e) {
+                    throw new SQLException();
+                }
+            }
+
+            ConnectionManager cm = ConnectionManager.getInstance();
+            Connection con = cm.borrowReadConnection();
+
+            try {
+                if (!slots.isEmpty()) {
+                    try (PreparedStatement statement = con.prepareStatement(Queries.GET_INVENTORY)) {
+                        ResultSet rs = statement.executeQuery();
+                        while (rs.next()) {
+                            inventory.put(rs.getString("Name"), rs.getInt("Doses"));
+                        }
+                    }
+                }
+                return new Schedule(this);
+            } catch (SQLException e) {
+                throw new SQLException();
+            } finally {
+                cm.returnConnection(con);
+            }
+        }
+
+        private Map<LocalDate, List<Slot>> readSlots(Shard shard, Connection con) throws SQLException {
+            Map<LocalDate, List<Slot>> days = new TreeMap<>();
+            try (PreparedStatement statement = con.prepareStatement(Queries.GET_SCHEDULE)) {
+                statement.setDate(1, from);
+                statement.setDate(2, to);
+                ResultSet rs = statement.executeQuery();
+                while (rs.next()) {
+                    Slot slot = new Slot(rs.getString("Username"), rs.getInt("Slot_Start"),
+                            rs.getInt("Slot_Minutes"));
+                    days.computeIfAbsent(rs.getDate("Time").toLocalDate(), k -> new ArrayList<>()).add(slot);
+                }
+            }
+            return days;
+        }
+    }
+}
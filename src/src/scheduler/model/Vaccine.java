@@ -1,6 +1,10 @@
 package scheduler.model;
 
+import scheduler.bulk.WaitlistMatcher;
 import scheduler.db.ConnectionManager;
+import scheduler.db.Queries;
+import scheduler.db.WriteBehindQueue;
+import scheduler.journal.EventJournal;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -31,19 +35,21 @@ public class Vaccine {
     }
 
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
 
-        String addDoses = "INSERT INTO vaccines VALUES (?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addDoses);
+        try (PreparedStatement statement = con.prepareStatement(Queries.ADD_VACCINE)) {
             statement.setString(1, this.vaccineName);
             statement.setInt(2, this.availableDoses);
             statement.executeUpdate();
+            if (this.availableDoses > 0) {
+                EventJournal.dosesChanged(this.vaccineName, this.availableDoses);
+                WaitlistMatcher.getInstance().capacityAdded();
+            }
         } catch (SQLException e) {
             throw new SQLException();
         } finally {
-            cm.closeConnection();
+            cm.returnConnection(con);
         }
     }
 
@@ -53,20 +59,25 @@ public class Vaccine {
             throw new IllegalArgumentException("Argument cannot be negative!");
         }
         this.availableDoses += num;
+        if (WriteBehindQueue.isEnabled()) {
+            WriteBehindQueue.getInstance().changeDoses(this.vaccineName, num);
+            return;
+        }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
 
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
+        // by how much rather than to what, availableDoses may have been read from a replica that lags behind
+        try (PreparedStatement statement = con.prepareStatement(Queries.RETURN_DOSES)) {
+            statement.setInt(1, num);
             statement.setString(2, this.vaccineName);
             statement.executeUpdate();
+            EventJournal.dosesChanged(this.vaccineName, num);
+            WaitlistMatcher.getInstance().capacityAdded();
         } catch (SQLException e) {
             throw new SQLException();
         } finally {
-            cm.closeConnection();
+            cm.returnConnection(con);
         }
     }
 
@@ -76,19 +87,25 @@ public class Vaccine {
             throw new IllegalArgumentException("Not enough available doses!");
         }
         this.availableDoses -= num;
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        if (WriteBehindQueue.isEnabled()) {
+            WriteBehindQueue.getInstance().changeDoses(this.vaccineName, -num);
+            return;
+        }
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
 
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
+        try (PreparedStatement statement = con.prepareStatement(Queries.TAKE_DOSES)) {
+            statement.setInt(1, num);
             statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
+            statement.setInt(3, num);
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("Not enough available doses!");
+            }
+            EventJournal.dosesChanged(this.vaccineName, -num);
         } catch (SQLException e) {
             throw new SQLException();
         } finally {
-            cm.closeConnection();
+            cm.returnConnection(con);
         }
     }
 
@@ -123,12 +140,10 @@ public class Vaccine {
         }
 
         public Vaccine get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            ConnectionManager cm = ConnectionManager.getInstance();
+            Connection con = cm.borrowReadConnection();
 
-            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getVaccine);
+            try (PreparedStatement statement = con.prepareStatement(Queries.GET_VACCINE)) {
                 statement.setString(1, this.vaccineName);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
@@ -139,7 +154,7 @@ public class Vaccine {
             } catch (SQLException e) {
                 throw new SQLException();
             } finally {
-                cm.closeConnection();
+                cm.returnConnection(con);
             }
         }
     }
@@ -0,0 +1,113 @@
+package scheduler.server;
+
+import scheduler.Scheduler;
+import scheduler.Session;
+import scheduler.util.Config;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the scheduler's console commands over TCP, one command per line, to many users at once.
+ *
+ * Every connection gets its own {@link Session} and its own virtual thread, so thousands of mostly idle
+ * connections cost little more than their sockets; all of them share the one connection pool. Answers are
+ * written exactly as the console prints them and flushed after every command. At most ServerMaxSessions
+ * connections are served at the same time, further ones are told to come back later and closed. Commands that
+ * read a file on the server only take files in ImportDirectory, and are refused when it is not set.
+ */
+public class SchedulerServer {
+
+    public static final int DEFAULT_PORT = 5555;
+
+    private final int port;
+    private final int maxSessions = Config.getInt("ServerMaxSessions", 10000);
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicLong sessionIds = new AtomicLong();
+    private volatile ServerSocket serverSocket;
+
+    public SchedulerServer(int port) {
+        this.port = port;
+    }
+
+    // accept connections until the server is stopped
+    public void run() throws IOException {
+        serverSocket = new ServerSocket(port);
+        System.out.println("Scheduler server listening on port " + serverSocket.getLocalPort());
+        try (ServerSocket listener = serverSocket) {
+            while (!listener.isClosed()) {
+                Socket socket;
+                try {
+                    socket = listener.accept();
+                } catch (IOException e) {
+                    if (listener.isClosed()) {
+                        return;
+                    }
+                    throw e;
+                }
+                if (activeSessions.incrementAndGet() > maxSessions) {
+                    activeSessions.decrementAndGet();
+                    refuse(socket);
+                    continue;
+                }
+                Thread.ofVirtual()
+                      .name("session-" + sessionIds.incrementAndGet())
+                      .start(() -> serve(socket));
+            }
+        }
+    }
+
+    public void stop() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+    }
+
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(
+                     new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)))) {
+            Session session = new Session(out, true);
+            try {
+                Scheduler.printGreeting(session);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!Scheduler.execute(session, line)) {
+                        break;
+                    }
+                }
+            } finally {
+                // nothing more is pushed to a connection that is gone
+                session.setCurrentPatient(null);
+            }
+        } catch (IOException e) {
+            // the client went away, nothing left to answer
+        } finally {
+            activeSessions.decrementAndGet();
+        }
+    }
+
+    private static void refuse(Socket socket) {
+        try (Socket s = socket;
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            out.println("Server is busy, please try again later!");
+        } catch (IOException e) {
+            // nothing to do, the connection is being turned away anyway
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package scheduler.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes log entries to a file on a background thread, one line per entry (its toString()).
+ *
+ * {@link #append(Object)} only puts the entry on a bounded queue and never blocks: when the writer cannot keep up
+ * and the queue is full, the entry is dropped and counted instead of slowing the caller down. Entries are turned
+ * into text on the writer thread. The file is opened on the first entry, and once it grows beyond maxBytes it is
+ * rotated: path becomes path.1, path.1 becomes path.2 and so on, keeping at most files files.
+ */
+public class AsyncFileAppender {
+
+    private final String path;
+    private final long maxBytes;
+    private final int files;
+    private final BlockingQueue<Object> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writerThread;
+
+    private Writer writer = null;
+    private long written = 0;
+
+    public AsyncFileAppender(String path, long maxBytes, int files, int queueSize) {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.files = Math.max(1, files);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.writerThread = new Thread(this::run, "log-writer-" + new File(path).getName());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // false if the entry had to be dropped
+    public boolean append(Object entry) {
+        if (queue.offer(entry)) {
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void run() {
+        while (true) {
+            Object entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                write(entry.toString());
+                // flush once the burst is written, not after every line
+                if (queue.isEmpty()) {
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                System.err.println("Could not write to " + path + ": " + e);
+                closeWriter();
+            }
+        }
+    }
+
+    private void write(String line) throws IOException {
+        if (writer == null) {
+            open();
+        }
+        if (written >= maxBytes) {
+            rotate();
+        }
+        writer.write(line);
+        writer.write('\n');
+        // close enough for deciding when to rotate
+        written += line.length() + 1;
+    }
+
+    private void open() throws IOException {
+        File file = new File(path);
+        written = file.length();
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    private void rotate() throws IOException {
+        closeWriter();
+        new File(path + "." + (files - 1)).delete();
+        for (int i = files - 2; i >= 1; i--) {
+            new File(path + "." + i).renameTo(new File(path + "." + (i + 1)));
+        }
+        if (files > 1) {
+            new File(path).renameTo(new File(path + ".1"));
+        } else {
+            new File(path).delete();
+        }
+        open();
+    }
+
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // nothing more we can do with it
+        }
+        writer = null;
+    }
+}
@@ -0,0 +1,258 @@
+package scheduler.util;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Hashes and checks passwords.
+ *
+ * Hashes are stored in the 16-byte Hash column in a versioned format:
+ * <pre>
+ *     version 1 (legacy): PBKDF2WithHmacSHA1, 10 iterations, 2-byte key, zero padded
+ *     version 2:          [2][key length][iterations, 3 bytes big endian][key] using PBKDF2WithHmacSHA256
+ * </pre>
+ * New hashes are always written in the current version with HashIterations iterations and a HashKeyLength byte
+ * key (at most 11 bytes, which is what fits next to the header). {@link #needsRehash(byte[])} tells a login
+ * whether the stored hash was made with weaker settings so it can be replaced while the password is at hand.
+ *
+ * The work runs on at most HashThreads threads, with at most HashQueueSize hashes waiting, so a burst of
+ * signups or logins cannot take every core away from the rest of the application. The key factory and random
+ * generator are cached per thread instead of being looked up for every hash. If HashTargetMillis is set, the
+ * iteration count is calibrated at startup so one hash takes about that long on this machine, rounded to two
+ * significant digits so restarts mostly come up with the same count.
+ */
+public class PasswordHasher {
+
+    public static final int SALT_LENGTH = 16;
+
+    private static final byte VERSION_2 = 2;
+    private static final int HEADER_LENGTH = 5;
+    private static final int STORED_LENGTH = 16;
+    private static final int MAX_KEY_LENGTH = STORED_LENGTH - HEADER_LENGTH;
+    private static final int MAX_ITERATIONS = 0xFFFFFF;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    private static final ThreadLocal<SecretKeyFactory> factories = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<SecureRandom> randoms = ThreadLocal.withInitial(SecureRandom::new);
+
+    private static PasswordHasher instance = null;
+
+    private final int iterations;
+    private final int keyLength;
+    private final ExecutorService executor;
+    private final Semaphore queueSlots;
+
+    private PasswordHasher(int iterations, int keyLength, int threads, int queueSize) {
+        if (keyLength < 1 || keyLength > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("HashKeyLength must be between 1 and " + MAX_KEY_LENGTH);
+        }
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("HashIterations must be between 1 and " + MAX_ITERATIONS);
+        }
+        this.iterations = iterations;
+        this.keyLength = keyLength;
+        this.queueSlots = new Semaphore(threads + queueSize);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "password-hasher");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    public static synchronized PasswordHasher getInstance() {
+        if (instance == null) {
+            int keyLength = Config.getInt("HashKeyLength", MAX_KEY_LENGTH);
+            int iterations = Config.getInt("HashIterations", 10000);
+            long target = Config.getLong("HashTargetMillis", 0);
+            if (target > 0) {
+                iterations = calibrate(target, keyLength);
+            }
+            int threads = Math.max(1, Config.getInt("HashThreads",
+                    Math.max(1, Runtime.getRuntime().availableProcessors() - 1)));
+            instance = new PasswordHasher(iterations, keyLength, threads, Config.getInt("HashQueueSize", 1024));
+        }
+        return instance;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public byte[] generateSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        randoms.get().nextBytes(salt);
+        return salt;
+    }
+
+    // hash a password in the current format, waiting for a free hashing thread
+    public byte[] hash(String password, byte[] salt) {
+        return await(hashAsync(password, salt));
+    }
+
+    public CompletableFuture<byte[]> hashAsync(String password, byte[] salt) {
+        return submit(() -> encode(password, salt, iterations, keyLength));
+    }
+
+    // check a password against a stored hash of any version, as read from the database (not trimmed)
+    public boolean verify(String password, byte[] salt, byte[] stored) {
+        return await(submit(() -> matches(password, salt, stored)));
+    }
+
+    // true if the stored hash is of an older version or has a shorter key or fewer iterations than new ones;
+    // stronger ones are kept, so a calibration that comes out lower does not rehash everyone
+    public boolean needsRehash(byte[] stored) {
+        if (!isVersion2(stored)) {
+            return true;
+        }
+        return stored[1] < keyLength || readIterations(stored) < iterations;
+    }
+
+    // find the iteration count for which one hash takes about targetMillis here
+    public static int calibrate(long targetMillis, int keyLength) {
+        // the JIT keeps speeding the hash up for a while, so throw away the first rounds and then
+        // measure until two rounds agree within 10%
+        int estimate = 0;
+        for (int round = 0; round < 12; round++) {
+            int next = measure(targetMillis, keyLength);
+            if (round >= 3 && Math.abs(next - estimate) <= estimate / 10) {
+                return roundIterations(next);
+            }
+            estimate = next;
+        }
+        return roundIterations(estimate);
+    }
+
+    // to two significant digits, e.g. 123456 -> 120000
+    static int roundIterations(int iterations) {
+        int unit = 1;
+        while (iterations / unit >= 100) {
+            unit *= 10;
+        }
+        long rounded = (iterations + unit / 2L) / unit * unit;
+        return (int) Math.min(MAX_ITERATIONS, rounded);
+    }
+
+    private static int measure(long targetMillis, int keyLength) {
+        byte[] salt = new byte[SALT_LENGTH];
+        int probe = 1000;
+        long elapsed = 0;
+        while (probe < MAX_ITERATIONS) {
+            // best of three, a single run is easily disturbed by GC or other threads
+            elapsed = Long.MAX_VALUE;
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                derive("calibration", salt, probe, keyLength);
+                elapsed = Math.min(elapsed, System.nanoTime() - start);
+            }
+            if (elapsed >= TimeUnit.MILLISECONDS.toNanos(Math.max(1, targetMillis / 2))) {
+                break;
+            }
+            probe = Math.min(MAX_ITERATIONS, probe * 2);
+        }
+        long scaled = probe * TimeUnit.MILLISECONDS.toNanos(targetMillis) / Math.max(1, elapsed);
+        return (int) Math.max(1000, Math.min(MAX_ITERATIONS, scaled));
+    }
+
+    private static boolean matches(String password, byte[] salt, byte[] stored) {
+        if (stored == null) {
+            return false;
+        }
+        if (!isVersion2(stored)) {
+            return Arrays.equals(Util.trim(stored), Util.generateHash(password, salt));
+        }
+        int length = stored[1];
+        if (HEADER_LENGTH + length > stored.length) {
+            return false;
+        }
+        byte[] key = derive(password, salt, readIterations(stored), length);
+        boolean equal = true;
+        // compare every byte so the time taken does not depend on where the first difference is
+        for (int i = 0; i < length; i++) {
+            equal &= key[i] == stored[HEADER_LENGTH + i];
+        }
+        return equal;
+    }
+
+    private static byte[] encode(String password, byte[] salt, int iterations, int keyLength) {
+        byte[] key = derive(password, salt, iterations, keyLength);
+        byte[] stored = new byte[STORED_LENGTH];
+        stored[0] = VERSION_2;
+        stored[1] = (byte) keyLength;
+        stored[2] = (byte) (iterations >>> 16);
+        stored[3] = (byte) (iterations >>> 8);
+        stored[4] = (byte) iterations;
+        System.arraycopy(key, 0, stored, HEADER_LENGTH, keyLength);
+        return stored;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations, int keyLength) {
+        char[] chars = password.toCharArray();
+        PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, keyLength * 8);
+        try {
+            return factories.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    // legacy hashes are two bytes followed by zero padding, version 2 always has a non-zero iteration count
+    private static boolean isVersion2(byte[] stored) {
+        return stored.length >= HEADER_LENGTH && stored[0] == VERSION_2 && stored[1] > 0
+                && stored[1] <= MAX_KEY_LENGTH && readIterations(stored) > 0;
+    }
+
+    private static int readIterations(byte[] stored) {
+        return ((stored[2] & 0xFF) << 16) | ((stored[3] & 0xFF) << 8) | (stored[4] & 0xFF);
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> work) {
+        try {
+            queueSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to hash a password");
+        }
+        try {
+            return CompletableFuture.supplyAsync(work, executor).whenComplete((r, e) -> queueSlots.release());
+        } catch (RuntimeException e) {
+            queueSlots.release();
+            throw e;
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing a password");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package scheduler.bulk;
+
+import org.junit.jupiter.api.Test;
+import scheduler.index.Slot;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MatchingTest {
+
+    private static final LocalDate MONDAY = LocalDate.of(2027, 1, 4);
+    private static final LocalDate TUESDAY = MONDAY.plusDays(1);
+    private static final LocalDate WEDNESDAY = MONDAY.plusDays(2);
+
+    @Test
+    void takesAFreeSlotOnTheFirstPreferredDay() {
+        BatchAllocator.Matching matching = matching(MONDAY, 1, TUESDAY, 1);
+        BatchAllocator.Request a = request(1, MONDAY, TUESDAY);
+
+        assertTrue(matching.place(a));
+        assertEquals(List.of(a), matching.placed.get(MONDAY));
+        assertEquals(List.of(), matching.placed.get(TUESDAY));
+    }
+
+    @Test
+    void movesAnEarlierPatientToMakeRoom() {
+        BatchAllocator.Matching matching = matching(MONDAY, 1, TUESDAY, 1);
+        BatchAllocator.Request a = request(1, MONDAY, TUESDAY);
+        BatchAllocator.Request b = request(2, MONDAY);
+
+        assertTrue(matching.place(a));
+        assertTrue(matching.place(b));
+        assertEquals(List.of(b), matching.placed.get(MONDAY));
+        assertEquals(List.of(a), matching.placed.get(TUESDAY));
+    }
+
+    @Test
+    void followsAPathThroughSeveralDays() {
+        BatchAllocator.Matching matching = matching(MONDAY, 1, TUESDAY, 1, WEDNESDAY, 1);
+        BatchAllocator.Request a = request(1, MONDAY, TUESDAY);
+        BatchAllocator.Request b = request(2, TUESDAY, WEDNESDAY);
+        BatchAllocator.Request c = request(3, MONDAY);
+
+        assertTrue(matching.place(a));
+        assertTrue(matching.place(b));
+        // c only fits on Monday: a moves to Tuesday, which moves b to Wednesday
+        assertTrue(matching.place(c));
+        assertEquals(List.of(c), matching.placed.get(MONDAY));
+        assertEquals(List.of(a), matching.placed.get(TUESDAY));
+        assertEquals(List.of(b), matching.placed.get(WEDNESDAY));
+    }
+
+    @Test
+    void aFailedSearchLeavesEveryoneWhereTheyWere() {
+        BatchAllocator.Matching matching = matching(MONDAY, 1, TUESDAY, 1);
+        BatchAllocator.Request a = request(1, MONDAY, TUESDAY);
+        BatchAllocator.Request b = request(2, TUESDAY);
+        BatchAllocator.Request c = request(3, MONDAY, TUESDAY);
+
+        assertTrue(matching.place(a));
+        assertTrue(matching.place(b));
+        assertFalse(matching.place(c));
+        assertEquals(List.of(a), matching.placed.get(MONDAY));
+        assertEquals(List.of(b), matching.placed.get(TUESDAY));
+    }
+
+    @Test
+    void neverPlacesMorePatientsOnADayThanItHasSlots() {
+        BatchAllocator.Matching matching = matching(MONDAY, 2, TUESDAY, 1);
+        List<BatchAllocator.Request> placed = new ArrayList<>();
+        for (int line = 1; line <= 5; line++) {
+            BatchAllocator.Request request = request(line, MONDAY, TUESDAY);
+            if (matching.place(request)) {
+                placed.add(request);
+            }
+        }
+
+        assertEquals(3, placed.size());
+        assertEquals(2, matching.placed.get(MONDAY).size());
+        assertEquals(1, matching.placed.get(TUESDAY).size());
+    }
+
+    @Test
+    void daysWithoutSlotsAreNotUsed() {
+        BatchAllocator.Matching matching = matching(MONDAY, 1);
+
+        assertFalse(matching.place(request(1, WEDNESDAY)));
+        assertEquals(List.of(), matching.placed.get(MONDAY));
+    }
+
+    // days and their number of free slots, in pairs
+    private static BatchAllocator.Matching matching(Object... daysAndSlots) {
+        Map<LocalDate, List<Slot>> free = new TreeMap<>();
+        for (int i = 0; i < daysAndSlots.length; i += 2) {
+            List<Slot> slots = new ArrayList<>();
+            for (int j = 0; j < (Integer) daysAndSlots[i + 1]; j++) {
+                slots.add(new Slot("caregiver" + j, 540, 15));
+            }
+            free.put((LocalDate) daysAndSlots[i], slots);
+        }
+        return new BatchAllocator.Matching(free);
+    }
+
+    private static BatchAllocator.Request request(int line, LocalDate... dates) {
+        return new BatchAllocator.Request(line, 0, "patient" + line, "Pfizer", Arrays.asList(dates));
+    }
+}
@@ -0,0 +1,136 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.Test;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.Vaccine;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CancellationEngineTest {
+
+    @Test
+    void aCancelledAppointmentGivesItsSlotAndDoseBack() throws SQLException {
+        Date d = Date.valueOf("2033-01-10");
+        String vaccine = vaccine("cancel-one", 3);
+        caregiver("cancel-one-caregiver").uploadSlots(d, 540, 600, 30);
+        String patient = patient("cancel-one-patient");
+        ReservationEngine.Result booked = ReservationEngine.getInstance().reserve(d, vaccine, patient);
+        assertEquals(2, doses(vaccine));
+
+        // only the appointment's own patient or caregiver can cancel it
+        assertNull(CancellationEngine.getInstance().cancel(booked.getAppointmentId(), "Patient_Name", "someone"));
+        CancellationEngine.Cancelled cancelled =
+                CancellationEngine.getInstance().cancel(booked.getAppointmentId(), "Patient_Name", patient);
+        assertEquals(booked.getSlot().getStart(), cancelled.getSlot().getStart());
+        assertTrue(cancelled.isSlotRestored());
+        assertEquals(3, doses(vaccine));
+        assertEquals(0, count(d, "SELECT COUNT(*) FROM Appointments WHERE Time = ?"));
+        assertEquals(2, count(d, "SELECT COUNT(*) FROM Availabilities WHERE Time = ?"));
+        assertNull(CancellationEngine.getInstance().cancel(booked.getAppointmentId(), "Patient_Name", patient));
+    }
+
+    // the last day of the global database and the first of the date shard of 2090
+    @Test
+    void aCancelledRangeAcrossShardsReturnsDosesAndWaitlistsThePatients() throws SQLException {
+        Date global = Date.valueOf("2089-12-31");
+        Date shard = Date.valueOf("2090-01-01");
+        String vaccine = vaccine("cancel-range", 10);
+        Caregiver caregiver = caregiver("cancel-range-caregiver");
+        String first = patient("cancel-range-first");
+        String second = patient("cancel-range-second");
+        for (Date d : List.of(global, shard)) {
+            caregiver.uploadSlots(d, 540, 600, 30);
+            ReservationEngine.getInstance().reserve(d, vaccine, first);
+            ReservationEngine.getInstance().reserve(d, vaccine, second);
+            caregiver.uploadSlots(d, 600, 630, 30);
+        }
+        assertEquals(6, doses(vaccine));
+
+        CancellationEngine.RangeResult result =
+                CancellationEngine.getInstance().cancelRange("cancel-range-caregiver", global, shard);
+        assertEquals(4, result.getCancelled().size());
+        assertEquals(Map.of(vaccine, 4), result.getDosesReturned());
+        assertEquals(2, result.getSlotsWithdrawn());
+        assertEquals(10, doses(vaccine));
+        for (Date d : List.of(global, shard)) {
+            assertEquals(0, count(d, "SELECT COUNT(*) FROM Appointments WHERE Time = ?"));
+            assertEquals(0, count(d, "SELECT COUNT(*) FROM Availabilities WHERE Time = ?"));
+        }
+        // each patient waits for the two days they had, nobody else has slots on them
+        assertEquals(List.of(global, shard), waitlistedDays(first));
+        assertEquals(List.of(global, shard), waitlistedDays(second));
+    }
+
+    private static String vaccine(String name, int doses) throws SQLException {
+        new Vaccine.VaccineBuilder(name, doses).build().saveToDB();
+        return name;
+    }
+
+    private static Caregiver caregiver(String username) throws SQLException {
+        Caregiver caregiver = new Caregiver.CaregiverBuilder(username, new byte[16], new byte[16]).build();
+        caregiver.saveToDB();
+        return caregiver;
+    }
+
+    private static String patient(String username) throws SQLException {
+        new Patient.PatientBuilder(username, new byte[16], new byte[16]).build().saveToDB();
+        return username;
+    }
+
+    private static int doses(String vaccine) throws SQLException {
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        try (PreparedStatement statement = con.prepareStatement(Queries.GET_VACCINE)) {
+            statement.setString(1, vaccine);
+            ResultSet rs = statement.executeQuery();
+            rs.next();
+            return rs.getInt("Doses");
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+
+    // the first day of each of the patient's waitlist entries, each entry being for a single day
+    private static List<Date> waitlistedDays(String patient) throws SQLException {
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        try (PreparedStatement statement = con.prepareStatement(Queries.GET_WAITLIST_OF)) {
+            statement.setString(1, patient);
+            ResultSet rs = statement.executeQuery();
+            List<Date> days = new ArrayList<>();
+            while (rs.next()) {
+                assertEquals(rs.getDate("From_Date"), rs.getDate("To_Date"));
+                days.add(rs.getDate("From_Date"));
+            }
+            return days;
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+
+    // a count of the rows of a day, from the shard that owns it
+    private static int count(Date d, String sql) throws SQLException {
+        ConnectionManager cm = ShardRouter.getInstance().forDate(d).getPool();
+        Connection con = cm.borrowConnection();
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            statement.setDate(1, d);
+            ResultSet rs = statement.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+}
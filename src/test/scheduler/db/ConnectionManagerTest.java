@@ -0,0 +1,103 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionManagerTest {
+
+    // PoolMaxSize is not set for the tests
+    private static final int MAX_SIZE = 10;
+
+    @Test
+    void returnedConnectionsAreLentOutAgain() throws SQLException {
+        ConnectionManager pool = open("pool-reuse");
+        Connection first = pool.borrowConnection();
+        pool.returnConnection(first);
+        long creations = pool.getStats().getCreations();
+
+        Connection second = pool.borrowConnection();
+        assertSame(first, second);
+        assertEquals(creations, pool.getStats().getCreations());
+        assertEquals(1, pool.getStats().getBorrowed());
+        pool.returnConnection(second);
+        assertEquals(0, pool.getStats().getBorrowed());
+    }
+
+    @Test
+    void aConnectionCannotBeReturnedTwice() throws SQLException {
+        ConnectionManager pool = open("pool-twice");
+        Connection con = pool.borrowConnection();
+        pool.returnConnection(con);
+
+        assertThrows(IllegalStateException.class, () -> pool.returnConnection(con));
+        assertEquals(0, pool.getStats().getBorrowed());
+    }
+
+    @Test
+    void anUnfinishedTransactionIsRolledBackOnReturn() throws SQLException {
+        ConnectionManager pool = open("pool-rollback");
+        Connection con = pool.borrowConnection();
+        con.setAutoCommit(false);
+        try (Statement statement = con.createStatement()) {
+            statement.executeUpdate("INSERT INTO Availabilities (Time, Username) VALUES (DATE '2027-01-01', 'c')");
+        }
+        pool.returnConnection(con);
+
+        con = pool.borrowConnection();
+        try (Statement statement = con.createStatement()) {
+            assertTrue(con.getAutoCommit());
+            ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM Availabilities");
+            rs.next();
+            assertEquals(0, rs.getInt(1));
+        } finally {
+            pool.returnConnection(con);
+        }
+    }
+
+    @Test
+    void aBorrowWaitsForAReturnWhenThePoolIsFull() throws Exception {
+        ConnectionManager pool = open("pool-full");
+        List<Connection> borrowed = new ArrayList<>();
+        for (int i = 0; i < MAX_SIZE; i++) {
+            borrowed.add(pool.borrowConnection());
+        }
+        CompletableFuture<Connection> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.borrowConnection();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(waiting.isDone());
+
+        pool.returnConnection(borrowed.get(0));
+        assertSame(borrowed.get(0), waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(MAX_SIZE, pool.getStats().getOpen());
+
+        pool.returnConnection(waiting.get());
+        for (int i = 1; i < MAX_SIZE; i++) {
+            pool.returnConnection(borrowed.get(i));
+        }
+        assertEquals(MAX_SIZE, pool.getStats().getIdle());
+    }
+
+    // a pool of its own, with a date shard's schema, apart from the process' ConnectionManager
+    private static ConnectionManager open(String name) {
+        return ConnectionManager.openDateShard(StorageBackend.fromSpec("embedded:mem:" + name, false));
+    }
+}
@@ -0,0 +1,88 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdAllocatorTest {
+
+    private static final int THREADS = 16;
+    // several blocks of IdBlockSize per thread
+    private static final int IDS_PER_THREAD = 500;
+
+    @Test
+    void concurrentCallersGetUniqueIncreasingIds() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<Long>>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(threads.submit(() -> {
+                    start.await();
+                    List<Long> ids = new ArrayList<>();
+                    for (int j = 0; j < IDS_PER_THREAD; j++) {
+                        ids.add(IdAllocator.getInstance().next());
+                    }
+                    return ids;
+                }));
+            }
+            start.countDown();
+            Set<Long> all = new HashSet<>();
+            for (Future<List<Long>> future : futures) {
+                List<Long> ids = future.get();
+                for (int j = 1; j < ids.size(); j++) {
+                    assertTrue(ids.get(j) > ids.get(j - 1));
+                }
+                all.addAll(ids);
+            }
+            assertEquals(THREADS * IDS_PER_THREAD, all.size());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    void aBatchGetsABlockOfItsOwn() throws SQLException {
+        IdAllocator allocator = IdAllocator.getInstance();
+        long before = allocator.next();
+        long first = allocator.next(250);
+        long after = allocator.next();
+
+        assertTrue(first > before);
+        // the shared block goes on where it was, outside the batch's IDs
+        assertFalse(after >= first && after < first + 250);
+    }
+
+    @Test
+    void waitlistIdsAreOnlyTakenWhenTheTransactionCommits() throws SQLException {
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        try {
+            con.setAutoCommit(false);
+            int rolledBack = IdAllocator.nextWaitlistIds(con, 3);
+            con.rollback();
+            int first = IdAllocator.nextWaitlistIds(con, 3);
+            con.commit();
+            int next = IdAllocator.nextWaitlistIds(con, 1);
+            con.commit();
+
+            assertEquals(rolledBack, first);
+            assertEquals(first + 3, next);
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+}
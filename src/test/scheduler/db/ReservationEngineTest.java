@@ -0,0 +1,165 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.Vaccine;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReservationEngineTest {
+
+    private static final String PATIENT = "reservation-patient";
+    private static final int CLIENTS = 32;
+    // 15 minute slots from 09:00 to 12:00 per caregiver
+    private static final int SLOTS_PER_CAREGIVER = 12;
+
+    @BeforeAll
+    static void createPatient() throws SQLException {
+        new Patient.PatientBuilder(PATIENT, new byte[16], new byte[16]).build().saveToDB();
+    }
+
+    @Test
+    void theFirstFreeSlotIsBookedAndGone() throws SQLException {
+        Date d = Date.valueOf("2031-02-01");
+        String vaccine = vaccine("reservation-single", 5);
+        caregivers("reservation-single", 1, d);
+
+        ReservationEngine.Result result = ReservationEngine.getInstance().reserve(d, vaccine, PATIENT);
+        assertEquals(ReservationEngine.Status.RESERVED, result.getStatus());
+        assertEquals(540, result.getSlot().getStart());
+        // the same slot asked for by its time is taken now, the one after it is not
+        assertEquals(ReservationEngine.Status.NO_CAREGIVER,
+                ReservationEngine.getInstance().reserve(d, 540, vaccine, PATIENT).getStatus());
+        ReservationEngine.Result next = ReservationEngine.getInstance().reserve(d, 555, vaccine, PATIENT);
+        assertEquals(ReservationEngine.Status.RESERVED, next.getStatus());
+        assertNotEquals(result.getAppointmentId(), next.getAppointmentId());
+        assertEquals(3, doses(vaccine));
+    }
+
+    @Test
+    void concurrentReservationsStopAtTheLastDose() throws Exception {
+        Date d = Date.valueOf("2031-02-02");
+        String vaccine = vaccine("reservation-doses", 10);
+        caregivers("reservation-doses", 2, d);
+
+        List<ReservationEngine.Result> results = reserveAtOnce(d, vaccine);
+        assertBooked(d, results, 10);
+        assertEquals(0, doses(vaccine));
+        assertEquals(2 * SLOTS_PER_CAREGIVER - 10, freeSlots(d));
+    }
+
+    // the slots are in a date shard and the doses in the global database
+    @Test
+    void concurrentReservationsOnAShardStopAtTheLastSlot() throws Exception {
+        Date d = Date.valueOf("2091-02-03");
+        String vaccine = vaccine("reservation-slots", 30);
+        caregivers("reservation-slots", 1, d);
+
+        List<ReservationEngine.Result> results = reserveAtOnce(d, vaccine);
+        assertBooked(d, results, SLOTS_PER_CAREGIVER);
+        assertEquals(30 - SLOTS_PER_CAREGIVER, doses(vaccine));
+        assertEquals(0, freeSlots(d));
+    }
+
+    // CLIENTS reservations of the earliest slot of the day, all let go at the same moment
+    private static List<ReservationEngine.Result> reserveAtOnce(Date d, String vaccine) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<ReservationEngine.Result>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < CLIENTS; i++) {
+                futures.add(clients.submit(() -> {
+                    start.await();
+                    return ReservationEngine.getInstance().reserve(d, vaccine, PATIENT);
+                }));
+            }
+            start.countDown();
+            List<ReservationEngine.Result> results = new ArrayList<>();
+            for (Future<ReservationEngine.Result> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    // every reservation got a slot and an ID of its own, and the database has them as the only ones of the day
+    private static void assertBooked(Date d, List<ReservationEngine.Result> results, int expected)
+            throws SQLException {
+        Set<String> slots = new HashSet<>();
+        Set<Long> ids = new HashSet<>();
+        for (ReservationEngine.Result result : results) {
+            if (result.getStatus() == ReservationEngine.Status.RESERVED) {
+                assertTrue(slots.add(result.getCaregiver() + " " + result.getSlot().getStart()));
+                assertTrue(ids.add(result.getAppointmentId()));
+            }
+        }
+        assertEquals(expected, slots.size());
+        assertEquals(expected, count(d, "SELECT COUNT(*) FROM Appointments WHERE Time = ?"));
+        assertEquals(expected, count(d, "SELECT COUNT(*) FROM (SELECT DISTINCT Caregiver_Name, Slot_Start " +
+                "FROM Appointments WHERE Time = ?)"));
+    }
+
+    private static String vaccine(String name, int doses) throws SQLException {
+        new Vaccine.VaccineBuilder(name, doses).build().saveToDB();
+        return name;
+    }
+
+    private static void caregivers(String prefix, int count, Date d) throws SQLException {
+        for (int i = 0; i < count; i++) {
+            Caregiver caregiver = new Caregiver.CaregiverBuilder(prefix + i, new byte[16], new byte[16]).build();
+            caregiver.saveToDB();
+            caregiver.uploadSlots(d, 540, 540 + 15 * SLOTS_PER_CAREGIVER, 15);
+        }
+    }
+
+    private static int doses(String vaccine) throws SQLException {
+        ConnectionManager cm = ConnectionManager.getInstance();
+        Connection con = cm.borrowConnection();
+        try (PreparedStatement statement = con.prepareStatement(Queries.GET_VACCINE)) {
+            statement.setString(1, vaccine);
+            ResultSet rs = statement.executeQuery();
+            rs.next();
+            return rs.getInt("Doses");
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+
+    private static int freeSlots(Date d) throws SQLException {
+        return count(d, "SELECT COUNT(*) FROM Availabilities WHERE Time = ?");
+    }
+
+    // a count of the rows of a day, from the shard that owns it
+    private static int count(Date d, String sql) throws SQLException {
+        ConnectionManager cm = ShardRouter.getInstance().forDate(d).getPool();
+        Connection con = cm.borrowConnection();
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            statement.setDate(1, d);
+            ResultSet rs = statement.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+}
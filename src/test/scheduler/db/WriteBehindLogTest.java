@@ -0,0 +1,143 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WriteBehindLogTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recoverReturnsEveryRecordInOrder() throws IOException {
+        Path path = directory.resolve("log");
+        writeRecords(path, 3);
+
+        WriteBehindLog log = new WriteBehindLog(path.toString());
+        List<WriteBehindQueue.Mutation> records = log.recover();
+        log.close();
+
+        assertEquals(3, records.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, records.get(i).getSequence());
+        }
+        assertEquals(WriteBehindQueue.ADD_AVAILABILITY, records.get(0).getType());
+        assertEquals("caregiver1", records.get(0).getName());
+        assertEquals(Date.valueOf("2027-01-01"), records.get(0).getDate());
+        assertEquals(WriteBehindQueue.CHANGE_DOSES, records.get(1).getType());
+        assertEquals("vaccine2", records.get(1).getName());
+        assertNull(records.get(1).getDate());
+        assertEquals(2, records.get(1).getAmount());
+    }
+
+    @Test
+    void recoverCutsOffARecordCutShort() throws IOException {
+        Path path = directory.resolve("log");
+        writeRecords(path, 3);
+        long intact = Files.size(path);
+        writeRecords(path, 1, 4);
+        // the crash came halfway through the fourth record
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(intact + (file.length() - intact) / 2);
+        }
+
+        WriteBehindLog log = new WriteBehindLog(path.toString());
+        List<WriteBehindQueue.Mutation> records = log.recover();
+
+        assertEquals(3, records.size());
+        assertEquals(intact, log.size());
+        // what is written next goes where the torn record was, and is found again
+        log.write(mutation(4));
+        log.sync(4);
+        log.close();
+        assertEquals(4, recover(path).size());
+    }
+
+    @Test
+    void recoverStopsAtARecordFailingItsCrc() throws IOException {
+        Path path = directory.resolve("log");
+        writeRecords(path, 2);
+        long intact = Files.size(path);
+        writeRecords(path, 2, 3);
+        // a byte of the third record's contents never made it to disk
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(intact + 8);
+            int b = file.read();
+            file.seek(intact + 8);
+            file.write(b ^ 0xff);
+        }
+
+        WriteBehindLog log = new WriteBehindLog(path.toString());
+        List<WriteBehindQueue.Mutation> records = log.recover();
+        log.close();
+
+        // the fourth record is intact, but comes after one that is not
+        assertEquals(2, records.size());
+        assertEquals(2, records.get(1).getSequence());
+        assertEquals(intact, Files.size(path));
+    }
+
+    @Test
+    void recoverStopsAtATornLength() throws IOException {
+        Path path = directory.resolve("log");
+        writeRecords(path, 2);
+        long intact = Files.size(path);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(intact);
+            file.writeInt(Integer.MAX_VALUE);
+            file.write(new byte[16]);
+        }
+
+        assertEquals(2, recover(path).size());
+        assertEquals(intact, Files.size(path));
+    }
+
+    @Test
+    void recoverOfAnEmptyLogFindsNothing() throws IOException {
+        assertEquals(0, recover(directory.resolve("log")).size());
+    }
+
+    private static List<WriteBehindQueue.Mutation> recover(Path path) throws IOException {
+        WriteBehindLog log = new WriteBehindLog(path.toString());
+        try {
+            return log.recover();
+        } finally {
+            log.close();
+        }
+    }
+
+    private static void writeRecords(Path path, int count) throws IOException {
+        writeRecords(path, count, 1);
+    }
+
+    // count records from sequence first on, after what the log has
+    private static void writeRecords(Path path, int count, long first) throws IOException {
+        WriteBehindLog log = new WriteBehindLog(path.toString());
+        log.recover();
+        for (long sequence = first; sequence < first + count; sequence++) {
+            log.write(mutation(sequence));
+        }
+        log.sync(first + count - 1);
+        log.close();
+    }
+
+    // odd sequence numbers are uploads, even ones dose changes
+    private static WriteBehindQueue.Mutation mutation(long sequence) {
+        if (sequence % 2 == 1) {
+            return new WriteBehindQueue.Mutation(sequence, WriteBehindQueue.ADD_AVAILABILITY, "caregiver" + sequence,
+                    Date.valueOf("2027-01-01"), 0);
+        }
+        return new WriteBehindQueue.Mutation(sequence, WriteBehindQueue.CHANGE_DOSES, "vaccine" + sequence, null,
+                (int) sequence);
+    }
+}
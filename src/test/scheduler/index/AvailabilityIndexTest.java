@@ -0,0 +1,110 @@
+package scheduler.index;
+
+import org.junit.jupiter.api.Test;
+import scheduler.db.ConnectionManager;
+import scheduler.db.Queries;
+import scheduler.db.ShardRouter;
+import scheduler.model.Caregiver;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AvailabilityIndexTest {
+
+    private final AvailabilityIndex index = AvailabilityIndex.getInstance();
+
+    @Test
+    void slotsOfADayComeInStartOrderWithinTheAskedMinutes() throws SQLException {
+        Date d = Date.valueOf("2032-03-01");
+        caregiver("index-order-b").uploadSlots(d, 540, 660, 30);
+        caregiver("index-order-a").uploadSlots(d, 600, 720, 60);
+
+        assertEquals(List.of("index-order-b 540", "index-order-b 570", "index-order-a 600", "index-order-b 600"),
+                describe(index.slotsOn(d, 540, 600)));
+        assertEquals(List.of("index-order-a 660"), describe(index.slotsOn(d, 631, 700)));
+        assertTrue(index.slotsOn(d, 600, 540).isEmpty());
+    }
+
+    @Test
+    void bookedSlotsLeaveAndCancelledOnesComeBack() throws SQLException {
+        Date d = Date.valueOf("2032-03-02");
+        caregiver("index-booked").uploadSlots(d, 540, 600, 30);
+        Slot first = new Slot("index-booked", 540, 30);
+
+        index.removed(d, first);
+        assertEquals(List.of("index-booked 570"), describe(index.slotsOn(d, 0, Slot.MINUTES_PER_DAY - 1)));
+        index.added(d, first);
+        assertEquals(List.of("index-booked 540", "index-booked 570"),
+                describe(index.slotsOn(d, 0, Slot.MINUTES_PER_DAY - 1)));
+    }
+
+    // the range runs from the global database into the date shard of 2090
+    @Test
+    void aRangeHasOnlyTheDaysWithFreeSlots() throws SQLException {
+        Caregiver caregiver = caregiver("index-range");
+        caregiver.uploadAvailability(Date.valueOf("2089-12-30"));
+        caregiver.uploadAvailability(Date.valueOf("2090-01-02"));
+
+        NavigableMap<LocalDate, NavigableSet<Slot>> range =
+                index.slotsBetween(Date.valueOf("2089-12-29"), Date.valueOf("2090-01-03"));
+        assertEquals(List.of(LocalDate.of(2089, 12, 30), LocalDate.of(2090, 1, 2)), new ArrayList<>(range.keySet()));
+        assertTrue(range.get(LocalDate.of(2090, 1, 2)).first().isWholeDay());
+    }
+
+    // as if another process had written the rows: the index only sees them once told to read the day again
+    @Test
+    void invalidatedDaysAreReadAgain() throws SQLException {
+        Date empty = Date.valueOf("2092-04-01");
+        Date known = Date.valueOf("2092-04-02");
+        caregiver("index-invalidate").uploadSlots(known, 540, 570, 30);
+        assertTrue(index.slotsOn(empty, 0, Slot.MINUTES_PER_DAY - 1).isEmpty());
+
+        insertBehindTheIndex(empty, "index-other", 600);
+        insertBehindTheIndex(known, "index-other", 600);
+        index.invalidate(empty);
+        index.invalidate(known);
+
+        assertEquals(List.of("index-other 600"), describe(index.slotsOn(empty, 0, Slot.MINUTES_PER_DAY - 1)));
+        assertEquals(List.of("index-invalidate 540", "index-other 600"),
+                describe(index.slotsOn(known, 0, Slot.MINUTES_PER_DAY - 1)));
+    }
+
+    private static Caregiver caregiver(String username) throws SQLException {
+        Caregiver caregiver = new Caregiver.CaregiverBuilder(username, new byte[16], new byte[16]).build();
+        caregiver.saveToDB();
+        return caregiver;
+    }
+
+    // a slot written straight into the shard of the day; date shards have no foreign key to Caregivers
+    private static void insertBehindTheIndex(Date d, String caregiver, int start) throws SQLException {
+        ConnectionManager cm = ShardRouter.getInstance().forDate(d).getPool();
+        Connection con = cm.borrowConnection();
+        try (PreparedStatement statement = con.prepareStatement(Queries.ADD_SLOT)) {
+            statement.setDate(1, d);
+            statement.setString(2, caregiver);
+            statement.setInt(3, start);
+            statement.setInt(4, 30);
+            statement.executeUpdate();
+        } finally {
+            cm.returnConnection(con);
+        }
+    }
+
+    private static List<String> describe(NavigableSet<Slot> slots) {
+        List<String> described = new ArrayList<>();
+        for (Slot slot : slots) {
+            described.add(slot.getCaregiver() + " " + slot.getStart());
+        }
+        return described;
+    }
+}
@@ -0,0 +1,154 @@
+package scheduler.journal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JournalTest {
+
+    // the smallest segment the journal makes, about 60 events
+    private static final int SEGMENT_BYTES = 4 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readerFollowsEventsAcrossSegments() throws IOException {
+        EventJournal journal = new EventJournal(directory, SEGMENT_BYTES);
+        append(journal, 1, 200);
+        journal.close();
+
+        assertTrue(EventJournal.segments(directory).size() > 2);
+        try (JournalReader reader = new JournalReader(directory.toString(), 1)) {
+            for (int i = 1; i <= 200; i++) {
+                JournalEvent event = reader.poll();
+                assertNotNull(event, "event " + i);
+                assertEquals(i, event.getSequence());
+                assertEquals("patient" + i, event.getPatient());
+            }
+            assertNull(reader.poll());
+            assertEquals(201, reader.getNextSequence());
+        }
+    }
+
+    @Test
+    void readerStartsInTheMiddleOfALaterSegment() throws IOException {
+        EventJournal journal = new EventJournal(directory, SEGMENT_BYTES);
+        append(journal, 1, 200);
+        journal.close();
+
+        try (JournalReader reader = new JournalReader(directory.toString(), 150)) {
+            assertEquals(150, reader.poll().getSequence());
+            assertEquals(151, reader.poll().getSequence());
+        }
+    }
+
+    @Test
+    void readerTailsTheJournalAsItGrows() throws IOException, InterruptedException {
+        EventJournal journal = new EventJournal(directory, SEGMENT_BYTES);
+        try (JournalReader reader = new JournalReader(directory.toString(), 1)) {
+            assertNull(reader.poll());
+            append(journal, 1, 10);
+            for (int i = 1; i <= 10; i++) {
+                assertEquals(i, reader.poll().getSequence());
+            }
+            assertNull(reader.poll(20, TimeUnit.MILLISECONDS));
+
+            // enough to fill the reader's segment and go on in new ones while it waits at the end
+            append(journal, 11, 200);
+            for (int i = 11; i <= 200; i++) {
+                JournalEvent event = reader.poll(1, TimeUnit.SECONDS);
+                assertNotNull(event, "event " + i);
+                assertEquals(i, event.getSequence());
+            }
+            assertNull(reader.poll());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    void reopeningGoesOnAfterTheLastEventAndSkipsATornRecord() throws IOException {
+        EventJournal journal = new EventJournal(directory, SEGMENT_BYTES);
+        append(journal, 1, 10);
+        journal.close();
+        // a record the crash cut short: its length was written but its contents were not
+        Path last = EventJournal.segments(directory).get(0);
+        int end = endOf(last);
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()).putInt(end, 100);
+        }
+
+        journal = new EventJournal(directory, SEGMENT_BYTES);
+        append(journal, 11, 15);
+        journal.close();
+
+        assertEquals(2, EventJournal.segments(directory).size());
+        try (JournalReader reader = new JournalReader(directory.toString(), 1)) {
+            for (int i = 1; i <= 15; i++) {
+                JournalEvent event = reader.poll();
+                assertNotNull(event, "event " + i);
+                assertEquals(i, event.getSequence());
+            }
+            assertNull(reader.poll());
+        }
+    }
+
+    @Test
+    void eventsSurviveTheRoundTrip() throws IOException {
+        EventJournal journal = new EventJournal(directory, SEGMENT_BYTES);
+        journal.append(new JournalEvent(0, 1000, JournalEvent.Type.DOSES_CHANGED, 0, null, 0, 0, -3, "Pfizer",
+                null, null));
+        append(journal, 2, 2);
+        journal.close();
+
+        try (JournalReader reader = new JournalReader(directory.toString(), 1)) {
+            JournalEvent doses = reader.poll();
+            assertEquals(JournalEvent.Type.DOSES_CHANGED, doses.getType());
+            assertEquals(-3, doses.getAmount());
+            assertEquals("Pfizer", doses.getVaccine());
+            assertNull(doses.getDate());
+            assertNull(doses.getSlot());
+
+            JournalEvent reserved = reader.poll();
+            assertEquals(JournalEvent.Type.RESERVED, reserved.getType());
+            assertEquals(2, reserved.getAppointmentId());
+            assertEquals(LocalDate.of(2027, 1, 1), reserved.getDate());
+            assertEquals("caregiver", reserved.getCaregiver());
+            assertEquals(540, reserved.getSlot().getStart());
+            assertEquals(15, reserved.getSlot().getMinutes());
+        }
+    }
+
+    // events first..last, each numbered as what the journal will make it
+    private static void append(EventJournal journal, int first, int last) throws IOException {
+        for (int i = first; i <= last; i++) {
+            journal.append(new JournalEvent(0, i, JournalEvent.Type.RESERVED, i, LocalDate.of(2027, 1, 1), 540, 15,
+                    0, "Pfizer", "caregiver", "patient" + i));
+        }
+    }
+
+    // the position after the last intact record of a segment
+    private static int endOf(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int end = 0;
+            while (EventJournal.readAt(buffer, end) != null) {
+                end += EventJournal.HEADER + buffer.getInt(end);
+            }
+            return end;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package scheduler.util;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PasswordHasherTest {
+
+    private final PasswordHasher hasher = PasswordHasher.getInstance();
+
+    @Test
+    void currentHashesVerify() {
+        byte[] salt = hasher.generateSalt();
+        byte[] stored = hasher.hash("correct horse", salt);
+
+        assertEquals(16, stored.length);
+        assertEquals(2, stored[0]);
+        assertTrue(hasher.verify("correct horse", salt, stored));
+        assertFalse(hasher.verify("correct horsf", salt, stored));
+        assertFalse(hasher.verify("correct horse", hasher.generateSalt(), stored));
+        assertFalse(hasher.needsRehash(stored));
+    }
+
+    @Test
+    void legacyHashesVerifyAndAreUpgraded() {
+        byte[] salt = new byte[PasswordHasher.SALT_LENGTH];
+        Arrays.fill(salt, (byte) 7);
+        // as the Hash column hands it back: two bytes of key padded with zeros
+        byte[] stored = Arrays.copyOf(Util.generateHash("secret", salt), 16);
+
+        assertTrue(hasher.verify("secret", salt, stored));
+        assertFalse(hasher.verify("secrets", salt, stored));
+        assertTrue(hasher.needsRehash(stored));
+    }
+
+    @Test
+    void weakerHashesVerifyAndAreUpgraded() throws GeneralSecurityException {
+        byte[] salt = hasher.generateSalt();
+        byte[] fewerIterations = version2("secret", salt, hasher.getIterations() - 1, 11);
+        byte[] shorterKey = version2("secret", salt, hasher.getIterations(), 8);
+
+        assertTrue(hasher.verify("secret", salt, fewerIterations));
+        assertFalse(hasher.verify("Secret", salt, fewerIterations));
+        assertTrue(hasher.needsRehash(fewerIterations));
+        assertTrue(hasher.verify("secret", salt, shorterKey));
+        assertTrue(hasher.needsRehash(shorterKey));
+    }
+
+    @Test
+    void strongerHashesAreKept() throws GeneralSecurityException {
+        byte[] salt = hasher.generateSalt();
+        byte[] stored = version2("secret", salt, hasher.getIterations() + 1, 11);
+
+        assertTrue(hasher.verify("secret", salt, stored));
+        assertFalse(hasher.needsRehash(stored));
+    }
+
+    @Test
+    void calibratedCountsAreRounded() {
+        assertEquals(99, PasswordHasher.roundIterations(99));
+        assertEquals(12000, PasswordHasher.roundIterations(12345));
+        assertEquals(13000, PasswordHasher.roundIterations(12500));
+        assertEquals(990000, PasswordHasher.roundIterations(987654));
+        assertEquals(1000000, PasswordHasher.roundIterations(996000));
+        // rounding up past the largest count the header holds stays at it
+        assertEquals(0xFFFFFF, PasswordHasher.roundIterations(0xFFFFFF));
+    }
+
+    @Test
+    void damagedHashesDoNotVerify() throws GeneralSecurityException {
+        byte[] salt = hasher.generateSalt();
+        byte[] stored = version2("secret", salt, 1000, 11);
+        stored[15] ^= 1;
+
+        assertFalse(hasher.verify("secret", salt, stored));
+        assertFalse(hasher.verify("secret", salt, null));
+    }
+
+    // a version 2 hash as written with other settings: [2][key length][iterations, 3 bytes][key]
+    private static byte[] version2(String password, byte[] salt, int iterations, int keyLength)
+            throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLength * 8);
+        byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        byte[] stored = new byte[16];
+        stored[0] = 2;
+        stored[1] = (byte) keyLength;
+        stored[2] = (byte) (iterations >>> 16);
+        stored[3] = (byte) (iterations >>> 8);
+        stored[4] = (byte) iterations;
+        System.arraycopy(key, 0, stored, 5, keyLength);
+        return stored;
+    }
+}